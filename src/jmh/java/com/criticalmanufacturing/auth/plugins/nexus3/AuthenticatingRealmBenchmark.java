@@ -0,0 +1,137 @@
+package com.criticalmanufacturing.auth.plugins.nexus3;
+
+import com.codahale.metrics.MetricRegistry;
+import com.criticalmanufacturing.auth.plugins.nexus3.api.MockSecurityPortalConfiguration;
+import com.criticalmanufacturing.auth.plugins.nexus3.api.SecurityPortalClient;
+import com.criticalmanufacturing.auth.plugins.nexus3.api.SecurityPortalMetrics;
+import com.criticalmanufacturing.auth.plugins.nexus3.api.StubSecurityPortal;
+import org.apache.shiro.authc.AuthenticationInfo;
+import org.apache.shiro.authc.UsernamePasswordToken;
+import org.apache.shiro.authz.AuthorizationInfo;
+import org.apache.shiro.subject.PrincipalCollection;
+import org.apache.shiro.subject.SimplePrincipalCollection;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-request cost Nexus pays in the realm: authentication on cache hits, rejected tokens and misses, and
+ * authorization of users holding many roles.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AuthenticatingRealmBenchmark {
+
+    private final AtomicLong missCount = new AtomicLong();
+
+    private StubSecurityPortal portal;
+    private AuthenticatingRealm realm;
+    private UsernamePasswordToken validToken;
+    private UsernamePasswordToken rejectedToken;
+
+    @State(Scope.Benchmark)
+    public static class Roles {
+
+        @Param({"10", "1000"})
+        public int roleCount;
+
+        private PrincipalCollection principals;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            Set<String> roles = new HashSet<>();
+            for (int i = 0; i < roleCount; i++) {
+                roles.add("Role" + i);
+            }
+            Principal principal = new Principal();
+            principal.setUsername("JSilva");
+            principal.setRoles(roles);
+            principals = new SimplePrincipalCollection(principal, AuthenticatingRealm.NAME);
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws Throwable {
+        portal = new StubSecurityPortal();
+        MockSecurityPortalConfiguration configuration = new MockSecurityPortalConfiguration();
+        configuration.setMetadataUrl(portal.getMetadataUrl());
+        SecurityPortalClient client = new SecurityPortalClient(null, configuration, new SecurityPortalMetrics(new MetricRegistry()));
+        realm = new AuthenticatingRealm(client, configuration);
+
+        validToken = new UsernamePasswordToken("JSilva", "valid-personal-access-token");
+        rejectedToken = new UsernamePasswordToken("JSilva", "rejected-personal-access-token");
+        realm.doGetAuthenticationInfo(validToken);
+        portal.setStatusCode(StubSecurityPortal.TOKEN_PATH, 401);
+        realm.doGetAuthenticationInfo(rejectedToken);
+        portal.setStatusCode(StubSecurityPortal.TOKEN_PATH, 200);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        portal.close();
+    }
+
+    @Benchmark
+    public AuthenticationInfo authenticateCacheHit() {
+        return realm.doGetAuthenticationInfo(validToken);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public AuthenticationInfo authenticateCacheHitContended() {
+        return realm.doGetAuthenticationInfo(validToken);
+    }
+
+    @Benchmark
+    public AuthenticationInfo authenticateNegativeCacheHit() {
+        return realm.doGetAuthenticationInfo(rejectedToken);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public AuthenticationInfo authenticateNegativeCacheHitContended() {
+        return realm.doGetAuthenticationInfo(rejectedToken);
+    }
+
+    @Benchmark
+    public AuthenticationInfo authenticateCacheMiss() {
+        return realm.doGetAuthenticationInfo(new UsernamePasswordToken("JSilva", "token-" + missCount.incrementAndGet()));
+    }
+
+    @Benchmark
+    @Threads(8)
+    public AuthenticationInfo authenticateCacheMissContended() {
+        return realm.doGetAuthenticationInfo(new UsernamePasswordToken("JSilva", "token-" + missCount.incrementAndGet()));
+    }
+
+    @Benchmark
+    public AuthorizationInfo authorize(Roles roles) {
+        return realm.doGetAuthorizationInfo(roles.principals);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public AuthorizationInfo authorizeContended(Roles roles) {
+        return realm.doGetAuthorizationInfo(roles.principals);
+    }
+}
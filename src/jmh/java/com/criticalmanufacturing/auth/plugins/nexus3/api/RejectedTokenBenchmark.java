@@ -0,0 +1,118 @@
+package com.criticalmanufacturing.auth.plugins.nexus3.api;
+
+import com.codahale.metrics.MetricRegistry;
+import com.criticalmanufacturing.auth.plugins.nexus3.AuthenticationException;
+import com.criticalmanufacturing.auth.plugins.nexus3.SecurityPortalException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.management.ManagementFactory;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cost of turning away credential stuffing: millions of distinct bad tokens, with the rejected token filter and the
+ * per-username throttle enabled. Retained heap is printed after every iteration and should stay flat however many
+ * tokens were rejected, add {@code -prof gc} for the allocations per operation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RejectedTokenBenchmark {
+
+    private static final int REMEMBERED_TOKENS = 20000;
+
+    private final AtomicLong badTokenCount = new AtomicLong();
+
+    private StubSecurityPortal portal;
+    private SecurityPortalClient client;
+    private RejectedTokenFilter filter;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Throwable {
+        portal = new StubSecurityPortal();
+        portal.setStatusCode(StubSecurityPortal.TOKEN_PATH, 401);
+
+        Properties properties = new Properties();
+        properties.setProperty("error.cache.max-size", "1000");
+        properties.setProperty("error.filter.enabled", "true");
+        properties.setProperty("login.throttle.max-failures", "20");
+        properties.setProperty("login.throttle.window", "PT1H");
+        properties.setProperty("login.throttle.by-username", "true");
+        MockSecurityPortalConfiguration configuration = new MockSecurityPortalConfiguration(properties);
+        configuration.setMetadataUrl(portal.getMetadataUrl());
+        client = new SecurityPortalClient(null, configuration, new SecurityPortalMetrics(new MetricRegistry()));
+
+        // Rejected under distinct usernames, so only the filter still remembers most of them
+        for (int i = 0; i < REMEMBERED_TOKENS; i++) {
+            try {
+                client.authz("user-" + i, "remembered-" + i);
+            } catch (AuthenticationException e) {
+                // Expected
+            }
+        }
+
+        filter = new RejectedTokenFilter(1000000, 0.000001);
+    }
+
+    @TearDown(Level.Iteration)
+    public void reportHeap() {
+        System.gc();
+        long usedHeap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+        System.out.printf("%n%,d bad tokens turned away so far, %,d KiB of heap retained%n", badTokenCount.get(), usedHeap / 1024);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        portal.close();
+    }
+
+    @Benchmark
+    public void filterPut() {
+        filter.put(TokenDigest.of("bad-" + badTokenCount.incrementAndGet()));
+    }
+
+    @Benchmark
+    public boolean filterMightContain() {
+        return filter.mightContain(TokenDigest.of("bad-" + badTokenCount.incrementAndGet()));
+    }
+
+    @Benchmark
+    public Object rememberedToken() {
+        return authz("user-0", "remembered-" + (badTokenCount.incrementAndGet() % REMEMBERED_TOKENS));
+    }
+
+    @Benchmark
+    public Object throttledUsername() {
+        return authz("JSilva", "bad-" + badTokenCount.incrementAndGet());
+    }
+
+    @Benchmark
+    @Threads(8)
+    public Object throttledUsernameContended() {
+        return authz("JSilva", "bad-" + badTokenCount.incrementAndGet());
+    }
+
+    private Object authz(String login, String token) {
+        try {
+            return client.authz(login, token);
+        } catch (SecurityPortalException e) {
+            return e;
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package com.criticalmanufacturing.auth.plugins.nexus3.api;
+
+import com.codahale.metrics.MetricRegistry;
+import com.criticalmanufacturing.auth.plugins.nexus3.AuthenticationException;
+import com.criticalmanufacturing.auth.plugins.nexus3.Principal;
+import com.criticalmanufacturing.auth.plugins.nexus3.SecurityPortalException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cost of {@link SecurityPortalClient#authz(String, String)} on cache hits, remembered rejected tokens and cache
+ * misses served by an in-process Security Portal, single-threaded and under contention.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SecurityPortalClientBenchmark {
+
+    private static final String VALID_TOKEN = "valid-personal-access-token";
+    private static final String REJECTED_TOKEN = "rejected-personal-access-token";
+
+    private final AtomicLong missCount = new AtomicLong();
+
+    private StubSecurityPortal portal;
+    private SecurityPortalClient client;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Throwable {
+        portal = new StubSecurityPortal();
+        MockSecurityPortalConfiguration configuration = new MockSecurityPortalConfiguration();
+        configuration.setMetadataUrl(portal.getMetadataUrl());
+        client = new SecurityPortalClient(null, configuration, new SecurityPortalMetrics(new MetricRegistry()));
+
+        // Cache a principal for the valid token and remember the rejected one
+        client.authz("JSilva", VALID_TOKEN);
+
+        portal.setStatusCode(StubSecurityPortal.TOKEN_PATH, 401);
+        try {
+            client.authz("JSilva", REJECTED_TOKEN);
+        } catch (AuthenticationException e) {
+            // Expected, the token is now in the error cache
+        } finally {
+            portal.setStatusCode(StubSecurityPortal.TOKEN_PATH, 200);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        portal.close();
+    }
+
+    @Benchmark
+    public Principal cacheHit() throws SecurityPortalException {
+        return client.authz("JSilva", VALID_TOKEN);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public Principal cacheHitContended() throws SecurityPortalException {
+        return client.authz("JSilva", VALID_TOKEN);
+    }
+
+    @Benchmark
+    public Object negativeCacheHit() {
+        return rejected();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public Object negativeCacheHitContended() {
+        return rejected();
+    }
+
+    @Benchmark
+    public Principal cacheMiss() throws SecurityPortalException {
+        return client.authz("JSilva", "token-" + missCount.incrementAndGet());
+    }
+
+    @Benchmark
+    @Threads(8)
+    public Principal cacheMissContended() throws SecurityPortalException {
+        return client.authz("JSilva", "token-" + missCount.incrementAndGet());
+    }
+
+    private Object rejected() {
+        try {
+            return client.authz("JSilva", REJECTED_TOKEN);
+        } catch (SecurityPortalException e) {
+            return e;
+        }
+    }
+}
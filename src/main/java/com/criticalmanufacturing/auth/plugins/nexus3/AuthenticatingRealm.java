@@ -1,6 +1,8 @@
 package com.criticalmanufacturing.auth.plugins.nexus3;
 
+import com.codahale.metrics.Timer;
 import com.criticalmanufacturing.auth.plugins.nexus3.api.SecurityPortalClient;
+import com.criticalmanufacturing.auth.plugins.nexus3.api.SecurityPortalConfiguration;
 import org.apache.shiro.authc.AuthenticationException;
 import org.apache.shiro.authc.*;
 import org.apache.shiro.authc.pam.UnsupportedTokenException;
@@ -15,6 +17,10 @@ import org.slf4j.LoggerFactory;
 import javax.inject.Inject;
 import javax.inject.Named;
 import javax.inject.Singleton;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
 
 @Singleton
 @Named
@@ -27,9 +33,30 @@ public class AuthenticatingRealm extends AuthorizingRealm {
 
     public static final String NAME = AuthenticatingRealm.class.getName();
 
+    private static final Set<String> AUTHORIZATION_CACHE_KEYS = new HashSet<>(Arrays.asList(
+            SecurityPortalConfiguration.PRINCIPAL_CACHE_TTL_KEY, SecurityPortalConfiguration.PRINCIPAL_CACHE_STALE_WINDOW_KEY,
+            SecurityPortalConfiguration.PRINCIPAL_CACHE_MAX_SIZE_KEY));
+
     @Inject
-    public AuthenticatingRealm(SecurityPortalClient securityPortalClient) {
+    public AuthenticatingRealm(SecurityPortalClient securityPortalClient, SecurityPortalConfiguration configuration) {
         this.securityPortalClient = securityPortalClient;
+
+        // Nexus checks permissions many times per request, each should be a lookup rather than a rebuild.
+        // Entries live no longer than their principal can be served and are dropped once the client lets it go
+        if (configuration.isAuthorizationCacheEnabled()) {
+            setAuthorizationCache(buildAuthorizationCache(configuration));
+            setAuthorizationCachingEnabled(true);
+            // Looks up the cache in use, a reload may have replaced it
+            securityPortalClient.addPrincipalRemovalListener(principal -> getAuthorizationCache().remove(principal));
+            configuration.addChangeListener(changedKeys -> {
+                if (!Collections.disjoint(changedKeys, AUTHORIZATION_CACHE_KEYS)) {
+                    // Starts out empty, the next permission check of each principal fills it again
+                    setAuthorizationCache(buildAuthorizationCache(configuration));
+                }
+            });
+        } else {
+            setAuthorizationCachingEnabled(false);
+        }
     }
 
     /*
@@ -42,6 +69,12 @@ public class AuthenticatingRealm extends AuthorizingRealm {
         return NAME;
     }
 
+    private static PrincipalAuthorizationCache buildAuthorizationCache(SecurityPortalConfiguration configuration) {
+        return new PrincipalAuthorizationCache(
+                configuration.getPrincipalCacheTtl().plus(configuration.getPrincipalCacheStaleWindow()),
+                configuration.getPrincipalCacheMaxSize());
+    }
+
     /*
      * (non-Javadoc)
      *
@@ -53,6 +86,18 @@ public class AuthenticatingRealm extends AuthorizingRealm {
         LOGGER.info("Security Portal OIDC Realm initialized");
     }
 
+    /*
+     * (non-Javadoc)
+     *
+     * @see
+     * org.apache.shiro.realm.AuthorizingRealm#getAuthorizationCacheKey(org.apache
+     * .shiro.subject.PrincipalCollection)
+     */
+    @Override
+    protected Object getAuthorizationCacheKey(PrincipalCollection principals) {
+        return principals.getPrimaryPrincipal();
+    }
+
     /*
      * (non-Javadoc)
      *
@@ -63,9 +108,11 @@ public class AuthenticatingRealm extends AuthorizingRealm {
     @Override
     protected AuthorizationInfo doGetAuthorizationInfo(PrincipalCollection principals) {
         Principal user = (Principal) principals.getPrimaryPrincipal();
-        LOGGER.info("doGetAuthorizationInfo for user {} with {} roles", user.getUsername(), user.getRoles().size());
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("doGetAuthorizationInfo for user {} with {} roles", user.getUsername(), user.getRoles().size());
+        }
+        // Wraps the client's interned role set, which is immutable, so no user can change the roles of another
         return new SimpleAuthorizationInfo(user.getRoles());
-
     }
 
     /*
@@ -83,21 +130,24 @@ public class AuthenticatingRealm extends AuthorizingRealm {
         }
 
         UsernamePasswordToken t = (UsernamePasswordToken) token;
-        LOGGER.info("doGetAuthenticationInfo for {}", t.getUsername());
+        LOGGER.debug("doGetAuthenticationInfo for {}", t.getUsername());
 
         Principal authenticatedPrincipal;
+        Timer.Context timer = securityPortalClient.getMetrics().getAuthenticationTimer().time();
         try {
-            authenticatedPrincipal = securityPortalClient.authz(t.getUsername(), new String(t.getPassword()));
-            LOGGER.info("Successfully authenticated {}", t.getUsername());
+            authenticatedPrincipal = securityPortalClient.authz(t.getUsername(), t.getPassword(), t.getHost());
+            LOGGER.debug("Successfully authenticated {}", t.getUsername());
         } catch (SecurityPortalException e) {
-            String errToken = new String(t.getPassword());
-            if (errToken.length() > 4) {
-                errToken = errToken.substring(errToken.length() - 4);
-            }
+            securityPortalClient.getMetrics().getAuthenticationFailures().mark();
 
-            LOGGER.warn("Failed authentication for token ***{}", errToken);
+            // Only the last four characters are ever logged, copy just those
+            char[] password = t.getPassword();
+            int visible = Math.min(4, password.length);
+            LOGGER.warn("Failed authentication for token ***{}", new String(password, password.length - visible, visible));
             LOGGER.debug("Detailed authentication error", e);
             return null;
+        } finally {
+            timer.stop();
         }
 
         return new SimpleAuthenticationInfo(authenticatedPrincipal, token.getCredentials(), NAME);
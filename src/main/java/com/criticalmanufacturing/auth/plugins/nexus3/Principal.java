@@ -5,17 +5,12 @@ import java.util.Set;
 
 public class Principal implements Serializable {
     private String username;
-    private char[] oauthToken;
     private Set<String> roles;
 
     public void setUsername(String username) {
         this.username = username;
     }
 
-    public void setOauthToken(char[] oauthToken) {
-        this.oauthToken = oauthToken;
-    }
-
     public void setRoles(Set<String> roles) {
         this.roles = roles;
     }
@@ -24,10 +19,6 @@ public class Principal implements Serializable {
         return username;
     }
 
-    public char[] getOauthToken() {
-        return oauthToken;
-    }
-
     public Set<String> getRoles() {
         return roles;
     }
@@ -0,0 +1,77 @@
+package com.criticalmanufacturing.auth.plugins.nexus3;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import org.apache.shiro.authz.AuthorizationInfo;
+import org.apache.shiro.cache.Cache;
+
+import java.time.Duration;
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shiro authorization cache keyed by the {@link Principal} instance the Security Portal client resolved.
+ * <p>
+ * Authorization info is derived from the principal alone, so an entry stays valid for as long as its principal does.
+ * Keys are weak and compared by identity: a refreshed principal is a new instance and never sees the info of the one
+ * it replaces, and entries of principals nobody holds anymore are collected.
+ */
+public class PrincipalAuthorizationCache implements Cache<Object, AuthorizationInfo> {
+
+    private final com.google.common.cache.Cache<Principal, AuthorizationInfo> cache;
+
+    public PrincipalAuthorizationCache(Duration ttl, long maxSize) {
+        cache = CacheBuilder.newBuilder()
+                .weakKeys()
+                .expireAfterWrite(ttl.toMillis(), TimeUnit.MILLISECONDS)
+                .maximumSize(maxSize)
+                .build();
+    }
+
+    @Override
+    public AuthorizationInfo get(Object key) {
+        return key instanceof Principal ? cache.getIfPresent(key) : null;
+    }
+
+    @Override
+    public AuthorizationInfo put(Object key, AuthorizationInfo value) {
+        if (!(key instanceof Principal)) {
+            return null;
+        }
+        AuthorizationInfo previous = cache.getIfPresent(key);
+        cache.put((Principal) key, value);
+        return previous;
+    }
+
+    @Override
+    public AuthorizationInfo remove(Object key) {
+        if (!(key instanceof Principal)) {
+            return null;
+        }
+        AuthorizationInfo previous = cache.getIfPresent(key);
+        cache.invalidate(key);
+        return previous;
+    }
+
+    @Override
+    public void clear() {
+        cache.invalidateAll();
+    }
+
+    @Override
+    public int size() {
+        return (int) cache.size();
+    }
+
+    @Override
+    public Set<Object> keys() {
+        return ImmutableSet.copyOf(cache.asMap().keySet());
+    }
+
+    @Override
+    public Collection<AuthorizationInfo> values() {
+        return ImmutableList.copyOf(cache.asMap().values());
+    }
+}
@@ -0,0 +1,31 @@
+package com.criticalmanufacturing.auth.plugins.nexus3;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+
+import java.util.Collection;
+
+/**
+ * Canonical, immutable role sets shared by every principal holding the same roles.
+ * <p>
+ * Large user populations usually hold a handful of distinct role combinations, so interning both the role names and
+ * the sets keeps a single copy of each. Interned sets can be compared by identity. Instances nobody references
+ * anymore are collected.
+ */
+public final class RoleSets {
+
+    private static final Interner<String> ROLE_NAMES = Interners.newWeakInterner();
+    private static final Interner<ImmutableSet<String>> ROLE_SETS = Interners.newWeakInterner();
+
+    private RoleSets() {
+    }
+
+    public static ImmutableSet<String> intern(Collection<String> roles) {
+        ImmutableSet.Builder<String> builder = ImmutableSet.builderWithExpectedSize(roles.size());
+        for (String role : roles) {
+            builder.add(ROLE_NAMES.intern(role));
+        }
+        return ROLE_SETS.intern(builder.build());
+    }
+}
@@ -0,0 +1,93 @@
+package com.criticalmanufacturing.auth.plugins.nexus3.api;
+
+import com.codahale.metrics.Timer;
+import com.criticalmanufacturing.auth.plugins.nexus3.SecurityPortalException;
+
+import java.io.IOException;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Non-blocking transport to the Security Portal on top of the JDK {@link HttpClient}.
+ * <p>
+ * Requests are multiplexed over a small fixed pool of threads, so a slow portal holds on to these rather than to one
+ * thread per pending call. Calls go through the same circuit breaker and metrics as the blocking client. Cancelling
+ * the future returned by {@link #send(HttpRequest, Timer)} aborts the exchange.
+ */
+class AsyncSecurityPortalTransport {
+
+    private final ExecutorService executor;
+    private final HttpClient client;
+    private final CircuitBreaker circuitBreaker;
+    private final SecurityPortalMetrics metrics;
+
+    AsyncSecurityPortalTransport(SecurityPortalConfiguration configuration, CircuitBreaker circuitBreaker,
+                                 SecurityPortalMetrics metrics, ThreadFactory threadFactory) {
+        this.circuitBreaker = circuitBreaker;
+        this.metrics = metrics;
+
+        executor = Executors.newFixedThreadPool(configuration.getRequestAsyncThreads(), threadFactory);
+        client = HttpClient.newBuilder()
+                .connectTimeout(Duration.ofMillis(configuration.getRequestConnectTimeout()))
+                .executor(executor)
+                .build();
+    }
+
+    /**
+     * Stops the threads of the transport, pending exchanges are abandoned. The JDK client itself winds down once
+     * it is no longer referenced.
+     */
+    void close() {
+        executor.shutdownNow();
+    }
+
+    CompletableFuture<HttpResponse<byte[]>> send(HttpRequest request, Timer timer) {
+        if (!circuitBreaker.tryAcquire(System.currentTimeMillis())) {
+            metrics.getPortalRejections().mark();
+            return CompletableFuture.failedFuture(new SecurityPortalException("Security Portal circuit breaker is open", 503));
+        }
+
+        Timer.Context timerContext = timer.time();
+        metrics.getPortalRequestsInFlight().inc();
+        CompletableFuture<HttpResponse<byte[]>> response = client.sendAsync(request, HttpResponse.BodyHandlers.ofByteArray());
+
+        // Side effects only, the caller keeps the original future so that cancelling it reaches the exchange
+        response.whenComplete((result, failure) -> {
+            timerContext.stop();
+            metrics.getPortalRequestsInFlight().dec();
+            if (failure != null) {
+                Throwable cause = failure instanceof CompletionException && failure.getCause() != null ? failure.getCause() : failure;
+                // Our own cancels, at the login deadline or once a sibling call failed, say nothing about the portal
+                if (cause instanceof CancellationException) {
+                    circuitBreaker.onCancel();
+                    return;
+                }
+                metrics.getPortalErrors().mark();
+                if (cause instanceof IOException) {
+                    circuitBreaker.onFailure(System.currentTimeMillis());
+                } else {
+                    // Nor does anything short of an I/O failure
+                    circuitBreaker.onCancel();
+                }
+                return;
+            }
+
+            metrics.getPortalResponses(result.statusCode()).mark();
+            // Rejected credentials still mean the portal is up, only server errors count against it
+            if (result.statusCode() >= 500) {
+                circuitBreaker.onFailure(System.currentTimeMillis());
+            } else {
+                circuitBreaker.onSuccess();
+            }
+        });
+        return response;
+    }
+}
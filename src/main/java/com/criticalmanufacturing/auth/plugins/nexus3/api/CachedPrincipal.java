@@ -0,0 +1,46 @@
+package com.criticalmanufacturing.auth.plugins.nexus3.api;
+
+import com.criticalmanufacturing.auth.plugins.nexus3.Principal;
+
+/**
+ * A {@link Principal} together with the moment it was resolved against the Security Portal and the moment it stops
+ * being served from the cache.
+ */
+public final class CachedPrincipal {
+
+    private final Principal principal;
+    private final long createdAt;
+    private final long expiresAt;
+
+    public CachedPrincipal(Principal principal, long createdAt, long expiresAt) {
+        this.principal = principal;
+        this.createdAt = createdAt;
+        this.expiresAt = expiresAt;
+    }
+
+    public Principal getPrincipal() {
+        return principal;
+    }
+
+    /**
+     * Epoch milliseconds at which the principal was resolved.
+     */
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    /**
+     * Epoch milliseconds after which the principal must be resolved again.
+     */
+    public long getExpiresAt() {
+        return expiresAt;
+    }
+
+    public long getAge(long now) {
+        return now - createdAt;
+    }
+
+    public boolean isExpired(long now) {
+        return now >= expiresAt;
+    }
+}
@@ -0,0 +1,78 @@
+package com.criticalmanufacturing.auth.plugins.nexus3.api;
+
+/**
+ * Consecutive-failure circuit breaker guarding the calls to the Security Portal.
+ * <p>
+ * After {@code failureThreshold} consecutive failures the circuit opens and calls are refused for
+ * {@code openDurationMillis}. A single trial call is then let through, closing the circuit on success or opening it
+ * again on failure. A threshold of zero disables the breaker.
+ */
+public class CircuitBreaker {
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final int failureThreshold;
+    private final long openDurationMillis;
+
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private long openedAt;
+    private boolean trialInFlight;
+
+    public CircuitBreaker(int failureThreshold, long openDurationMillis) {
+        this.failureThreshold = failureThreshold;
+        this.openDurationMillis = openDurationMillis;
+    }
+
+    public synchronized boolean tryAcquire(long now) {
+        if (failureThreshold <= 0) {
+            return true;
+        }
+
+        switch (state) {
+            case OPEN:
+                if (now - openedAt < openDurationMillis) {
+                    return false;
+                }
+                state = State.HALF_OPEN;
+                trialInFlight = true;
+                return true;
+            case HALF_OPEN:
+                if (trialInFlight) {
+                    return false;
+                }
+                trialInFlight = true;
+                return true;
+            default:
+                return true;
+        }
+    }
+
+    public synchronized void onSuccess() {
+        consecutiveFailures = 0;
+        trialInFlight = false;
+        state = State.CLOSED;
+    }
+
+    /**
+     * Releases a call abandoned by its caller, which says nothing about the portal. A trial call may be tried again.
+     */
+    public synchronized void onCancel() {
+        trialInFlight = false;
+    }
+
+    public synchronized void onFailure(long now) {
+        consecutiveFailures++;
+        trialInFlight = false;
+        if (failureThreshold > 0 && (state == State.HALF_OPEN || consecutiveFailures >= failureThreshold)) {
+            state = State.OPEN;
+            openedAt = now;
+        }
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+}
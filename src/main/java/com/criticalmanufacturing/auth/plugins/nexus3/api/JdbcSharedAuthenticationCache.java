@@ -0,0 +1,194 @@
+package com.criticalmanufacturing.auth.plugins.nexus3.api;
+
+import com.criticalmanufacturing.auth.plugins.nexus3.Principal;
+import com.criticalmanufacturing.auth.plugins.nexus3.RoleSets;
+
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.function.Supplier;
+
+/**
+ * {@link SharedAuthenticationCache} kept in a table of a database every Nexus node can reach, such as the one the
+ * nodes already share. Connections come from a pooled {@link DataSource} and every statement is bounded by the query
+ * timeout. Plain SQL only, so it runs on PostgreSQL and H2 alike.
+ * <p>
+ * Only principals are stored. A rejection costs the portal a single exchange either way, while storing every one of
+ * them would turn each guessed token into a delete and an insert against the database Nexus itself depends on.
+ * <p>
+ * The table is created on first use, outside the schema Nexus manages, and holds nothing that cannot be resolved
+ * again. Expired rows are purged periodically, and the table may be dropped whenever no node uses the cache.
+ */
+public class JdbcSharedAuthenticationCache implements SharedAuthenticationCache {
+
+    static final String TABLE = "cm_oidc_authentication_cache";
+
+    private static final String CREATE_TABLE = "CREATE TABLE IF NOT EXISTS " + TABLE + " ("
+            + "token_digest CHAR(64) PRIMARY KEY, "
+            + "username VARCHAR(255), "
+            + "roles VARCHAR, "
+            + "error_code INT, "
+            + "created_at BIGINT NOT NULL, "
+            + "expires_at BIGINT NOT NULL)";
+    private static final String SELECT = "SELECT username, roles, error_code, created_at, expires_at FROM " + TABLE
+            + " WHERE token_digest = ? AND expires_at > ?";
+    private static final String DELETE = "DELETE FROM " + TABLE + " WHERE token_digest = ?";
+    private static final String INSERT = "INSERT INTO " + TABLE
+            + " (token_digest, username, roles, error_code, created_at, expires_at) VALUES (?, ?, ?, ?, ?, ?)";
+    private static final String DELETE_ALL = "DELETE FROM " + TABLE;
+    private static final String DELETE_EXPIRED = "DELETE FROM " + TABLE + " WHERE expires_at <= ?";
+
+    // Role names never contain line breaks, which keeps the roles in a single portable column
+    private static final String ROLE_SEPARATOR = "\n";
+
+    // Resolved on every use, the data store may only start after the client
+    private final Supplier<DataSource> dataSource;
+
+    private final int queryTimeoutSeconds;
+
+    private volatile boolean tableCreated;
+
+    public JdbcSharedAuthenticationCache(Supplier<DataSource> dataSource, Duration queryTimeout) {
+        this.dataSource = dataSource;
+        this.queryTimeoutSeconds = (int) Math.max(1, (queryTimeout.toMillis() + 999) / 1000);
+    }
+
+    private Connection getConnection() throws SQLException {
+        Connection connection = dataSource.get().getConnection();
+        if (!tableCreated) {
+            try (Statement statement = createStatement(connection)) {
+                statement.execute(CREATE_TABLE);
+            } catch (SQLException e) {
+                connection.close();
+                throw e;
+            }
+            tableCreated = true;
+        }
+        return connection;
+    }
+
+    private Statement createStatement(Connection connection) throws SQLException {
+        Statement statement = connection.createStatement();
+        statement.setQueryTimeout(queryTimeoutSeconds);
+        return statement;
+    }
+
+    private PreparedStatement prepareStatement(Connection connection, String sql) throws SQLException {
+        PreparedStatement statement = connection.prepareStatement(sql);
+        statement.setQueryTimeout(queryTimeoutSeconds);
+        return statement;
+    }
+
+    @Override
+    public Entry get(TokenDigest key, long now) throws IOException {
+        try (Connection connection = getConnection();
+             PreparedStatement select = prepareStatement(connection, SELECT)) {
+            select.setString(1, key.toString());
+            select.setLong(2, now);
+            try (ResultSet result = select.executeQuery()) {
+                if (!result.next()) {
+                    return null;
+                }
+
+                long expiresAt = result.getLong("expires_at");
+                int errorCode = result.getInt("error_code");
+                if (!result.wasNull()) {
+                    return Entry.rejection(errorCode, expiresAt);
+                }
+
+                Principal principal = new Principal();
+                principal.setUsername(result.getString("username"));
+                String roles = result.getString("roles");
+                principal.setRoles(RoleSets.intern(roles == null || roles.isEmpty()
+                        ? Collections.emptyList() : Arrays.asList(roles.split(ROLE_SEPARATOR))));
+                return Entry.principal(new CachedPrincipal(principal, result.getLong("created_at"), expiresAt));
+            }
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public boolean isSharingRejections() {
+        return false;
+    }
+
+    /**
+     * Stores the principal for the token. A rejection only drops whatever principal was stored for it.
+     */
+    @Override
+    public void put(TokenDigest key, Entry entry) throws IOException {
+        if (entry.isRejection()) {
+            invalidate(key);
+            return;
+        }
+
+        try (Connection connection = getConnection()) {
+            connection.setAutoCommit(false);
+            try (PreparedStatement delete = prepareStatement(connection, DELETE);
+                 PreparedStatement insert = prepareStatement(connection, INSERT)) {
+                delete.setString(1, key.toString());
+                delete.executeUpdate();
+
+                Principal principal = entry.getPrincipal().getPrincipal();
+                insert.setString(1, key.toString());
+                insert.setString(2, principal.getUsername());
+                insert.setString(3, String.join(ROLE_SEPARATOR, principal.getRoles()));
+                insert.setNull(4, Types.INTEGER);
+                insert.setLong(5, entry.getPrincipal().getCreatedAt());
+                insert.setLong(6, entry.getExpiresAt());
+                insert.executeUpdate();
+
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                // Integrity constraint violation: another node stored an entry for the same token in between
+                if (e.getSQLState() == null || !e.getSQLState().startsWith("23")) {
+                    throw e;
+                }
+            }
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public void invalidate(TokenDigest key) throws IOException {
+        try (Connection connection = getConnection();
+             PreparedStatement delete = prepareStatement(connection, DELETE)) {
+            delete.setString(1, key.toString());
+            delete.executeUpdate();
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public void invalidateAll() throws IOException {
+        try (Connection connection = getConnection();
+             Statement delete = createStatement(connection)) {
+            delete.executeUpdate(DELETE_ALL);
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public void purgeExpired(long now) throws IOException {
+        try (Connection connection = getConnection();
+             PreparedStatement delete = prepareStatement(connection, DELETE_EXPIRED)) {
+            delete.setLong(1, now);
+            delete.executeUpdate();
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+}
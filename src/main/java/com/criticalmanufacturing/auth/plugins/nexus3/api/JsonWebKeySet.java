@@ -0,0 +1,109 @@
+package com.criticalmanufacturing.auth.plugins.nexus3.api;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.math.BigInteger;
+import java.security.AlgorithmParameters;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.ECParameterSpec;
+import java.security.spec.ECPoint;
+import java.security.spec.ECPublicKeySpec;
+import java.security.spec.RSAPublicKeySpec;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Signing keys published by the Security Portal on its {@code jwks_uri}, indexed by key id.
+ */
+public final class JsonWebKeySet {
+    private static final Logger LOGGER = LoggerFactory.getLogger(JsonWebKeySet.class);
+
+    private final Map<String, PublicKey> keys;
+
+    private JsonWebKeySet(Map<String, PublicKey> keys) {
+        this.keys = keys;
+    }
+
+    public static JsonWebKeySet parse(JsonNode jwks) {
+        Map<String, PublicKey> keys = new HashMap<>();
+        for (JsonNode jwk : jwks.path("keys")) {
+            // Only keys meant for signatures are of any use here
+            if (jwk.hasNonNull("use") && !"sig".equals(jwk.get("use").textValue())) {
+                continue;
+            }
+
+            try {
+                PublicKey key = toPublicKey(jwk);
+                if (key != null) {
+                    keys.put(jwk.has("kid") ? getText(jwk, "kid") : "", key);
+                }
+            } catch (GeneralSecurityException | IllegalArgumentException e) {
+                LOGGER.warn("Ignoring unsupported JSON Web Key {}", jwk.path("kid"), e);
+            }
+        }
+        return new JsonWebKeySet(Collections.unmodifiableMap(keys));
+    }
+
+    private static PublicKey toPublicKey(JsonNode jwk) throws GeneralSecurityException {
+        switch (getText(jwk, "kty")) {
+            case "RSA":
+                return KeyFactory.getInstance("RSA").generatePublic(
+                        new RSAPublicKeySpec(toBigInteger(jwk, "n"), toBigInteger(jwk, "e")));
+            case "EC":
+                AlgorithmParameters parameters = AlgorithmParameters.getInstance("EC");
+                parameters.init(new ECGenParameterSpec(toCurveName(getText(jwk, "crv"))));
+                ECPoint point = new ECPoint(toBigInteger(jwk, "x"), toBigInteger(jwk, "y"));
+                return KeyFactory.getInstance("EC").generatePublic(
+                        new ECPublicKeySpec(point, parameters.getParameterSpec(ECParameterSpec.class)));
+            default:
+                return null;
+        }
+    }
+
+    private static String toCurveName(String crv) {
+        switch (crv) {
+            case "P-256":
+                return "secp256r1";
+            case "P-384":
+                return "secp384r1";
+            case "P-521":
+                return "secp521r1";
+            default:
+                throw new IllegalArgumentException("Unsupported curve " + crv);
+        }
+    }
+
+    private static BigInteger toBigInteger(JsonNode jwk, String field) {
+        return new BigInteger(1, Base64.getUrlDecoder().decode(getText(jwk, field)));
+    }
+
+    // Members of a key are JSON strings, a key with any other type is ignored rather than coerced into one
+    private static String getText(JsonNode jwk, String field) {
+        JsonNode value = jwk.path(field);
+        if (!value.isTextual()) {
+            throw new IllegalArgumentException("JSON Web Key " + field + " is not a string");
+        }
+        return value.textValue();
+    }
+
+    /**
+     * Key for the given key id. Tokens without a key id can only be matched when the set holds a single key.
+     */
+    public PublicKey getKey(String kid) {
+        if (kid == null || kid.isEmpty()) {
+            return keys.size() == 1 ? keys.values().iterator().next() : null;
+        }
+        return keys.get(kid);
+    }
+
+    public int size() {
+        return keys.size();
+    }
+}
@@ -0,0 +1,228 @@
+package com.criticalmanufacturing.auth.plugins.nexus3.api;
+
+import com.criticalmanufacturing.auth.plugins.nexus3.SecurityPortalException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.function.Function;
+
+/**
+ * Verifies signed JWT access tokens issued by the Security Portal without calling back into it.
+ */
+public class JwtValidator {
+
+    private final ObjectMapper mapper;
+    private final long clockSkewSeconds;
+
+    public JwtValidator(ObjectMapper mapper, Duration clockSkew) {
+        this.mapper = mapper;
+        this.clockSkewSeconds = clockSkew.getSeconds();
+    }
+
+    /**
+     * Checks the signature, issuer, audience and validity period of the token and returns its claims.
+     *
+     * @param keyResolver resolves the signing key from the key id in the token header
+     * @param audience    expected audience, or {@code null} to skip the audience check
+     */
+    public JsonNode validate(String jwt, Function<String, PublicKey> keyResolver, String issuer, String audience) throws SecurityPortalException {
+        String[] parts = split(jwt);
+        JsonNode header = decode(parts[0]);
+        JsonNode claims = decode(parts[1]);
+
+        String algorithm = getText(header, "alg", true);
+        String kid = getText(header, "kid", false);
+        PublicKey key = keyResolver.apply(kid);
+        if (key == null) {
+            throw new SecurityPortalException("No signing key found for JWT key id " + kid);
+        }
+        verifySignature(algorithm, key, parts);
+
+        if (issuer != null && !issuer.equals(getText(claims, "iss", true))) {
+            throw new SecurityPortalException("Unexpected JWT issuer " + claims.get("iss").textValue());
+        }
+        if (audience != null && !hasAudience(claims.path("aud"), audience)) {
+            throw new SecurityPortalException("JWT not issued for audience " + audience);
+        }
+
+        long now = System.currentTimeMillis() / 1000;
+        if (!claims.path("exp").isNumber() || claims.get("exp").asLong() + clockSkewSeconds <= now) {
+            throw new SecurityPortalException("JWT is expired");
+        }
+        if (claims.hasNonNull("nbf") && (!claims.get("nbf").isNumber() || claims.get("nbf").asLong() - clockSkewSeconds > now)) {
+            throw new SecurityPortalException("JWT is not valid yet");
+        }
+
+        return claims;
+    }
+
+    /**
+     * Expiry of a token that is structured as a JWT, in epoch milliseconds, without verifying it. Only ever use it to
+     * trust a token less.
+     *
+     * @return {@code null} when the token is no JWT or carries no expiry
+     */
+    public Long getUnverifiedExpiry(String token) {
+        int first = token == null ? -1 : token.indexOf('.');
+        int second = first < 0 ? -1 : token.indexOf('.', first + 1);
+        if (second < 0 || token.indexOf('.', second + 1) >= 0) {
+            return null;
+        }
+        try {
+            JsonNode claims = decode(token.substring(first + 1, second));
+            JsonNode exp = claims == null ? null : claims.path("exp");
+            if (exp == null || !exp.canConvertToLong() || exp.asLong() > Long.MAX_VALUE / 1000) {
+                return null;
+            }
+            return exp.asLong() * 1000;
+        } catch (SecurityPortalException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Key id in the header of a token that is structured as a JWT, without verifying it. Only ever use it to pick the
+     * key the token is then verified with.
+     *
+     * @return {@code null} when the token is no JWT or names no key
+     */
+    public String getUnverifiedKeyId(String token) {
+        int first = token == null ? -1 : token.indexOf('.');
+        if (first < 0) {
+            return null;
+        }
+        try {
+            JsonNode header = decode(token.substring(0, first));
+            JsonNode kid = header == null ? null : header.path("kid");
+            return kid != null && kid.isTextual() ? kid.textValue() : null;
+        } catch (SecurityPortalException e) {
+            return null;
+        }
+    }
+
+    private static String[] split(String jwt) throws SecurityPortalException {
+        String[] parts = jwt == null ? new String[0] : jwt.split("\\.", -1);
+        if (parts.length != 3) {
+            throw new SecurityPortalException("Token is not a signed JWT");
+        }
+        return parts;
+    }
+
+    private JsonNode decode(String part) throws SecurityPortalException {
+        try {
+            return mapper.readTree(Base64.getUrlDecoder().decode(part));
+        } catch (IOException | IllegalArgumentException e) {
+            throw new SecurityPortalException("Malformed JWT");
+        }
+    }
+
+    // Header fields and claims are checked as JSON strings, any other type is rejected rather than coerced into one
+    private static String getText(JsonNode node, String field, boolean required) throws SecurityPortalException {
+        JsonNode value = node.path(field);
+        if (value.isTextual()) {
+            return value.textValue();
+        }
+        if (!required && value.isMissingNode()) {
+            return null;
+        }
+        throw new SecurityPortalException("Malformed JWT " + field);
+    }
+
+    private static boolean hasAudience(JsonNode aud, String audience) throws SecurityPortalException {
+        if (aud.isArray()) {
+            boolean found = false;
+            for (JsonNode value : aud) {
+                if (!value.isTextual()) {
+                    throw new SecurityPortalException("Malformed JWT aud");
+                }
+                found |= audience.equals(value.textValue());
+            }
+            return found;
+        }
+        return aud.isTextual() && audience.equals(aud.textValue());
+    }
+
+    private static void verifySignature(String algorithm, PublicKey key, String[] parts) throws SecurityPortalException {
+        try {
+            byte[] signature = Base64.getUrlDecoder().decode(parts[2]);
+            Signature verifier;
+            switch (algorithm) {
+                case "RS256":
+                    verifier = Signature.getInstance("SHA256withRSA");
+                    break;
+                case "RS384":
+                    verifier = Signature.getInstance("SHA384withRSA");
+                    break;
+                case "RS512":
+                    verifier = Signature.getInstance("SHA512withRSA");
+                    break;
+                case "ES256":
+                    verifier = Signature.getInstance("SHA256withECDSA");
+                    signature = toDer(signature);
+                    break;
+                case "ES384":
+                    verifier = Signature.getInstance("SHA384withECDSA");
+                    signature = toDer(signature);
+                    break;
+                case "ES512":
+                    verifier = Signature.getInstance("SHA512withECDSA");
+                    signature = toDer(signature);
+                    break;
+                default:
+                    // Never accept unsigned or symmetric tokens
+                    throw new SecurityPortalException("Unsupported JWT algorithm " + algorithm);
+            }
+
+            verifier.initVerify(key);
+            verifier.update((parts[0] + "." + parts[1]).getBytes(StandardCharsets.US_ASCII));
+            if (!verifier.verify(signature)) {
+                throw new SecurityPortalException("Invalid JWT signature");
+            }
+        } catch (GeneralSecurityException | IllegalArgumentException e) {
+            throw new SecurityPortalException("Invalid JWT signature");
+        }
+    }
+
+    // JWS carries ECDSA signatures as R || S, the JDK expects an ASN.1 SEQUENCE of two INTEGERs
+    private static byte[] toDer(byte[] signature) {
+        int half = signature.length / 2;
+        byte[] r = toDerInteger(Arrays.copyOfRange(signature, 0, half));
+        byte[] s = toDerInteger(Arrays.copyOfRange(signature, half, signature.length));
+
+        int length = 2 + r.length + 2 + s.length;
+        byte[] lengthBytes = length < 128 ? new byte[] { (byte) length } : new byte[] { (byte) 0x81, (byte) length };
+
+        byte[] der = new byte[1 + lengthBytes.length + length];
+        int offset = 0;
+        der[offset++] = 0x30;
+        System.arraycopy(lengthBytes, 0, der, offset, lengthBytes.length);
+        offset += lengthBytes.length;
+        der[offset++] = 0x02;
+        der[offset++] = (byte) r.length;
+        System.arraycopy(r, 0, der, offset, r.length);
+        offset += r.length;
+        der[offset++] = 0x02;
+        der[offset++] = (byte) s.length;
+        System.arraycopy(s, 0, der, offset, s.length);
+        return der;
+    }
+
+    private static byte[] toDerInteger(byte[] value) {
+        int start = 0;
+        while (start < value.length - 1 && value[start] == 0) {
+            start++;
+        }
+        boolean padded = (value[start] & 0x80) != 0;
+        byte[] integer = new byte[value.length - start + (padded ? 1 : 0)];
+        System.arraycopy(value, start, integer, padded ? 1 : 0, value.length - start);
+        return integer;
+    }
+}
@@ -19,6 +19,9 @@ public class OidcMetadata {
     @JsonProperty("end_session_endpoint")
     private String endSessionEndpoint;
 
+    @JsonProperty("jwks_uri")
+    private String jwksUri;
+
     public String getIssuer() {
         return issuer;
     }
@@ -58,4 +61,12 @@ public class OidcMetadata {
     public void setEndSessionEndpoint(String endSessionEndpoint) {
         this.endSessionEndpoint = endSessionEndpoint;
     }
+
+    public String getJwksUri() {
+        return jwksUri;
+    }
+
+    public void setJwksUri(String jwksUri) {
+        this.jwksUri = jwksUri;
+    }
 }
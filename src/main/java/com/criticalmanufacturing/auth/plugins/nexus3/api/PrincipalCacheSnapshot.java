@@ -0,0 +1,147 @@
+package com.criticalmanufacturing.auth.plugins.nexus3.api;
+
+import com.criticalmanufacturing.auth.plugins.nexus3.Principal;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiFunction;
+
+/**
+ * On-disk copy of the principal cache, so a restarted Nexus does not send every client back to the Security Portal
+ * at once. Entries are keyed by token digest, raw tokens are never written.
+ */
+final class PrincipalCacheSnapshot {
+
+    private static final int MAGIC = 0x434d5043;
+    private static final int VERSION = 1;
+
+    private final Path file;
+
+    PrincipalCacheSnapshot(Path file) {
+        this.file = file;
+    }
+
+    Path getFile() {
+        return file;
+    }
+
+    /**
+     * Replaces the snapshot with the given entries, leaving out those already expired and those without a username.
+     */
+    void write(Map<TokenDigest, CachedPrincipal> entries, long now) throws IOException {
+        Path directory = file.toAbsolutePath().getParent();
+        Files.createDirectories(directory);
+
+        Path temporary = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+        try {
+            if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+                Files.setPosixFilePermissions(temporary, PosixFilePermissions.fromString("rw-------"));
+            }
+
+            List<Map.Entry<TokenDigest, CachedPrincipal>> live = new ArrayList<>(entries.size());
+            for (Map.Entry<TokenDigest, CachedPrincipal> entry : entries.entrySet()) {
+                if (!entry.getValue().isExpired(now) && isWritable(entry.getValue().getPrincipal())) {
+                    live.add(entry);
+                }
+            }
+
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(live.size());
+                for (Map.Entry<TokenDigest, CachedPrincipal> entry : live) {
+                    CachedPrincipal cached = entry.getValue();
+                    out.write(entry.getKey().toBytes());
+                    out.writeLong(cached.getCreatedAt());
+                    out.writeLong(cached.getExpiresAt());
+                    out.writeUTF(cached.getPrincipal().getUsername());
+                    Collection<String> roles = cached.getPrincipal().getRoles();
+                    out.writeInt(roles.size());
+                    for (String role : roles) {
+                        out.writeUTF(role);
+                    }
+                }
+            }
+
+            // Readers only ever see a complete snapshot
+            try {
+                Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    // One principal the format cannot hold must not cost the whole snapshot
+    private static boolean isWritable(Principal principal) {
+        if (principal.getUsername() == null || principal.getRoles() == null) {
+            return false;
+        }
+        for (String role : principal.getRoles()) {
+            if (role == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads the entries still valid at {@code now}, or none when there is no snapshot yet.
+     *
+     * @param principalFactory builds the principal from its username and role names
+     */
+    Map<TokenDigest, CachedPrincipal> read(long now, BiFunction<String, Collection<String>, Principal> principalFactory) throws IOException {
+        Map<TokenDigest, CachedPrincipal> entries = new HashMap<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a principal cache snapshot: " + file);
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported principal cache snapshot version " + version + ": " + file);
+            }
+
+            int count = in.readInt();
+            byte[] digest = new byte[32];
+            for (int i = 0; i < count; i++) {
+                in.readFully(digest);
+                long createdAt = in.readLong();
+                long expiresAt = in.readLong();
+                String username = in.readUTF();
+                int roleCount = in.readInt();
+                if (roleCount < 0) {
+                    throw new IOException("Corrupt principal cache snapshot: " + file);
+                }
+                List<String> roles = new ArrayList<>(Math.min(roleCount, 1024));
+                for (int j = 0; j < roleCount; j++) {
+                    roles.add(in.readUTF());
+                }
+
+                if (now < expiresAt) {
+                    entries.put(TokenDigest.fromBytes(digest),
+                            new CachedPrincipal(principalFactory.apply(username, roles), createdAt, expiresAt));
+                }
+            }
+        } catch (NoSuchFileException e) {
+            // Nothing saved yet
+        }
+        return entries;
+    }
+}
@@ -0,0 +1,109 @@
+package com.criticalmanufacturing.auth.plugins.nexus3.api;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bloom filter of recently rejected token digests, in a fixed amount of memory however many distinct tokens are
+ * rejected. It never forgets a rejected token before the next two rotations but may, with the configured false
+ * positive probability, report a token that was never rejected.
+ * <p>
+ * Rejections go into the current generation, lookups check both. Each rotation drops the previous generation, so a
+ * token is remembered for one to two rotation intervals.
+ */
+final class RejectedTokenFilter {
+
+    private final int bitCount;
+    private final int hashCount;
+
+    private volatile Generations generations;
+
+    RejectedTokenFilter(long expectedInsertions, double falsePositiveProbability) {
+        if (expectedInsertions <= 0) {
+            throw new IllegalArgumentException("Expected insertions must be positive, got " + expectedInsertions);
+        }
+        if (falsePositiveProbability <= 0 || falsePositiveProbability >= 1) {
+            throw new IllegalArgumentException("False positive probability must be between 0 and 1, got " + falsePositiveProbability);
+        }
+
+        // Optimal size and number of hashes for the expected insertions of one generation
+        long bits = (long) Math.ceil(-expectedInsertions * Math.log(falsePositiveProbability) / (Math.log(2) * Math.log(2)));
+        bitCount = (int) Math.min(Math.max(bits, Long.SIZE), (long) Integer.MAX_VALUE - Long.SIZE + 1) & -Long.SIZE;
+        hashCount = Math.max(1, (int) Math.round((double) bitCount / expectedInsertions * Math.log(2)));
+        generations = new Generations(newBits(), newBits());
+    }
+
+    private AtomicLongArray newBits() {
+        return new AtomicLongArray(bitCount / Long.SIZE);
+    }
+
+    int getBitCount() {
+        return bitCount;
+    }
+
+    int getHashCount() {
+        return hashCount;
+    }
+
+    void put(TokenDigest token) {
+        AtomicLongArray bits = generations.current;
+        long hash1 = token.hashCode();
+        long hash2 = token.secondaryHash();
+        for (int i = 0; i < hashCount; i++) {
+            int index = index(hash1, hash2, i);
+            long mask = 1L << index;
+            int word = index >>> 6;
+            long value = bits.get(word);
+            // Most bits are already set once the filter fills up, spare those the compare-and-set
+            while ((value & mask) == 0 && !bits.compareAndSet(word, value, value | mask)) {
+                value = bits.get(word);
+            }
+        }
+    }
+
+    boolean mightContain(TokenDigest token) {
+        Generations current = generations;
+        return mightContain(current.current, token) || mightContain(current.previous, token);
+    }
+
+    private boolean mightContain(AtomicLongArray bits, TokenDigest token) {
+        long hash1 = token.hashCode();
+        long hash2 = token.secondaryHash();
+        for (int i = 0; i < hashCount; i++) {
+            int index = index(hash1, hash2, i);
+            if ((bits.get(index >>> 6) & (1L << index)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Double hashing, the digest is uniformly distributed already
+    private int index(long hash1, long hash2, int i) {
+        return (int) (((hash1 + i * hash2) & Long.MAX_VALUE) % bitCount);
+    }
+
+    /**
+     * Starts a new generation and forgets the tokens rejected before the previous rotation.
+     */
+    synchronized void rotate() {
+        generations = new Generations(newBits(), generations.current);
+    }
+
+    /**
+     * Forgets every rejected token. A Bloom filter cannot forget a single one.
+     */
+    synchronized void clear() {
+        generations = new Generations(newBits(), newBits());
+    }
+
+    private static final class Generations {
+
+        private final AtomicLongArray current;
+        private final AtomicLongArray previous;
+
+        private Generations(AtomicLongArray current, AtomicLongArray previous) {
+            this.current = current;
+            this.previous = previous;
+        }
+    }
+}
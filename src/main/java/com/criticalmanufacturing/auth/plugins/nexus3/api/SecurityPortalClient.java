@@ -2,47 +2,202 @@ package com.criticalmanufacturing.auth.plugins.nexus3.api;
 
 import com.criticalmanufacturing.auth.plugins.nexus3.AuthenticationException;
 import com.criticalmanufacturing.auth.plugins.nexus3.Principal;
+import com.criticalmanufacturing.auth.plugins.nexus3.RoleSets;
 import com.criticalmanufacturing.auth.plugins.nexus3.SecurityPortalException;
-import com.fasterxml.jackson.databind.JavaType;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Timer;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalListener;
+import org.apache.http.Header;
 import org.apache.http.HttpHeaders;
 import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
 import org.apache.http.NameValuePair;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.entity.UrlEncodedFormEntity;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
 import org.apache.http.impl.client.HttpClientBuilder;
 import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.apache.http.message.BasicNameValuePair;
+import org.apache.http.pool.PoolStats;
+import org.sonatype.nexus.datastore.api.DataStore;
+import org.sonatype.nexus.datastore.api.DataStoreManager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.PreDestroy;
 import javax.inject.Inject;
 import javax.inject.Named;
+import javax.inject.Provider;
 import javax.inject.Singleton;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpRequest;
+import java.nio.charset.StandardCharsets;
+import java.security.PublicKey;
+import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.TimeUnit;
-import java.util.stream.Collectors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 @Singleton
 @Named("SecurityPortalClient")
 public class SecurityPortalClient {
     private static final Logger LOGGER = LoggerFactory.getLogger(SecurityPortalClient.class);
 
+    private static final long JWKS_MIN_REFETCH_INTERVAL_MILLIS = 30000;
+
+    // Missing from HttpStatus, which predates RFC 6585
+    private static final int SC_TOO_MANY_REQUESTS = 429;
+    private static final String INVALID_GRANT = "invalid_grant";
+
+    // Settings applied as soon as they change, grouped by what they rebuild
+    private static final Set<String> PER_LOGIN_KEYS = new HashSet<>(Arrays.asList(
+            SecurityPortalConfiguration.CLIENT_ID_KEY, SecurityPortalConfiguration.LOGIN_DEADLINE,
+            SecurityPortalConfiguration.JWT_LOCAL_VALIDATION_KEY, SecurityPortalConfiguration.JWT_AUDIENCE_KEY,
+            SecurityPortalConfiguration.JWT_ROLES_CLAIM_KEY, SecurityPortalConfiguration.JWT_JWKS_TTL_KEY,
+            SecurityPortalConfiguration.PRINCIPAL_CACHE_TOKEN_LIFETIME_KEY, SecurityPortalConfiguration.TOKEN_PREFLIGHT_ENABLED_KEY,
+            SecurityPortalConfiguration.TOKEN_PREFLIGHT_MIN_LENGTH_KEY, SecurityPortalConfiguration.TOKEN_PREFLIGHT_MAX_LENGTH_KEY,
+            SecurityPortalConfiguration.TOKEN_PREFLIGHT_PATTERN_KEY));
+    private static final Set<String> REQUEST_TIMEOUT_KEYS = new HashSet<>(Arrays.asList(
+            SecurityPortalConfiguration.REQUEST_CONNECT_TIMEOUT, SecurityPortalConfiguration.REQUEST_CONNECTION_REQUEST_TIMEOUT,
+            SecurityPortalConfiguration.REQUEST_SOCKET_TIMEOUT));
+    private static final Set<String> CONNECTION_POOL_SIZE_KEYS = new HashSet<>(Arrays.asList(
+            SecurityPortalConfiguration.CONNECTION_POOL_MAX_TOTAL, SecurityPortalConfiguration.CONNECTION_POOL_MAX_PER_ROUTE));
+    private static final Set<String> PRINCIPAL_CACHE_KEYS = new HashSet<>(Arrays.asList(
+            SecurityPortalConfiguration.PRINCIPAL_CACHE_TTL_KEY, SecurityPortalConfiguration.PRINCIPAL_CACHE_REFRESH_RATIO_KEY,
+            SecurityPortalConfiguration.PRINCIPAL_CACHE_STALE_WINDOW_KEY, SecurityPortalConfiguration.PRINCIPAL_CACHE_MAX_SIZE_KEY,
+            SecurityPortalConfiguration.PRINCIPAL_CACHE_MAX_WEIGHT_KEY, SecurityPortalConfiguration.SHARED_CACHE_NEAR_TTL_KEY));
+    private static final Set<String> ERROR_CACHE_KEYS = new HashSet<>(Arrays.asList(
+            SecurityPortalConfiguration.ERROR_CACHE_TTL_KEY, SecurityPortalConfiguration.ERROR_CACHE_MAX_SIZE_KEY));
+    private static final Set<String> TRANSIENT_BACKOFF_KEYS = new HashSet<>(Arrays.asList(
+            SecurityPortalConfiguration.TRANSIENT_ERROR_BACKOFF_INITIAL_KEY, SecurityPortalConfiguration.TRANSIENT_ERROR_BACKOFF_MAX_KEY));
+
     private HttpClient client;
+    private volatile RequestConfig requestConfig;
+    private PoolingHttpClientConnectionManager connectionManager;
     private SecurityPortalConfiguration configuration;
-    private OidcMetadata oidcMetadata;
+    private final Object oidcMetadataLock = new Object();
+    private volatile OidcMetadata oidcMetadata;
+    private String oidcMetadataETag;
+    private String oidcMetadataLastModified;
 
     private ObjectMapper mapper;
-    private Cache<String, Principal> tokenToPrincipalCache;
+    private ObjectReader oidcMetadataReader;
+    private ObjectReader tokenResponseReader;
+    private volatile Cache<TokenDigest, CachedPrincipal> tokenToPrincipalCache;
+
+    private volatile Cache<TokenDigest, Integer> tokenToErrorCodeCache;
+
+    // Rejected tokens in constant memory, still turned away once evicted from the error cache, null unless enabled
+    private RejectedTokenFilter rejectedTokenFilter;
+
+    // Rejected tokens per client address, or per username when so configured, within the throttle window. Null when
+    // throttling is disabled
+    private Cache<String, AtomicInteger> throttleKeyToFailureCountCache;
+    private int loginThrottleMaxFailures;
+    private boolean loginThrottleByUsername;
+
+    // Tokens whose last login failed for reasons unrelated to them, kept well past their backoff to count attempts
+    private Cache<TokenDigest, TransientFailure> tokenToTransientFailureCache;
+    private volatile long transientBackoffInitialMillis;
+    private volatile long transientBackoffMaxMillis;
+
+    // Principals kept past their TTL to be served while the Security Portal is unavailable, null when disabled
+    private volatile Cache<TokenDigest, CachedPrincipal> tokenToLastKnownPrincipalCache;
+
+    // Held shared by whatever writes to the principal caches, and exclusively while a reload swaps them
+    private final ReadWriteLock principalCacheLock = new ReentrantReadWriteLock();
+
+    private CircuitBreaker circuitBreaker;
+
+    // Non-blocking transport for the login calls, null unless request.async is enabled
+    private AsyncSecurityPortalTransport asyncTransport;
+
+    private SecurityPortalMetrics metrics;
+
+    private JwtValidator jwtValidator;
+    private final Object jsonWebKeySetLock = new Object();
+    private volatile JsonWebKeySet jsonWebKeySet;
+    private volatile long jsonWebKeySetFetchedAt;
+
+    // Runs independent Security Portal calls of a single login side by side
+    private ExecutorService executor;
+
+    // Runs periodic background work such as refreshing the OIDC metadata
+    private ScheduledExecutorService scheduler;
+
+    // Aborts login calls still running when their login deadline passes
+    private ScheduledThreadPoolExecutor deadlineScheduler;
 
-    private Cache<String, Integer> tokenToErrorCodeCache;
+    // Runs refresh-ahead of cached principals, never on the request thread
+    private ThreadPoolExecutor refreshExecutor;
+
+    // Cached principals older than this are refreshed in the background, 0 disables refresh-ahead
+    private volatile long principalRefreshAfterMillis;
+
+    private volatile long principalCacheTtlMillis;
+
+    // Saves the principal cache across restarts, null unless enabled
+    private PrincipalCacheSnapshot principalCacheSnapshot;
+
+    // Shares principals and rejections with the other Nexus nodes, null when this node caches on its own
+    private SharedAuthenticationCache sharedCache;
+
+    // Nexus's own database, where the jdbc shared cache lives. Null outside Nexus
+    private Provider<DataStoreManager> dataStoreManager;
+
+    // With a shared cache, how long this node serves a principal before looking at the shared cache again
+    private volatile long sharedCacheNearTtlMillis;
+
+    // Tokens with a refresh-ahead currently queued or running
+    private final Set<TokenDigest> refreshingTokens = ConcurrentHashMap.newKeySet();
+
+    // Notified whenever a principal leaves the principal cache
+    private final List<Consumer<Principal>> principalRemovalListeners = new CopyOnWriteArrayList<>();
+
+    // Cached tokens per username, so a user's entries can be dropped without scanning the principal cache
+    private final ConcurrentMap<String, Set<TokenDigest>> usernameToTokens = new ConcurrentHashMap<>();
+
+    // Logins currently being resolved against the Security Portal, so concurrent requests for the same token share one
+    private final ConcurrentMap<TokenDigest, CompletableFuture<Principal>> inFlightLogins = new ConcurrentHashMap<>();
 
     public SecurityPortalClient() {
         init();
@@ -55,145 +210,671 @@ public class SecurityPortalClient {
         init();
     }
 
-    @Inject
+    public SecurityPortalClient(HttpClient client, SecurityPortalConfiguration configuration, SecurityPortalMetrics metrics) {
+        this.client = client;
+        this.configuration = configuration;
+        this.metrics = metrics;
+
+        init();
+    }
+
+    public SecurityPortalClient(HttpClient client, SecurityPortalConfiguration configuration, SecurityPortalMetrics metrics,
+                                SharedAuthenticationCache sharedCache) {
+        this.client = client;
+        this.configuration = configuration;
+        this.metrics = metrics;
+        this.sharedCache = sharedCache;
+
+        init();
+    }
+
     public SecurityPortalClient(SecurityPortalConfiguration configuration) {
         this.configuration = configuration;
         init();
     }
 
+    @Inject
+    public SecurityPortalClient(SecurityPortalConfiguration configuration, Provider<DataStoreManager> dataStoreManager) {
+        this.configuration = configuration;
+        this.dataStoreManager = dataStoreManager;
+        init();
+    }
+
     private void init() {
         LOGGER.info("Initializing Security Portal Client...");
+        requestConfig = buildRequestConfig();
+
         if (this.client == null) {
 
-            RequestConfig config = RequestConfig.custom()
-                    .setConnectTimeout(configuration.getRequestConnectTimeout())
-                    .setConnectionRequestTimeout(configuration.getRequestConnectionRequestTimeout())
-                    .setSocketTimeout(configuration.getRequestSocketTimeout())
-                    .build();
+            connectionManager = new PoolingHttpClientConnectionManager(60, TimeUnit.SECONDS);
+            connectionManager.setMaxTotal(configuration.getConnectionPoolMaxTotal());
+            connectionManager.setDefaultMaxPerRoute(configuration.getConnectionPoolMaxPerRoute());
+            connectionManager.setValidateAfterInactivity(configuration.getConnectionPoolValidateAfterInactivity());
 
-            PoolingHttpClientConnectionManager manager = new PoolingHttpClientConnectionManager(60, TimeUnit.SECONDS);
+            LOGGER.info("Security Portal connection pool: {} connections in total, {} per route",
+                    connectionManager.getMaxTotal(), connectionManager.getDefaultMaxPerRoute());
 
             client = HttpClientBuilder
                     .create()
-                    .setDefaultRequestConfig(config)
-                    .setConnectionManager(manager)
+                    .setDefaultRequestConfig(requestConfig)
+                    .setConnectionManager(connectionManager)
+                    .setKeepAliveStrategy(keepAliveStrategy(configuration.getConnectionKeepAlive()))
+                    .evictExpiredConnections()
+                    .evictIdleConnections(configuration.getConnectionPoolIdleTimeout(), TimeUnit.MILLISECONDS)
                     .build();
         }
 
         mapper = new ObjectMapper();
+        oidcMetadataReader = mapper.readerFor(OidcMetadata.class);
+        tokenResponseReader = mapper.readerFor(SecurityPortalTokenResponse.class);
+        jwtValidator = new JwtValidator(mapper, configuration.getJwtClockSkew());
+
+        // Saturation makes the caller run the task itself instead of queueing behind other logins
+        int parallelism = configuration.getRequestParallelism();
+        ThreadPoolExecutor threadPool = new ThreadPoolExecutor(parallelism, parallelism, 60, TimeUnit.SECONDS,
+                new SynchronousQueue<>(), daemonThreadFactory("security-portal-client"), new ThreadPoolExecutor.CallerRunsPolicy());
+        threadPool.allowCoreThreadTimeOut(true);
+        executor = threadPool;
+
+        deadlineScheduler = new ScheduledThreadPoolExecutor(1, daemonThreadFactory("security-portal-deadline"));
+        // Nearly every abort is cancelled once its call completes, don't keep them queued until they would have fired
+        deadlineScheduler.setRemoveOnCancelPolicy(true);
+
+        refreshExecutor = new ThreadPoolExecutor(2, 2, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(1000),
+                daemonThreadFactory("security-portal-refresh"));
+        refreshExecutor.allowCoreThreadTimeOut(true);
+        principalCacheTtlMillis = configuration.getPrincipalCacheTtl().toMillis();
+        principalRefreshAfterMillis = (long) (principalCacheTtlMillis * configuration.getPrincipalCacheRefreshRatio());
+        tokenToPrincipalCache = buildPrincipalCache();
+        tokenToLastKnownPrincipalCache = buildLastKnownPrincipalCache();
+
+        circuitBreaker = new CircuitBreaker(configuration.getCircuitBreakerFailureThreshold(),
+                configuration.getCircuitBreakerOpenDuration().toMillis());
+
+        tokenToErrorCodeCache = buildErrorCodeCache();
+
+        if (configuration.isErrorFilterEnabled()) {
+            rejectedTokenFilter = new RejectedTokenFilter(configuration.getErrorFilterExpectedInsertions(),
+                    configuration.getErrorFilterFalsePositiveProbability());
+        }
 
-        tokenToPrincipalCache = CacheBuilder.newBuilder()
-                .expireAfterWrite(configuration.getPrincipalCacheTtl().toMillis(), TimeUnit.MILLISECONDS)
+        loginThrottleMaxFailures = configuration.getLoginThrottleMaxFailures();
+        loginThrottleByUsername = configuration.isLoginThrottleByUsername();
+        if (loginThrottleMaxFailures > 0) {
+            // Written once per window, so the count starts over when the window of the first failure ends
+            throttleKeyToFailureCountCache = CacheBuilder.newBuilder()
+                    .expireAfterWrite(configuration.getLoginThrottleWindow().toMillis(), TimeUnit.MILLISECONDS)
+                    .maximumSize(configuration.getErrorCacheMaxSize())
+                    .build();
+        }
+
+        transientBackoffInitialMillis = configuration.getTransientErrorBackoffInitial().toMillis();
+        transientBackoffMaxMillis = configuration.getTransientErrorBackoffMax().toMillis();
+        tokenToTransientFailureCache = CacheBuilder.newBuilder()
+                .expireAfterWrite(2 * transientBackoffMaxMillis, TimeUnit.MILLISECONDS)
+                .maximumSize(configuration.getErrorCacheMaxSize())
                 .build();
 
-        tokenToErrorCodeCache = CacheBuilder.newBuilder()
-                .expireAfterWrite(configuration.getPrincipalCacheTtl().toMillis(), TimeUnit.MILLISECONDS)
+        if (metrics == null) {
+            metrics = new SecurityPortalMetrics();
+        }
+        registerGauges();
+
+        if (sharedCache == null) {
+            sharedCache = createSharedCache();
+        }
+        sharedCacheNearTtlMillis = Math.min(configuration.getSharedCacheNearTtl().toMillis(), principalCacheTtlMillis);
+
+        if (configuration.isRequestAsync()) {
+            asyncTransport = new AsyncSecurityPortalTransport(configuration, circuitBreaker, metrics,
+                    daemonThreadFactory("security-portal-async"));
+        }
+
+        // Background work starts last, once everything it relies on is in place
+        scheduler = Executors.newSingleThreadScheduledExecutor(daemonThreadFactory("security-portal-scheduler"));
+        if (rejectedTokenFilter != null) {
+            long errorCacheTtlMillis = configuration.getErrorCacheTtl().toMillis();
+            scheduler.scheduleWithFixedDelay(rejectedTokenFilter::rotate, errorCacheTtlMillis, errorCacheTtlMillis, TimeUnit.MILLISECONDS);
+        }
+        // Principals cached for less than the TTL would otherwise stay in memory until it ends
+        long purgeIntervalMillis = Math.min(principalCacheTtlMillis, TimeUnit.MINUTES.toMillis(1));
+        scheduler.scheduleWithFixedDelay(this::purgeExpiredPrincipals, purgeIntervalMillis, purgeIntervalMillis, TimeUnit.MILLISECONDS);
+        if (sharedCache != null) {
+            scheduler.scheduleWithFixedDelay(this::purgeSharedCache, principalCacheTtlMillis, principalCacheTtlMillis, TimeUnit.MILLISECONDS);
+        }
+        if (configuration.isPrincipalCacheSnapshotEnabled()) {
+            principalCacheSnapshot = new PrincipalCacheSnapshot(configuration.getPrincipalCacheSnapshotFile());
+            // Restored before the first save, which would otherwise overwrite the snapshot with an empty cache
+            scheduler.execute(this::restorePrincipalCache);
+            long snapshotIntervalMillis = configuration.getPrincipalCacheSnapshotInterval().toMillis();
+            scheduler.scheduleWithFixedDelay(this::savePrincipalCache, snapshotIntervalMillis, snapshotIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+        if (configuration.isMetadataEagerLoad()) {
+            scheduler.execute(this::refreshOidcMetadata);
+        }
+        Duration metadataRefreshInterval = configuration.getMetadataRefreshInterval();
+        if (!metadataRefreshInterval.isZero() && !metadataRefreshInterval.isNegative()) {
+            scheduler.scheduleWithFixedDelay(() -> {
+                // Nothing to revalidate until the first login or the eager load fetched it
+                if (oidcMetadata != null) {
+                    refreshOidcMetadata();
+                }
+            }, metadataRefreshInterval.toMillis(), metadataRefreshInterval.toMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        configuration.addChangeListener(this::applyConfigurationChange);
+    }
+
+    private RequestConfig buildRequestConfig() {
+        return RequestConfig.custom()
+                .setConnectTimeout(configuration.getRequestConnectTimeout())
+                .setConnectionRequestTimeout(configuration.getRequestConnectionRequestTimeout())
+                .setSocketTimeout(configuration.getRequestSocketTimeout())
+                .build();
+    }
+
+    private Cache<TokenDigest, CachedPrincipal> buildPrincipalCache() {
+        CacheBuilder<TokenDigest, CachedPrincipal> principalCacheBuilder = CacheBuilder.newBuilder()
+                .expireAfterWrite(principalCacheTtlMillis, TimeUnit.MILLISECONDS)
+                .recordStats()
+                .removalListener((RemovalListener<TokenDigest, CachedPrincipal>) removal -> {
+                    // A replacement keeps the token cached, for the same user
+                    if (removal.getCause() != RemovalCause.REPLACED) {
+                        unindexToken(removal.getValue().getPrincipal().getUsername(), removal.getKey());
+                    }
+                    // Covers expiry, eviction and replacement by a refreshed principal alike
+                    principalRemovalListeners.forEach(listener -> listener.accept(removal.getValue().getPrincipal()));
+                });
+        if (configuration.getPrincipalCacheMaxWeight() > 0) {
+            return principalCacheBuilder
+                    .maximumWeight(configuration.getPrincipalCacheMaxWeight())
+                    .weigher((token, cached) -> 1 + cached.getPrincipal().getRoles().size())
+                    .build();
+        }
+        return principalCacheBuilder
+                .maximumSize(configuration.getPrincipalCacheMaxSize())
+                .build();
+    }
+
+    private Cache<TokenDigest, CachedPrincipal> buildLastKnownPrincipalCache() {
+        Duration staleWindow = configuration.getPrincipalCacheStaleWindow();
+        if (staleWindow.isZero()) {
+            return null;
+        }
+        return CacheBuilder.newBuilder()
+                .expireAfterWrite(principalCacheTtlMillis + staleWindow.toMillis(), TimeUnit.MILLISECONDS)
+                .maximumSize(configuration.getPrincipalCacheMaxSize())
+                .build();
+    }
+
+    private Cache<TokenDigest, Integer> buildErrorCodeCache() {
+        return CacheBuilder.newBuilder()
+                .expireAfterWrite(configuration.getErrorCacheTtl().toMillis(), TimeUnit.MILLISECONDS)
+                .maximumSize(configuration.getErrorCacheMaxSize())
+                .recordStats()
                 .build();
     }
 
-    private <T> T serializeObject(HttpResponse response, Class<T> clazz) throws AuthenticationException {
-        try
-        {
-            InputStreamReader reader = new InputStreamReader(response.getEntity().getContent());
-            JavaType javaType = mapper.getTypeFactory()
-                    .constructType(clazz);
-            return mapper.readValue(reader, javaType);
+    /**
+     * Applies the changed settings that do not need a restart, keeping whatever is cached when the new settings
+     * allow it. Runs on the thread that reloaded the configuration.
+     */
+    private synchronized void applyConfigurationChange(Set<String> changedKeys) {
+        Set<String> pending = new TreeSet<>(changedKeys);
+
+        // Read on every login, already in effect
+        pending.removeAll(PER_LOGIN_KEYS);
+
+        if (pending.removeAll(REQUEST_TIMEOUT_KEYS)) {
+            requestConfig = buildRequestConfig();
+        }
+        if (pending.removeAll(CONNECTION_POOL_SIZE_KEYS) && connectionManager != null) {
+            connectionManager.setMaxTotal(configuration.getConnectionPoolMaxTotal());
+            connectionManager.setDefaultMaxPerRoute(configuration.getConnectionPoolMaxPerRoute());
+            LOGGER.info("Security Portal connection pool: {} connections in total, {} per route",
+                    connectionManager.getMaxTotal(), connectionManager.getDefaultMaxPerRoute());
+        }
+        if (pending.removeAll(PRINCIPAL_CACHE_KEYS)) {
+            rebuildPrincipalCaches();
+        }
+        if (pending.removeAll(ERROR_CACHE_KEYS)) {
+            Cache<TokenDigest, Integer> previous = tokenToErrorCodeCache;
+            Cache<TokenDigest, Integer> rebuilt = buildErrorCodeCache();
+            // Carried over rejections start their TTL again, rather remembered a while longer than forgotten
+            rebuilt.putAll(previous.asMap());
+            tokenToErrorCodeCache = rebuilt;
+        }
+        if (pending.removeAll(TRANSIENT_BACKOFF_KEYS)) {
+            transientBackoffInitialMillis = configuration.getTransientErrorBackoffInitial().toMillis();
+            transientBackoffMaxMillis = configuration.getTransientErrorBackoffMax().toMillis();
+        }
+        if (pending.remove(SecurityPortalConfiguration.METADATA_URL_KEY)) {
+            forgetOidcMetadata();
+        }
+
+        if (!pending.isEmpty()) {
+            LOGGER.warn("Changes to {} take effect once Nexus restarts", pending);
+        }
+    }
+
+    // Carries over every cached principal the new TTL and limits still allow. Logins caching a principal meanwhile
+    // wait for the swap, so the new caches and the username index never disagree
+    private void rebuildPrincipalCaches() {
+        principalCacheLock.writeLock().lock();
+        try {
+            swapPrincipalCaches();
+        } finally {
+            principalCacheLock.writeLock().unlock();
+        }
+    }
+
+    private void swapPrincipalCaches() {
+        principalCacheTtlMillis = configuration.getPrincipalCacheTtl().toMillis();
+        principalRefreshAfterMillis = (long) (principalCacheTtlMillis * configuration.getPrincipalCacheRefreshRatio());
+        sharedCacheNearTtlMillis = Math.min(configuration.getSharedCacheNearTtl().toMillis(), principalCacheTtlMillis);
+
+        long now = System.currentTimeMillis();
+        Cache<TokenDigest, CachedPrincipal> previous = tokenToPrincipalCache;
+        Cache<TokenDigest, CachedPrincipal> rebuilt = buildPrincipalCache();
+        previous.asMap().forEach((cacheKey, cached) -> {
+            long expiresAt = Math.min(cached.getExpiresAt(), cached.getCreatedAt() + principalCacheTtlMillis);
+            if (now < expiresAt) {
+                rebuilt.put(cacheKey, new CachedPrincipal(cached.getPrincipal(), cached.getCreatedAt(), expiresAt));
+            } else {
+                unindexToken(cached.getPrincipal().getUsername(), cacheKey);
+                principalRemovalListeners.forEach(listener -> listener.accept(cached.getPrincipal()));
+            }
+        });
+        tokenToPrincipalCache = rebuilt;
+
+        Cache<TokenDigest, CachedPrincipal> previousLastKnown = tokenToLastKnownPrincipalCache;
+        Cache<TokenDigest, CachedPrincipal> rebuiltLastKnown = buildLastKnownPrincipalCache();
+        if (previousLastKnown != null && rebuiltLastKnown != null) {
+            rebuiltLastKnown.putAll(previousLastKnown.asMap());
+        }
+        tokenToLastKnownPrincipalCache = rebuiltLastKnown;
+
+        LOGGER.info("Rebuilt principal cache, keeping {} of {} cached principals", rebuilt.size(), previous.size());
+    }
+
+    // The next login discovers the endpoints of the new metadata URL
+    private void forgetOidcMetadata() {
+        synchronized (oidcMetadataLock) {
+            oidcMetadata = null;
+            oidcMetadataETag = null;
+            oidcMetadataLastModified = null;
+        }
+        synchronized (jsonWebKeySetLock) {
+            jsonWebKeySet = null;
+            jsonWebKeySetFetchedAt = 0;
+        }
+        if (configuration.isMetadataEagerLoad()) {
+            scheduler.execute(this::refreshOidcMetadata);
+        }
+    }
+
+    private SharedAuthenticationCache createSharedCache() {
+        String sharedCacheType = configuration.getSharedCache();
+        switch (sharedCacheType) {
+            case "none":
+                return null;
+            case "jdbc":
+                if (dataStoreManager == null) {
+                    LOGGER.warn("No Nexus data store to share the cache through, caching on this node only");
+                    return null;
+                }
+                LOGGER.info("Sharing authentication results through the {} data store", DataStoreManager.DEFAULT_DATASTORE_NAME);
+                // Nexus's pool already holds the driver and the connection timeout of its database
+                return new JdbcSharedAuthenticationCache(() -> dataStoreManager.get().get(DataStoreManager.DEFAULT_DATASTORE_NAME)
+                        .map(DataStore::getDataSource)
+                        .orElseThrow(() -> new IllegalStateException("Nexus data store " + DataStoreManager.DEFAULT_DATASTORE_NAME + " is not available")),
+                        configuration.getSharedCacheJdbcQueryTimeout());
+            default:
+                LOGGER.warn("Unknown shared cache '{}', caching on this node only", sharedCacheType);
+                return null;
+        }
+    }
+
+    /**
+     * Stops the background threads and closes the connections to the Security Portal, once Nexus stops or the plugin
+     * is unloaded. The client cannot be used afterwards.
+     */
+    @PreDestroy
+    public void close() {
+        LOGGER.info("Stopping Security Portal Client...");
+        if (principalCacheSnapshot != null) {
+            // A pending restore still runs, saving before it would overwrite the snapshot with an empty cache
+            scheduler.shutdown();
+            try {
+                scheduler.awaitTermination(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            savePrincipalCache();
+        }
+        scheduler.shutdownNow();
+        refreshExecutor.shutdownNow();
+        deadlineScheduler.shutdownNow();
+        executor.shutdownNow();
+        if (asyncTransport != null) {
+            asyncTransport.close();
+        }
+
+        // A client passed in belongs to whoever built it
+        if (connectionManager != null && client instanceof Closeable) {
+            try {
+                ((Closeable) client).close();
+            } catch (IOException e) {
+                LOGGER.warn("Failed to close the connections to the Security Portal", e);
+            }
+        }
+    }
+
+    private void registerGauges() {
+        metrics.registerGauge((Gauge<Integer>) inFlightLogins::size, "logins", "in-flight");
+        metrics.registerGauge((Gauge<Long>) () -> tokenToPrincipalCache.size(), "cache", "principals", "size");
+        metrics.registerGauge((Gauge<Double>) () -> tokenToPrincipalCache.stats().hitRate(), "cache", "principals", "hit-ratio");
+        metrics.registerGauge((Gauge<Long>) () -> tokenToErrorCodeCache.size(), "cache", "errors", "size");
+        metrics.registerGauge((Gauge<String>) () -> circuitBreaker.getState().name(), "portal", "circuit-breaker", "state");
+        if (connectionManager != null) {
+            metrics.registerGauge((Gauge<Integer>) () -> connectionManager.getTotalStats().getLeased(), "portal", "connections", "leased");
+            metrics.registerGauge((Gauge<Integer>) () -> connectionManager.getTotalStats().getPending(), "portal", "connections", "pending");
+            metrics.registerGauge((Gauge<Integer>) () -> connectionManager.getTotalStats().getAvailable(), "portal", "connections", "available");
+        }
+    }
+
+    // Honours the Keep-Alive header sent by the portal, but never keeps a connection around longer than configured
+    private static ConnectionKeepAliveStrategy keepAliveStrategy(long maxKeepAliveMillis) {
+        return (response, context) -> {
+            long keepAliveMillis = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+            return keepAliveMillis > 0 ? Math.min(keepAliveMillis, maxKeepAliveMillis) : maxKeepAliveMillis;
+        };
+    }
+
+    private static ThreadFactory daemonThreadFactory(String prefix) {
+        AtomicInteger threadCount = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix + "-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    private <T> CompletableFuture<T> callAsync(PortalCall<T> call) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        executor.execute(() -> {
+            try {
+                future.complete(call.call());
+            } catch (SecurityPortalException | RuntimeException | Error e) {
+                future.completeExceptionally(e);
+            }
+        });
+        return future;
+    }
+
+    private static <T> T await(Future<T> future) throws SecurityPortalException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SecurityPortalException(e);
+        } catch (ExecutionException e) {
+            throw asSecurityPortalException(e.getCause());
+        }
+    }
+
+    private static SecurityPortalException asSecurityPortalException(Throwable failure) {
+        return failure instanceof SecurityPortalException ? (SecurityPortalException) failure : new SecurityPortalException(failure);
+    }
+
+    // Reads straight from the entity bytes, Jackson detects their UTF encoding itself
+    private <T> T serializeObject(HttpResponse response, ObjectReader reader) throws SecurityPortalException {
+        try (InputStream content = response.getEntity().getContent()) {
+            return reader.readValue(content);
         } catch (IOException e) {
-            throw new AuthenticationException(e);
+            throw new SecurityPortalException(e);
         }
     }
 
+    private HttpResponse execute(HttpRequestBase request) throws SecurityPortalException, IOException {
+        if (!circuitBreaker.tryAcquire(System.currentTimeMillis())) {
+            metrics.getPortalRejections().mark();
+            throw new SecurityPortalException("Security Portal circuit breaker is open", 503);
+        }
+
+        HttpResponse response;
+        metrics.getPortalRequestsInFlight().inc();
+        try {
+            response = this.client.execute(request);
+        } catch (IOException | RuntimeException e) {
+            // Our own aborts, at the login deadline or once a sibling call failed, say nothing about the portal
+            if (request.isAborted()) {
+                circuitBreaker.onCancel();
+            } else {
+                metrics.getPortalErrors().mark();
+                circuitBreaker.onFailure(System.currentTimeMillis());
+            }
+            throw e;
+        } finally {
+            metrics.getPortalRequestsInFlight().dec();
+        }
+        metrics.getPortalResponses(response.getStatusLine().getStatusCode()).mark();
+
+        // Rejected credentials still mean the portal is up, only server errors count against it
+        if (response.getStatusLine().getStatusCode() >= 500) {
+            circuitBreaker.onFailure(System.currentTimeMillis());
+        } else {
+            circuitBreaker.onSuccess();
+        }
+        return response;
+    }
+
     private int validateStatusCode(HttpResponse response, String operation, String token) throws SecurityPortalException {
-        int statusCode = response.getStatusLine().getStatusCode();
+        return validateStatusCode(response.getStatusLine().getStatusCode(), operation, token);
+    }
 
+    private int validateStatusCode(int statusCode, String operation, String token) throws SecurityPortalException {
         SecurityPortalException exp;
         if (statusCode != 200) {
-            switch (statusCode) {
-                case 401:
-                case 403:
-                    exp = new AuthenticationException("Error while " + operation, statusCode, token);
-                    LOGGER.warn("Error while " + operation, exp);
+            // Only these are the portal refusing the token, other statuses say nothing about it
+            if (statusCode == HttpStatus.SC_UNAUTHORIZED || statusCode == HttpStatus.SC_FORBIDDEN) {
+                exp = new AuthenticationException("Error while " + operation, statusCode, token);
+                LOGGER.warn("Error while " + operation, exp);
 
-                    throw exp;
-                default:
-                    exp = new SecurityPortalException("Failed while " + operation, statusCode);
-                    LOGGER.error("Failed while " + operation, exp);
-                    throw exp;
+                throw exp;
             }
+            exp = new SecurityPortalException("Failed while " + operation, statusCode);
+            LOGGER.error("Failed while " + operation, exp);
+            throw exp;
         }
 
         return statusCode;
     }
 
+    // The token endpoint answers a refresh token it will never accept with invalid_grant, any other 400 there is a
+    // problem with the request or the client rather than with the token
+    private void validateGrant(int statusCode, InputStream content, String token) throws AuthenticationException {
+        if (statusCode != HttpStatus.SC_BAD_REQUEST || content == null) {
+            return;
+        }
 
-    private OidcMetadata getOidcInformation() throws SecurityPortalException {
-        LOGGER.info("Fetching OIDC information...");
-        HttpGet oidcRequest = new HttpGet(this.configuration.getMetadataUrl());
-
+        JsonNode error;
         try {
-            HttpResponse response = this.client.execute(oidcRequest);
+            error = mapper.readTree(content).path("error");
+        } catch (IOException e) {
+            return;
+        }
+        if (error.isTextual() && INVALID_GRANT.equals(error.textValue())) {
+            AuthenticationException exp = new AuthenticationException("Error while Exchanging Tokens", statusCode, token);
+            LOGGER.warn("Error while Exchanging Tokens", exp);
+            throw exp;
+        }
+    }
 
-            validateStatusCode(response, "Fetching OIDC metadata", null);
 
-            return serializeObject(response, OidcMetadata.class);
+    // Caps the request's timeouts to the time left before the deadline and aborts it once the deadline passes
+    private ScheduledFuture<?> applyDeadline(HttpRequestBase request, long deadlineAt) throws SecurityPortalException {
+        if (deadlineAt <= System.currentTimeMillis()) {
+            throw deadlineExceeded();
+        }
 
-        } catch (IOException e) {
-            throw new AuthenticationException(e);
-        } finally {
-            oidcRequest.releaseConnection();
+        request.setConfig(RequestConfig.copy(requestConfig)
+                .setConnectTimeout(remainingTimeout(requestConfig.getConnectTimeout(), deadlineAt))
+                .setConnectionRequestTimeout(remainingTimeout(requestConfig.getConnectionRequestTimeout(), deadlineAt))
+                .setSocketTimeout(remainingTimeout(requestConfig.getSocketTimeout(), deadlineAt))
+                .build());
+        return deadlineScheduler.schedule(request::abort, deadlineAt - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    private static int remainingTimeout(int timeoutMillis, long deadlineAt) {
+        long remainingMillis = Math.max(1, deadlineAt - System.currentTimeMillis());
+        return timeoutMillis > 0 ? (int) Math.min(timeoutMillis, remainingMillis) : (int) Math.min(Integer.MAX_VALUE, remainingMillis);
+    }
+
+    // Only the scheduled abort is the deadline, a request aborted because a sibling call failed is not. The timeouts
+    // are capped to the deadline, so one may fire just before the abort does
+    private SecurityPortalException failure(ScheduledFuture<?> abort, long deadlineAt, IOException e) {
+        return abort.isDone() || System.currentTimeMillis() >= deadlineAt ? deadlineExceeded() : new SecurityPortalException(e);
+    }
+
+    private SecurityPortalException deadlineExceeded() {
+        metrics.getLoginDeadlineExceeded().mark();
+        return new SecurityPortalException("Authentication did not complete within " + configuration.getLoginDeadline(), HttpStatus.SC_GATEWAY_TIMEOUT);
+    }
+
+    private OidcMetadata getOidcInformation() throws SecurityPortalException {
+        synchronized (oidcMetadataLock) {
+            LOGGER.info("Fetching OIDC information...");
+            HttpGet oidcRequest = new HttpGet(this.configuration.getMetadataUrl());
+            // The client's defaults are those it was built with, not those reloaded since
+            oidcRequest.setConfig(requestConfig);
+
+            // Revalidate what we already have instead of downloading it again
+            if (oidcMetadata != null && oidcMetadataETag != null) {
+                oidcRequest.setHeader(HttpHeaders.IF_NONE_MATCH, oidcMetadataETag);
+            }
+            if (oidcMetadata != null && oidcMetadataLastModified != null) {
+                oidcRequest.setHeader(HttpHeaders.IF_MODIFIED_SINCE, oidcMetadataLastModified);
+            }
+
+            Timer.Context timer = metrics.getOidcInformationTimer().time();
+            try {
+                HttpResponse response = execute(oidcRequest);
+                if (oidcMetadata != null && response.getStatusLine().getStatusCode() == HttpStatus.SC_NOT_MODIFIED) {
+                    LOGGER.info("OIDC information not modified");
+                    return oidcMetadata;
+                }
+
+                // Says nothing about the token being authenticated, so never a rejection of it
+                int statusCode = response.getStatusLine().getStatusCode();
+                if (statusCode != HttpStatus.SC_OK) {
+                    throw new SecurityPortalException("Failed while fetching OIDC metadata", statusCode);
+                }
+
+                OidcMetadata metadata = serializeObject(response, oidcMetadataReader);
+                Header eTag = response.getFirstHeader(HttpHeaders.ETAG);
+                Header lastModified = response.getFirstHeader(HttpHeaders.LAST_MODIFIED);
+                oidcMetadataETag = eTag == null ? null : eTag.getValue();
+                oidcMetadataLastModified = lastModified == null ? null : lastModified.getValue();
+                oidcMetadata = metadata;
+
+                return metadata;
+
+            } catch (IOException e) {
+                throw new SecurityPortalException(e);
+            } finally {
+                oidcRequest.releaseConnection();
+                timer.stop();
+            }
+        }
+    }
+
+    private OidcMetadata getOidcMetadata() throws SecurityPortalException {
+        OidcMetadata metadata = oidcMetadata;
+        if (metadata != null) {
+            return metadata;
         }
 
+        // Only one of the threads racing on a cold start fetches the metadata, the others reuse it
+        synchronized (oidcMetadataLock) {
+            metadata = oidcMetadata;
+            return metadata != null ? metadata : getOidcInformation();
+        }
+    }
+
+    private void refreshOidcMetadata() {
+        try {
+            getOidcInformation();
+        } catch (SecurityPortalException | RuntimeException e) {
+            LOGGER.warn("Failed to refresh OIDC information, keeping the current one", e);
+        }
     }
 
-    private SecurityPortalUser getUserInformation(SecurityPortalTokenResponse tokens) throws  SecurityPortalException {
+    private String getUserAccount(OidcMetadata metadata, SecurityPortalTokenResponse tokens, long deadlineAt) throws  SecurityPortalException {
 
-        LOGGER.info("Fetching User Information");
+        LOGGER.debug("Fetching User Information");
 
         String token = tokens.getAccessToken();
 
-        HttpGet httpGetUser = new HttpGet(this.oidcMetadata.getUserinfoEndpoint());
+        HttpGet httpGetUser = new HttpGet(metadata.getUserinfoEndpoint());
         httpGetUser.setHeader(HttpHeaders.AUTHORIZATION, "Bearer " + token);
 
+        ScheduledFuture<?> abort = applyDeadline(httpGetUser, deadlineAt);
+        Timer.Context timer = metrics.getUserInformationTimer().time();
         try {
-            HttpResponse response = this.client.execute(httpGetUser);
+            HttpResponse response = execute(httpGetUser);
 
             validateStatusCode(response,"Retrieving User Information", token);
 
-            return serializeObject(response, SecurityPortalUser.class);
+            try (InputStream content = response.getEntity().getContent()) {
+                return SecurityPortalResponses.readUserAccount(mapper.getFactory(), content);
+            }
 
         } catch (IOException e) {
-            throw new SecurityPortalException(e);
+            throw failure(abort, deadlineAt, e);
         } finally {
+            abort.cancel(false);
             httpGetUser.releaseConnection();
+            timer.stop();
         }
     }
 
-    private SecurityPortalRolesResponse getUserRoles(SecurityPortalTokenResponse tokens) throws SecurityPortalException {
-        LOGGER.info("Fetching User Roles");
+    private HttpGet userRolesRequest(OidcMetadata metadata, SecurityPortalTokenResponse tokens) {
+        HttpGet httpGetUserRoles = new HttpGet(metadata.getUserinfoEndpoint() + "/roles");
+        httpGetUserRoles.setHeader(HttpHeaders.AUTHORIZATION, "Bearer " + tokens.getAccessToken());
+        return httpGetUserRoles;
+    }
 
-        String token = tokens.getAccessToken();
+    private List<String> getUserRoles(HttpGet httpGetUserRoles, SecurityPortalTokenResponse tokens, long deadlineAt) throws SecurityPortalException {
+        LOGGER.debug("Fetching User Roles");
 
-        HttpGet httpGetUserRoles = new HttpGet(this.oidcMetadata.getUserinfoEndpoint() + "/roles");
-        httpGetUserRoles.setHeader(HttpHeaders.AUTHORIZATION, "Bearer " + token);
+        String token = tokens.getAccessToken();
 
+        ScheduledFuture<?> abort = applyDeadline(httpGetUserRoles, deadlineAt);
+        Timer.Context timer = metrics.getUserRolesTimer().time();
         try {
-            HttpResponse response = this.client.execute(httpGetUserRoles);
+            HttpResponse response = execute(httpGetUserRoles);
 
             validateStatusCode(response,"Retrieving User Roles", token);
 
-            return serializeObject(response, SecurityPortalRolesResponse.class);
+            // Users may hold hundreds of roles, only their names are of interest
+            try (InputStream content = response.getEntity().getContent()) {
+                return SecurityPortalResponses.readRoleNames(mapper.getFactory(), content);
+            }
 
         } catch (IOException e) {
-            throw new SecurityPortalException(e);
+            throw failure(abort, deadlineAt, e);
         } finally {
+            abort.cancel(false);
             httpGetUserRoles.releaseConnection();
+            timer.stop();
         }
     }
 
-    private SecurityPortalTokenResponse exchangeToken(String clientId, String token) throws SecurityPortalException {
-        LOGGER.info("Exchanging tokens...");
+    private SecurityPortalTokenResponse exchangeToken(OidcMetadata metadata, String clientId, String token, long deadlineAt) throws SecurityPortalException {
+        LOGGER.debug("Exchanging tokens...");
 
-        HttpPost httpPost = new HttpPost(this.oidcMetadata.getTokenEndpoint());
+        HttpPost httpPost = new HttpPost(metadata.getTokenEndpoint());
 
         // Request parameters
         List<NameValuePair> params = new ArrayList<NameValuePair>(3);
@@ -201,74 +882,927 @@ public class SecurityPortalClient {
         params.add(new BasicNameValuePair("grant_type", "refresh_token"));
         params.add(new BasicNameValuePair("refresh_token", token));
 
+        ScheduledFuture<?> abort = applyDeadline(httpPost, deadlineAt);
+        Timer.Context timer = metrics.getExchangeTokenTimer().time();
         try {
             httpPost.setEntity(new UrlEncodedFormEntity(params, "UTF-8"));
-            HttpResponse response = this.client.execute(httpPost);
+            HttpResponse response = execute(httpPost);
 
+            if (response.getEntity() != null) {
+                validateGrant(response.getStatusLine().getStatusCode(), response.getEntity().getContent(), token);
+            }
             validateStatusCode(response,"Exchanging Tokens", token);
 
-            LOGGER.info("Tokens exchanged. Handling response...");
-            return serializeObject(response, SecurityPortalTokenResponse.class);
+            LOGGER.debug("Tokens exchanged. Handling response...");
+            // Read here rather than through serializeObject, a body cut short by the deadline is no rejected token
+            try (InputStream content = response.getEntity().getContent()) {
+                return tokenResponseReader.readValue(content);
+            }
 
         } catch (IOException e) {
-            throw new SecurityPortalException(e);
+            throw failure(abort, deadlineAt, e);
         } finally {
+            abort.cancel(false);
             httpPost.releaseConnection();
+            timer.stop();
         }
     }
 
-    private Principal doAuthz(String loginName, String token) throws SecurityPortalException {
+    private CachedPrincipal doAuthz(String loginName, String token) throws SecurityPortalException {
+        long startedAt = System.currentTimeMillis();
+        return doAuthz(loginName, token, startedAt, startedAt + configuration.getLoginDeadline().toMillis());
+    }
+
+    // One budget for the whole login, each call gets whatever the previous ones left
+    private CachedPrincipal doAuthz(String loginName, String token, long startedAt, long deadlineAt) throws SecurityPortalException {
+        OidcMetadata metadata = getOidcMetadata();
+
+        LOGGER.debug("Authenticate User");
 
-        if (oidcMetadata == null) {
-            oidcMetadata = getOidcInformation();
+        if (asyncTransport != null) {
+            return doAuthzAsync(metadata, token, startedAt, deadlineAt);
         }
 
-        LOGGER.info("Authenticate User");
+        SecurityPortalTokenResponse tokens = exchangeToken(metadata, configuration.getClientId(), token, deadlineAt);
+
+        // A locally verified JWT may already carry the subject and roles, sparing the calls below
+        JsonNode claims = getLocalClaims(metadata, tokens);
+        String username = getSubjectClaim(claims);
+        Collection<String> roleNames = claims == null ? null : getRoleClaims(claims);
+
+        // User information and roles only depend on the access token, so both are fetched at once
+        HttpGet httpGetUserRoles = roleNames != null ? null : userRolesRequest(metadata, tokens);
+        CompletableFuture<List<String>> rolesRequest = httpGetUserRoles == null ? null : callAsync(() -> getUserRoles(httpGetUserRoles, tokens, deadlineAt));
+        if (username == null) {
+            try {
+                username = getUserAccount(metadata, tokens, deadlineAt);
+            } catch (SecurityPortalException | RuntimeException e) {
+                if (rolesRequest != null) {
+                    // Cancelling the future does not reach a blocking request, aborting it releases its connection
+                    rolesRequest.cancel(true);
+                    httpGetUserRoles.abort();
+                }
+                throw e;
+            }
+        }
+        if (rolesRequest != null) {
+            roleNames = await(rolesRequest);
+        }
 
-        SecurityPortalTokenResponse tokens = exchangeToken(configuration.getClientId(), token);
+        return newCachedPrincipal(createPrincipal(username, roleNames), token, tokens, startedAt);
+    }
 
-        SecurityPortalUser user = getUserInformation(tokens);
-        SecurityPortalRolesResponse roles = getUserRoles(tokens);
+    // Chains the token exchange into the user information and roles calls without blocking a thread on any of them,
+    // the caller only waits for the outcome and never past the login deadline
+    private CachedPrincipal doAuthzAsync(OidcMetadata metadata, String token, long startedAt, long deadlineAt) throws SecurityPortalException {
+        List<CompletableFuture<?>> requests = new CopyOnWriteArrayList<>();
+
+        CompletableFuture<CachedPrincipal> login = sendAsync(exchangeTokenRequest(metadata, configuration.getClientId(), token, deadlineAt),
+                metrics.getExchangeTokenTimer(), requests)
+                .thenApply(response -> readAsyncTokenResponse(response, token))
+                .thenCompose(tokens -> getLocalClaimsAsync(metadata, tokens, deadlineAt, requests).thenCompose(claims -> {
+                    String username = getSubjectClaim(claims);
+                    Collection<String> roleNames = claims == null ? null : getRoleClaims(claims);
+                    String accessToken = tokens.getAccessToken();
+
+                    CompletableFuture<String> userRequest = username != null ? CompletableFuture.completedFuture(username)
+                            : sendAsync(bearerRequest(metadata.getUserinfoEndpoint(), accessToken, deadlineAt), metrics.getUserInformationTimer(), requests)
+                            .thenApply(response -> readAsyncResponse(response, "Retrieving User Information", accessToken,
+                                    content -> SecurityPortalResponses.readUserAccount(mapper.getFactory(), content)));
+                    CompletableFuture<Collection<String>> rolesRequest = roleNames != null ? CompletableFuture.completedFuture(roleNames)
+                            : sendAsync(bearerRequest(metadata.getUserinfoEndpoint() + "/roles", accessToken, deadlineAt), metrics.getUserRolesTimer(), requests)
+                            .thenApply(response -> readAsyncResponse(response, "Retrieving User Roles", accessToken,
+                                    content -> SecurityPortalResponses.readRoleNames(mapper.getFactory(), content)));
+
+                    return userRequest.thenCombine(rolesRequest,
+                            (user, roles) -> newCachedPrincipal(createPrincipal(user, roles), token, tokens, startedAt));
+                }));
 
-        LOGGER.info("Creating Principal");
+        try {
+            return login.get(deadlineAt - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            throw deadlineExceeded();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SecurityPortalException(e);
+        } catch (ExecutionException e) {
+            throw asSecurityPortalException(e.getCause());
+        } finally {
+            // Aborts whatever is still outstanding after a failure or the deadline, releasing its connection
+            requests.forEach(request -> request.cancel(true));
+        }
+    }
+
+    private CompletableFuture<java.net.http.HttpResponse<byte[]>> sendAsync(HttpRequest request, Timer timer, List<CompletableFuture<?>> requests) {
+        CompletableFuture<java.net.http.HttpResponse<byte[]>> response = asyncTransport.send(request, timer);
+        requests.add(response);
+        return response;
+    }
+
+    private HttpRequest exchangeTokenRequest(OidcMetadata metadata, String clientId, String token, long deadlineAt) {
+        String form = "client_id=" + URLEncoder.encode(clientId, StandardCharsets.UTF_8)
+                + "&grant_type=refresh_token"
+                + "&refresh_token=" + URLEncoder.encode(token, StandardCharsets.UTF_8);
+
+        return HttpRequest.newBuilder(URI.create(metadata.getTokenEndpoint()))
+                .timeout(Duration.ofMillis(remainingTimeout(configuration.getRequestSocketTimeout(), deadlineAt)))
+                .header(HttpHeaders.CONTENT_TYPE, "application/x-www-form-urlencoded")
+                .POST(HttpRequest.BodyPublishers.ofString(form))
+                .build();
+    }
+
+    private HttpRequest keySetRequest(OidcMetadata metadata, long deadlineAt) {
+        return HttpRequest.newBuilder(URI.create(metadata.getJwksUri()))
+                .timeout(Duration.ofMillis(remainingTimeout(configuration.getRequestSocketTimeout(), deadlineAt)))
+                .GET()
+                .build();
+    }
+
+    private HttpRequest bearerRequest(String uri, String accessToken, long deadlineAt) {
+        return HttpRequest.newBuilder(URI.create(uri))
+                .timeout(Duration.ofMillis(remainingTimeout(configuration.getRequestSocketTimeout(), deadlineAt)))
+                .header(HttpHeaders.AUTHORIZATION, "Bearer " + accessToken)
+                .GET()
+                .build();
+    }
+
+    private SecurityPortalTokenResponse readAsyncTokenResponse(java.net.http.HttpResponse<byte[]> response, String token) {
+        try {
+            validateGrant(response.statusCode(), new ByteArrayInputStream(response.body()), token);
+        } catch (AuthenticationException e) {
+            throw new CompletionException(e);
+        }
+        return readAsyncResponse(response, "Exchanging Tokens", token, content -> tokenResponseReader.readValue(content));
+    }
+
+    private <T> T readAsyncResponse(java.net.http.HttpResponse<byte[]> response, String operation, String token, EntityReader<T> reader) {
+        try {
+            validateStatusCode(response.statusCode(), operation, token);
+            return reader.read(new ByteArrayInputStream(response.body()));
+        } catch (SecurityPortalException e) {
+            throw new CompletionException(e);
+        } catch (IOException e) {
+            throw new CompletionException(new SecurityPortalException(e));
+        }
+    }
+
+    private Principal createPrincipal(String username, Collection<String> roleNames) {
+        LOGGER.debug("Creating Principal");
         Principal principal = new Principal();
 
-        principal.setOauthToken(tokens.getAccessToken().toCharArray());
-        principal.setUsername(user.getUserAccount());
-        principal.setRoles(Arrays.asList(roles.getRoles()).stream().map(r -> r.getName()).collect(Collectors.toSet()));
+        principal.setUsername(username);
+        // Principals holding the same roles share one immutable set
+        principal.setRoles(RoleSets.intern(roleNames));
 
         return principal;
     }
 
-    public Principal authz(String login, String token) throws SecurityPortalException {
+    // Cached for the principal cache TTL, or less when the access token or the PAT itself expires sooner. Both are
+    // counted from the start of the login, as the portal issued the tokens some time after it
+    private CachedPrincipal newCachedPrincipal(Principal principal, String token, SecurityPortalTokenResponse tokens, long startedAt) {
+        long expiresAt = startedAt + principalCacheTtlMillis;
+        if (configuration.isPrincipalCacheTokenLifetime()) {
+            Long expiresIn = tokens.getExpiresIn();
+            if (expiresIn != null && expiresIn > 0) {
+                expiresAt = Math.min(expiresAt, startedAt + TimeUnit.SECONDS.toMillis(expiresIn));
+            }
+            Long tokenExpiresAt = jwtValidator.getUnverifiedExpiry(token);
+            if (tokenExpiresAt != null) {
+                expiresAt = Math.min(expiresAt, tokenExpiresAt);
+            }
+        }
+        return new CachedPrincipal(principal, startedAt, expiresAt);
+    }
 
-        String cacheKey = token;
-        Principal cachedPrincipal = tokenToPrincipalCache.getIfPresent(cacheKey);
-        if (cachedPrincipal != null) {
-            LOGGER.info("Using cached principal for login: {}", cachedPrincipal.getUsername());
-            return cachedPrincipal;
+    private JsonNode getLocalClaims(OidcMetadata metadata, SecurityPortalTokenResponse tokens) {
+        return configuration.isJwtLocalValidation() ? validateAccessToken(metadata, tokens.getAccessToken()) : null;
+    }
+
+    // Fetches a missing or stale key set through the async transport, a blocking fetch would hold up one of its few
+    // threads and with it every other login in flight
+    private CompletableFuture<JsonNode> getLocalClaimsAsync(OidcMetadata metadata, SecurityPortalTokenResponse tokens, long deadlineAt,
+                                                            List<CompletableFuture<?>> requests) {
+        if (!configuration.isJwtLocalValidation() || metadata.getJwksUri() == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        String accessToken = tokens.getAccessToken();
+        return getJsonWebKeySetAsync(metadata, jwtValidator.getUnverifiedKeyId(accessToken), deadlineAt, requests)
+                .thenApply(keys -> validateAccessToken(metadata, accessToken, kid -> keys == null ? null : keys.getKey(kid)));
+    }
+
+    // Claims of the access token when it is a JWT that verifies locally, null to fall back to the portal endpoints
+    private JsonNode validateAccessToken(OidcMetadata metadata, String accessToken) {
+        if (metadata.getJwksUri() == null) {
+            return null;
+        }
+        return validateAccessToken(metadata, accessToken, kid -> getSigningKey(metadata, kid));
+    }
+
+    private JsonNode validateAccessToken(OidcMetadata metadata, String accessToken, Function<String, PublicKey> keyResolver) {
+        try {
+            return jwtValidator.validate(accessToken, keyResolver, metadata.getIssuer(), configuration.getJwtAudience());
+        } catch (SecurityPortalException e) {
+            LOGGER.debug("Access token not validated locally: {}", e.getMessage());
+            return null;
+        }
+    }
+
+    // Claims of any type but a string are not trusted, the user information and roles calls are made instead
+    private static String getSubjectClaim(JsonNode claims) {
+        JsonNode subject = claims == null ? null : claims.path("sub");
+        return subject != null && subject.isTextual() ? subject.textValue() : null;
+    }
+
+    private List<String> getRoleClaims(JsonNode claims) {
+        JsonNode roles = claims.get(configuration.getJwtRolesClaim());
+        if (roles == null || roles.isNull()) {
+            return null;
+        }
+
+        List<String> roleNames = new ArrayList<>();
+        for (JsonNode role : roles.isArray() ? roles : Collections.singletonList(roles)) {
+            if (!role.isTextual()) {
+                return null;
+            }
+            roleNames.add(role.textValue());
+        }
+        return roleNames;
+    }
+
+    private PublicKey getSigningKey(OidcMetadata metadata, String kid) {
+        JsonWebKeySet keys = jsonWebKeySet;
+        if (keys != null && !isJsonWebKeySetStale(keys.getKey(kid) == null)) {
+            return keys.getKey(kid);
+        }
+
+        synchronized (jsonWebKeySetLock) {
+            keys = jsonWebKeySet;
+            if (keys == null || isJsonWebKeySetStale(keys.getKey(kid) == null)) {
+                try {
+                    keys = getJsonWebKeySet(metadata);
+                    jsonWebKeySet = keys;
+                } catch (SecurityPortalException e) {
+                    LOGGER.warn("Failed to fetch JSON Web Key Set", e);
+                } finally {
+                    // Also throttles retries when the portal keeps failing or the key id is unknown to it
+                    jsonWebKeySetFetchedAt = System.currentTimeMillis();
+                }
+            }
+            return keys == null ? null : keys.getKey(kid);
+        }
+    }
+
+    // Only one login at a time fetches the key set, those arriving meanwhile find it fresh and validate against the
+    // keys at hand, or fall back to the portal endpoints. The fetch is one of the login's requests, so it is aborted
+    // at the login deadline like any other
+    private CompletableFuture<JsonWebKeySet> getJsonWebKeySetAsync(OidcMetadata metadata, String kid, long deadlineAt,
+                                                                  List<CompletableFuture<?>> requests) {
+        JsonWebKeySet keys;
+        CompletableFuture<JsonWebKeySet> fetch;
+        synchronized (jsonWebKeySetLock) {
+            keys = jsonWebKeySet;
+            if (!isJsonWebKeySetStale(keys == null || keys.getKey(kid) == null)) {
+                return CompletableFuture.completedFuture(keys);
+            }
+            // Also throttles retries when the portal keeps failing or the key id is unknown to it
+            jsonWebKeySetFetchedAt = System.currentTimeMillis();
+            LOGGER.info("Fetching JSON Web Key Set");
+            fetch = sendAsync(keySetRequest(metadata, deadlineAt), metrics.getJsonWebKeySetTimer(), requests)
+                    .thenApply(response -> readAsyncResponse(response, "Fetching JSON Web Key Set", null,
+                            content -> JsonWebKeySet.parse(mapper.readTree(content))));
+        }
+
+        JsonWebKeySet previous = keys;
+        return fetch.handle((fetched, failure) -> {
+            if (failure != null) {
+                LOGGER.warn("Failed to fetch JSON Web Key Set", failure);
+                return previous;
+            }
+            jsonWebKeySet = fetched;
+            return fetched;
+        });
+    }
+
+    // Unknown key ids usually mean the portal rotated its keys, so they trigger an early but throttled refetch
+    private boolean isJsonWebKeySetStale(boolean unknownKey) {
+        long age = System.currentTimeMillis() - jsonWebKeySetFetchedAt;
+        return age >= configuration.getJwtJwksTtl().toMillis() || (unknownKey && age >= JWKS_MIN_REFETCH_INTERVAL_MILLIS);
+    }
+
+    private JsonWebKeySet getJsonWebKeySet(OidcMetadata metadata) throws SecurityPortalException {
+        LOGGER.info("Fetching JSON Web Key Set");
+
+        HttpGet httpGetKeys = new HttpGet(metadata.getJwksUri());
+        httpGetKeys.setConfig(requestConfig);
+
+        Timer.Context timer = metrics.getJsonWebKeySetTimer().time();
+        try {
+            HttpResponse response = execute(httpGetKeys);
+
+            validateStatusCode(response, "Fetching JSON Web Key Set", null);
+
+            return JsonWebKeySet.parse(mapper.readTree(response.getEntity().getContent()));
+
+        } catch (IOException e) {
+            throw new SecurityPortalException(e);
+        } finally {
+            httpGetKeys.releaseConnection();
+            timer.stop();
+        }
+    }
+
+    private void cachePrincipal(TokenDigest cacheKey, CachedPrincipal cachedPrincipal) {
+        cacheNearPrincipal(cacheKey, cachedPrincipal, System.currentTimeMillis());
+        putShared(cacheKey, SharedAuthenticationCache.Entry.principal(cachedPrincipal));
+    }
+
+    private void cacheNearPrincipal(TokenDigest cacheKey, CachedPrincipal cachedPrincipal, long now) {
+        principalCacheLock.readLock().lock();
+        try {
+            // The stale window extends the principal's own expiry, not the shorter one of the near cache
+            if (tokenToLastKnownPrincipalCache != null) {
+                tokenToLastKnownPrincipalCache.put(cacheKey, cachedPrincipal);
+            }
+            if (sharedCache != null && cachedPrincipal.getExpiresAt() > now + sharedCacheNearTtlMillis) {
+                cachedPrincipal = new CachedPrincipal(cachedPrincipal.getPrincipal(), cachedPrincipal.getCreatedAt(), now + sharedCacheNearTtlMillis);
+            }
+            // Indexed first, so an immediate eviction cannot leave the index behind
+            indexToken(cachedPrincipal.getPrincipal().getUsername(), cacheKey);
+            tokenToPrincipalCache.put(cacheKey, cachedPrincipal);
+        } finally {
+            principalCacheLock.readLock().unlock();
+        }
+    }
+
+    private void indexToken(String username, TokenDigest cacheKey) {
+        if (username == null) {
+            return;
+        }
+        usernameToTokens.compute(username, (user, tokens) -> {
+            Set<TokenDigest> indexed = tokens != null ? tokens : ConcurrentHashMap.newKeySet();
+            indexed.add(cacheKey);
+            return indexed;
+        });
+    }
+
+    private void unindexToken(String username, TokenDigest cacheKey) {
+        if (username == null) {
+            return;
+        }
+        usernameToTokens.computeIfPresent(username, (user, tokens) -> {
+            tokens.remove(cacheKey);
+            return tokens.isEmpty() ? null : tokens;
+        });
+    }
+
+    private void invalidateShared(TokenDigest cacheKey) {
+        if (sharedCache == null) {
+            return;
+        }
+
+        try {
+            sharedCache.invalidate(cacheKey);
+        } catch (IOException | RuntimeException e) {
+            metrics.getSharedCacheFailures().mark();
+            LOGGER.warn("Failed to invalidate the shared authentication cache", e);
+        }
+    }
+
+    private void rejectToken(String throttleKey, TokenDigest cacheKey, int errorCode) {
+        boolean wasCached = invalidatePrincipal(cacheKey);
+        tokenToTransientFailureCache.invalidate(cacheKey);
+        tokenToErrorCodeCache.put(cacheKey, errorCode);
+        if (rejectedTokenFilter != null) {
+            rejectedTokenFilter.put(cacheKey);
+        }
+        if (throttleKeyToFailureCountCache != null && throttleKey != null) {
+            try {
+                throttleKeyToFailureCountCache.get(throttleKey, AtomicInteger::new).incrementAndGet();
+            } catch (ExecutionException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        if (sharedCache != null && sharedCache.isSharingRejections()) {
+            putShared(cacheKey, SharedAuthenticationCache.Entry.rejection(errorCode,
+                    System.currentTimeMillis() + configuration.getErrorCacheTtl().toMillis()));
+        } else if (wasCached) {
+            // Any node serving the token read it from the shared cache, where it is no longer found
+            invalidateShared(cacheKey);
+        }
+    }
+
+    // Takes the result another node already resolved for this token into the local caches
+    private Principal getSharedPrincipal(TokenDigest cacheKey, String token, long deadlineAt) throws SecurityPortalException {
+        if (sharedCache == null) {
+            return null;
+        }
+
+        long now = System.currentTimeMillis();
+        SharedAuthenticationCache.Entry entry;
+        // The portal remains the source of truth, an unreachable shared cache only costs an exchange
+        Future<SharedAuthenticationCache.Entry> lookup = executor.submit(() -> sharedCache.get(cacheKey, now));
+        try {
+            entry = lookup.get(Math.max(0, deadlineAt - now), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SecurityPortalException(e);
+        } catch (ExecutionException e) {
+            metrics.getSharedCacheFailures().mark();
+            LOGGER.warn("Failed to read the shared authentication cache", e.getCause());
+            return null;
+        } catch (TimeoutException e) {
+            lookup.cancel(true);
+            metrics.getSharedCacheFailures().mark();
+            LOGGER.warn("Shared authentication cache did not answer within the login deadline");
+            return null;
+        }
+        if (entry == null || entry.isExpired(now)) {
+            return null;
+        }
+
+        metrics.getSharedCacheHits().mark();
+        if (entry.isRejection()) {
+            invalidatePrincipal(cacheKey);
+            tokenToErrorCodeCache.put(cacheKey, entry.getErrorCode());
+            if (rejectedTokenFilter != null) {
+                rejectedTokenFilter.put(cacheKey);
+            }
+            LOGGER.debug("Token rejected on another node. Not authenticating...");
+            throw new AuthenticationException("Token already cached with error", entry.getErrorCode(), token);
+        }
+
+        cacheNearPrincipal(cacheKey, entry.getPrincipal(), now);
+        LOGGER.debug("Using shared principal for login: {}", entry.getPrincipal().getPrincipal().getUsername());
+        return entry.getPrincipal().getPrincipal();
+    }
+
+    private void putShared(TokenDigest cacheKey, SharedAuthenticationCache.Entry entry) {
+        if (sharedCache == null) {
+            return;
+        }
+
+        try {
+            sharedCache.put(cacheKey, entry);
+        } catch (IOException | RuntimeException e) {
+            metrics.getSharedCacheFailures().mark();
+            LOGGER.warn("Failed to update the shared authentication cache", e);
+        }
+    }
+
+    private void purgeExpiredPrincipals() {
+        long now = System.currentTimeMillis();
+        tokenToPrincipalCache.asMap().values().removeIf(cachedPrincipal -> cachedPrincipal.isExpired(now));
+    }
+
+    private void purgeSharedCache() {
+        try {
+            sharedCache.purgeExpired(System.currentTimeMillis());
+        } catch (IOException | RuntimeException e) {
+            metrics.getSharedCacheFailures().mark();
+            LOGGER.warn("Failed to purge expired entries of the shared authentication cache", e);
+        }
+    }
+
+    // Whether a principal was cached for the token
+    private boolean invalidatePrincipal(TokenDigest cacheKey) {
+        // An invalidation during a reload would otherwise be undone by the copy into the new caches
+        principalCacheLock.readLock().lock();
+        try {
+            boolean wasCached = tokenToPrincipalCache.asMap().remove(cacheKey) != null;
+            if (tokenToLastKnownPrincipalCache != null) {
+                wasCached |= tokenToLastKnownPrincipalCache.asMap().remove(cacheKey) != null;
+            }
+            return wasCached;
+        } finally {
+            principalCacheLock.readLock().unlock();
+        }
+    }
+
+    // I/O errors carry no status, the open breaker and the login deadline stand for a 503 and a 504. A portal timing
+    // out or rate limiting the request is just as unavailable for the moment
+    private static boolean isOutage(SecurityPortalException failure) {
+        int statusCode = failure.getStatusCode();
+        return statusCode == 0 || statusCode == HttpStatus.SC_REQUEST_TIMEOUT || statusCode == SC_TOO_MANY_REQUESTS
+                || statusCode >= 500;
+    }
+
+    private void recordTransientFailure(TokenDigest cacheKey, SecurityPortalException failure) {
+        TransientFailure previous = tokenToTransientFailureCache.getIfPresent(cacheKey);
+        TransientFailure transientFailure = TransientFailure.after(previous, failure, System.currentTimeMillis(),
+                transientBackoffInitialMillis, transientBackoffMaxMillis);
+        tokenToTransientFailureCache.put(cacheKey, transientFailure);
+        LOGGER.debug("Backing off token after transient failure {}", transientFailure.getAttempts());
+    }
+
+    // A login that went through shows the portal is back, nothing needs to wait out its backoff anymore
+    private void recoverFromTransientFailures() {
+        if (tokenToTransientFailureCache.size() > 0) {
+            tokenToTransientFailureCache.invalidateAll();
+        }
+    }
+
+    // Falls back to the last principal resolved for this token while the Security Portal is unavailable
+    private Principal getLastKnownPrincipal(TokenDigest cacheKey, String token, SecurityPortalException failure) throws SecurityPortalException {
+        CachedPrincipal lastKnown = tokenToLastKnownPrincipalCache == null ? null : tokenToLastKnownPrincipalCache.getIfPresent(cacheKey);
+        // Past its own expiry, which the token lifetime may have brought forward, only by the stale window
+        if (lastKnown == null || System.currentTimeMillis() >= lastKnown.getExpiresAt() + configuration.getPrincipalCacheStaleWindow().toMillis()) {
+            throw failure;
+        }
+        Principal lastKnownPrincipal = lastKnown.getPrincipal();
+        // An outage is no reason to accept a PAT past its own expiry
+        if (configuration.isPrincipalCacheTokenLifetime()) {
+            Long tokenExpiresAt = jwtValidator.getUnverifiedExpiry(token);
+            if (tokenExpiresAt != null && tokenExpiresAt <= System.currentTimeMillis()) {
+                throw failure;
+            }
+        }
+
+        metrics.getCacheStaleHits().mark();
+        LOGGER.warn("Security Portal unavailable, serving last known principal for login: {}", lastKnownPrincipal.getUsername());
+        return lastKnownPrincipal;
+    }
+
+    private void restorePrincipalCache() {
+        try {
+            long now = System.currentTimeMillis();
+            Map<TokenDigest, CachedPrincipal> restored = principalCacheSnapshot.read(now, this::createPrincipal);
+            int restoredCount = 0;
+            for (Map.Entry<TokenDigest, CachedPrincipal> entry : restored.entrySet()) {
+                CachedPrincipal saved = entry.getValue();
+                // Saved under whatever TTL was configured then, which may have been lowered since
+                long expiresAt = Math.min(saved.getExpiresAt(), Math.min(saved.getCreatedAt(), now) + principalCacheTtlMillis);
+                if (now >= expiresAt) {
+                    continue;
+                }
+                // Principals resolved since startup are newer than the saved ones
+                principalCacheLock.readLock().lock();
+                try {
+                    indexToken(saved.getPrincipal().getUsername(), entry.getKey());
+                    tokenToPrincipalCache.asMap().putIfAbsent(entry.getKey(), new CachedPrincipal(saved.getPrincipal(), saved.getCreatedAt(), expiresAt));
+                } finally {
+                    principalCacheLock.readLock().unlock();
+                }
+                restoredCount++;
+            }
+            LOGGER.info("Restored {} cached principals from {}", restoredCount, principalCacheSnapshot.getFile());
+        } catch (IOException | RuntimeException e) {
+            LOGGER.warn("Failed to restore cached principals from {}, starting with an empty cache", principalCacheSnapshot.getFile(), e);
+        }
+    }
+
+    void savePrincipalCache() {
+        try {
+            principalCacheSnapshot.write(tokenToPrincipalCache.asMap(), System.currentTimeMillis());
+        } catch (IOException | RuntimeException e) {
+            LOGGER.warn("Failed to save cached principals to {}", principalCacheSnapshot.getFile(), e);
+        }
+    }
+
+    private void refreshPrincipal(String login, String token, TokenDigest cacheKey) {
+        if (!refreshingTokens.add(cacheKey)) {
+            return;
+        }
+
+        try {
+            refreshExecutor.execute(() -> {
+                try {
+                    LOGGER.debug("Refreshing cached principal for login: {}", login);
+                    cachePrincipal(cacheKey, doAuthz(login, token));
+                } catch (AuthenticationException e) {
+                    // No client sent the refresh, so only a username throttle counts it
+                    rejectToken(getThrottleKey(login, null), cacheKey, e.getStatusCode());
+                    LOGGER.debug("Evicting cached principal due to an authentication error on refresh");
+                } catch (SecurityPortalException | RuntimeException e) {
+                    // Keep serving the cached principal until it expires, a later request retries the refresh
+                    LOGGER.warn("Failed to refresh cached principal for login: {}", login, e);
+                } finally {
+                    refreshingTokens.remove(cacheKey);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            refreshingTokens.remove(cacheKey);
+        }
+    }
+
+    private Principal getCachedPrincipal(TokenDigest cacheKey, String login, String token) throws SecurityPortalException {
+        CachedPrincipal cachedPrincipal = tokenToPrincipalCache.getIfPresent(cacheKey);
+        long now = System.currentTimeMillis();
+        if (cachedPrincipal != null && !cachedPrincipal.isExpired(now)) {
+            metrics.getCacheHits().mark();
+            LOGGER.debug("Using cached principal for login: {}", cachedPrincipal.getPrincipal().getUsername());
+            if (principalRefreshAfterMillis > 0 && cachedPrincipal.getAge(now) >= principalRefreshAfterMillis) {
+                refreshPrincipal(login, token, cacheKey);
+            }
+            return cachedPrincipal.getPrincipal();
         }
 
         // Check if this token was previously used but returned an error code
         Integer cachedErrorCode = tokenToErrorCodeCache.getIfPresent(cacheKey);
         if (cachedErrorCode != null) {
-            LOGGER.info("Token cached as invalid. Not authenticating...");
+            metrics.getCacheNegativeHits().mark();
+            LOGGER.debug("Token cached as invalid. Not authenticating...");
             throw new AuthenticationException("Token already cached with error", cachedErrorCode, token);
         }
 
+        // Rejected too recently to have left the filter, but already evicted from the error cache with its code
+        if (rejectedTokenFilter != null && rejectedTokenFilter.mightContain(cacheKey)) {
+            metrics.getCacheRejectedFilterHits().mark();
+            LOGGER.debug("Token recently rejected. Not authenticating...");
+            throw new AuthenticationException("Token recently rejected", HttpStatus.SC_UNAUTHORIZED, token);
+        }
+
+        return null;
+    }
+
+    private void checkPreflight(String token) throws AuthenticationException {
+        if (!configuration.isTokenPreflightEnabled()) {
+            return;
+        }
+        String failure = getPreflightFailure(token);
+        if (failure != null) {
+            metrics.getPreflightRejectedLogins().mark();
+            LOGGER.debug("Token failed pre-flight validation, {}. Not authenticating...", failure);
+            throw new AuthenticationException("Token failed pre-flight validation, " + failure, HttpStatus.SC_UNAUTHORIZED, token);
+        }
+    }
+
+    // Runs before the token is even hashed, so an oversized value costs no more than reading its length
+    private void checkPreflightLength(int length) throws AuthenticationException {
+        if (configuration.isTokenPreflightEnabled() && length > configuration.getTokenPreflightMaxLength()) {
+            metrics.getPreflightRejectedLogins().mark();
+            LOGGER.debug("Token failed pre-flight validation, unexpected length {}. Not authenticating...", length);
+            throw new AuthenticationException("Token failed pre-flight validation, unexpected length " + length, HttpStatus.SC_UNAUTHORIZED);
+        }
+    }
+
+    private String getPreflightFailure(String token) {
+        int length = token == null ? 0 : token.length();
+        if (length < configuration.getTokenPreflightMinLength() || length > configuration.getTokenPreflightMaxLength()) {
+            return "unexpected length " + length;
+        }
+        if (!configuration.getTokenPreflightPattern().matcher(token).matches()) {
+            return "unexpected characters";
+        }
+        // Unverified, which is enough to tell the portal would reject it too
+        Long tokenExpiresAt = jwtValidator.getUnverifiedExpiry(token);
+        if (tokenExpiresAt != null && tokenExpiresAt + configuration.getJwtClockSkew().toMillis() <= System.currentTimeMillis()) {
+            return "expired";
+        }
+        return null;
+    }
+
+    // Keying on the client address keeps a spray from locking its victims out, and rotating usernames from evading it
+    private String getThrottleKey(String login, String host) {
+        return loginThrottleByUsername ? login : host;
+    }
+
+    private boolean isThrottled(String throttleKey) {
+        if (throttleKeyToFailureCountCache == null || throttleKey == null) {
+            return false;
+        }
+        AtomicInteger failureCount = throttleKeyToFailureCountCache.getIfPresent(throttleKey);
+        return failureCount != null && failureCount.get() >= loginThrottleMaxFailures;
+    }
+
+    public Principal authz(String login, char[] token) throws SecurityPortalException {
+        return authz(login, token, null);
+    }
+
+    /**
+     * Same as {@link #authz(String, String, String)}, but a cache hit neither copies the token into a {@code String}
+     * nor allocates anything beyond its digest.
+     */
+    public Principal authz(String login, char[] token, String host) throws SecurityPortalException {
+        checkPreflightLength(token.length);
+        TokenDigest cacheKey = TokenDigest.of(token);
+        CachedPrincipal cachedPrincipal = tokenToPrincipalCache.getIfPresent(cacheKey);
+        long now = System.currentTimeMillis();
+        if (cachedPrincipal != null && !cachedPrincipal.isExpired(now)
+                && (principalRefreshAfterMillis <= 0 || cachedPrincipal.getAge(now) < principalRefreshAfterMillis)) {
+            metrics.getCacheHits().mark();
+            LOGGER.debug("Using cached principal for login: {}", login);
+            return cachedPrincipal.getPrincipal();
+        }
+
+        // Refreshes, rejected tokens and misses need the token itself
+        return authz(login, new String(token), cacheKey, getThrottleKey(login, host));
+    }
+
+    public Principal authz(String login, String token) throws SecurityPortalException {
+        return authz(login, token, null);
+    }
+
+    /**
+     * Resolves the principal of the token. The host is the address of the client sending it, which the login
+     * throttle counts rejected tokens against, {@code null} when unknown.
+     */
+    public Principal authz(String login, String token, String host) throws SecurityPortalException {
+        checkPreflightLength(token.length());
+        // Caches are keyed by a digest of the token so raw tokens never outlive the request
+        return authz(login, token, TokenDigest.of(token), getThrottleKey(login, host));
+    }
+
+    private Principal authz(String login, String token, TokenDigest cacheKey, String throttleKey) throws SecurityPortalException {
+        Principal cachedPrincipal = getCachedPrincipal(cacheKey, login, token);
+        if (cachedPrincipal != null) {
+            return cachedPrincipal;
+        }
+        // Values that cannot be a valid PAT cost neither a Security Portal call nor a pooled connection
+        checkPreflight(token);
+        metrics.getCacheMisses().mark();
+
         // If it reaches this point, then it means we don't have this token cached.
-        // Authenticating user
+        // Only one request per token goes to the Security Portal, every other one waits for its outcome
+        CompletableFuture<Principal> inFlightLogin = new CompletableFuture<>();
+        CompletableFuture<Principal> leaderLogin = inFlightLogins.putIfAbsent(cacheKey, inFlightLogin);
+        if (leaderLogin != null) {
+            metrics.getCoalescedLogins().mark();
+            LOGGER.debug("Waiting for in-flight authentication of the same token");
+            return await(leaderLogin);
+        }
 
         try {
-            Principal principal = doAuthz(login, token);
-            tokenToPrincipalCache.put(cacheKey, principal);
+            // The shared cache lookup counts against the login deadline too
+            long startedAt = System.currentTimeMillis();
+            long deadlineAt = startedAt + configuration.getLoginDeadline().toMillis();
+
+            // A previous leader may have finished between the cache lookup and the registration above
+            cachedPrincipal = getCachedPrincipal(cacheKey, login, token);
+            if (cachedPrincipal == null) {
+                cachedPrincipal = getSharedPrincipal(cacheKey, token, deadlineAt);
+            }
+            if (cachedPrincipal != null) {
+                inFlightLogin.complete(cachedPrincipal);
+                return cachedPrincipal;
+            }
+
+            // Retries of a token that just failed for unrelated reasons wait for its backoff instead of adding load
+            TransientFailure transientFailure = tokenToTransientFailureCache.getIfPresent(cacheKey);
+            if (transientFailure != null && transientFailure.isBackingOff(System.currentTimeMillis())) {
+                metrics.getCacheTransientFailureHits().mark();
+                LOGGER.debug("Token backing off after a transient failure. Not authenticating...");
+                cachedPrincipal = getLastKnownPrincipal(cacheKey, token, new SecurityPortalException(
+                        "Security Portal unavailable: " + transientFailure.getFailure().getMessage(),
+                        transientFailure.getFailure().getStatusCode()));
+                inFlightLogin.complete(cachedPrincipal);
+                return cachedPrincipal;
+            }
+
+            // A client spraying bad tokens costs no more exchanges until its throttle window ends
+            if (isThrottled(throttleKey)) {
+                metrics.getThrottledLogins().mark();
+                LOGGER.debug("Too many rejected tokens from: {}. Not authenticating...", throttleKey);
+                throw new SecurityPortalException("Too many failed logins from " + throttleKey, SC_TOO_MANY_REQUESTS);
+            }
+
+            // Authenticating user
+            Principal principal;
+            try {
+                CachedPrincipal resolved = doAuthz(login, token, startedAt, deadlineAt);
+                cachePrincipal(cacheKey, resolved);
+                principal = resolved.getPrincipal();
+                recoverFromTransientFailures();
+                if (throttleKeyToFailureCountCache != null && throttleKey != null) {
+                    throttleKeyToFailureCountCache.invalidate(throttleKey);
+                }
+            } catch (AuthenticationException e) {
+                // Only rejections by the portal itself are recorded, not those already read from a cache
+                rejectToken(throttleKey, cacheKey, e.getStatusCode());
+                LOGGER.debug("Caching token due to an authentication error");
+                throw e;
+            } catch (SecurityPortalException e) {
+                if (!isOutage(e)) {
+                    throw e;
+                }
+                recordTransientFailure(cacheKey, e);
+                principal = getLastKnownPrincipal(cacheKey, token, e);
+            }
+            inFlightLogin.complete(principal);
 
             return principal;
-        } catch (AuthenticationException e) {
-            tokenToErrorCodeCache.put(cacheKey, 401);
-            LOGGER.info("Caching token due to an authentication error");
+        } catch (SecurityPortalException | RuntimeException | Error e) {
+            inFlightLogin.completeExceptionally(e);
             throw e;
+        } finally {
+            // Caches are populated before leaving, so late arrivals never start a second exchange
+            inFlightLogins.remove(cacheKey, inFlightLogin);
         }
     }
 
+    public long getPrincipalCacheSize() {
+        return tokenToPrincipalCache.size();
+    }
+
+    public CacheStats getPrincipalCacheStats() {
+        return tokenToPrincipalCache.stats();
+    }
+
+    public long getErrorCodeCacheSize() {
+        return tokenToErrorCodeCache.size();
+    }
+
+    public CacheStats getErrorCodeCacheStats() {
+        return tokenToErrorCodeCache.stats();
+    }
+
+    /**
+     * Leased, pending and available connections of the Security Portal connection pool, or {@code null} when the
+     * client was built around an externally provided {@link HttpClient}.
+     */
+    public PoolStats getConnectionPoolStats() {
+        return connectionManager == null ? null : connectionManager.getTotalStats();
+    }
+
+    public CircuitBreaker.State getCircuitBreakerState() {
+        return circuitBreaker.getState();
+    }
+
+    /**
+     * Number of users with at least one cached principal.
+     */
+    public int getCachedUserCount() {
+        return usernameToTokens.size();
+    }
+
+    /**
+     * Drops every cached principal of the user, here and in the shared cache, so their next request is authenticated
+     * against the Security Portal again.
+     *
+     * @return the number of tokens dropped
+     */
+    public int invalidateUser(String username) {
+        Set<TokenDigest> tokens = usernameToTokens.get(username);
+        if (tokens == null) {
+            return 0;
+        }
+
+        List<TokenDigest> invalidated = new ArrayList<>(tokens);
+        for (TokenDigest cacheKey : invalidated) {
+            invalidatePrincipal(cacheKey);
+            invalidateShared(cacheKey);
+        }
+        LOGGER.info("Invalidated {} cached tokens of user {}", invalidated.size(), username);
+        return invalidated.size();
+    }
+
+    /**
+     * Forgets whatever is cached for the token, principal or rejection, here and in the shared cache.
+     */
+    public void invalidateToken(TokenDigest cacheKey) {
+        invalidatePrincipal(cacheKey);
+        tokenToErrorCodeCache.invalidate(cacheKey);
+        tokenToTransientFailureCache.invalidate(cacheKey);
+        if (rejectedTokenFilter != null) {
+            // The filter cannot forget a single token, only all of them
+            rejectedTokenFilter.clear();
+        }
+        invalidateShared(cacheKey);
+    }
+
+    public void invalidateAll() {
+        tokenToPrincipalCache.invalidateAll();
+        if (tokenToLastKnownPrincipalCache != null) {
+            tokenToLastKnownPrincipalCache.invalidateAll();
+        }
+        tokenToErrorCodeCache.invalidateAll();
+        tokenToTransientFailureCache.invalidateAll();
+        if (rejectedTokenFilter != null) {
+            rejectedTokenFilter.clear();
+        }
+        if (throttleKeyToFailureCountCache != null) {
+            throttleKeyToFailureCountCache.invalidateAll();
+        }
+        if (sharedCache != null) {
+            try {
+                sharedCache.invalidateAll();
+            } catch (IOException | RuntimeException e) {
+                metrics.getSharedCacheFailures().mark();
+                LOGGER.warn("Failed to invalidate the shared authentication cache", e);
+            }
+        }
+        LOGGER.info("Invalidated all cached tokens");
+    }
+
+    /**
+     * Registers a listener notified whenever a principal leaves the cache, whether it expired, was evicted, rejected
+     * or replaced by a refreshed one.
+     */
+    public void addPrincipalRemovalListener(Consumer<Principal> listener) {
+        principalRemovalListeners.add(listener);
+    }
+
+    public SecurityPortalMetrics getMetrics() {
+        return metrics;
+    }
+
+    @FunctionalInterface
+    private interface PortalCall<T> {
+        T call() throws SecurityPortalException;
+    }
+
+    @FunctionalInterface
+    private interface EntityReader<T> {
+        T read(InputStream content) throws IOException;
+    }
 }
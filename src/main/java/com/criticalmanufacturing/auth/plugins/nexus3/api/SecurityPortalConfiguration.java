@@ -3,14 +3,41 @@ package com.criticalmanufacturing.auth.plugins.nexus3.api;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.PreDestroy;
 import javax.inject.Named;
 import javax.inject.Singleton;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.ClosedWatchServiceException;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
 import java.time.Duration;
+import java.time.format.DateTimeParseException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
+/**
+ * Settings of the plugin, read from {@code etc/criticalmanufacturing-oidc.properties}.
+ * <p>
+ * Values are parsed and validated once into an immutable snapshot, which getters only read. The file is watched and
+ * a valid change replaces the whole snapshot at once, then tells the change listeners which keys changed. An invalid
+ * change is logged and ignored, the previous snapshot stays in effect.
+ */
 @Singleton
 @Named
 public class SecurityPortalConfiguration {
@@ -18,56 +45,747 @@ public class SecurityPortalConfiguration {
     private static final String CONFIG_FILE = "criticalmanufacturing-oidc.properties";
     private static final Logger LOGGER = LoggerFactory.getLogger(SecurityPortalClient.class);
 
-    private static final String METADATA_URL_KEY = "metadata.url";
-    private static final String PRINCIPAL_CACHE_TTL_KEY = "principal.cache.ttl";
-    private static final String REQUEST_CONNECT_TIMEOUT = "request.timeout.connect";
-    private static final String REQUEST_CONNECTION_REQUEST_TIMEOUT = "request.timeout.connection-request";
-    private static final String REQUEST_SOCKET_TIMEOUT = "request.timeout.socket";
-    private static final String CLIENT_ID_KEY = "clientid";
+    // Editors and deployment tools write the file in several steps, a reload waits for them to finish
+    private static final long RELOAD_QUIET_PERIOD_MILLIS = 500;
+
+    static final String METADATA_URL_KEY = "metadata.url";
+    static final String METADATA_EAGER_LOAD_KEY = "metadata.eager-load";
+    static final String METADATA_REFRESH_INTERVAL_KEY = "metadata.refresh-interval";
+    public static final String PRINCIPAL_CACHE_TTL_KEY = "principal.cache.ttl";
+    static final String PRINCIPAL_CACHE_REFRESH_RATIO_KEY = "principal.cache.refresh-ratio";
+    public static final String PRINCIPAL_CACHE_STALE_WINDOW_KEY = "principal.cache.stale-window";
+    static final String PRINCIPAL_CACHE_TOKEN_LIFETIME_KEY = "principal.cache.token-lifetime";
+    public static final String PRINCIPAL_CACHE_MAX_SIZE_KEY = "principal.cache.max-size";
+    static final String PRINCIPAL_CACHE_MAX_WEIGHT_KEY = "principal.cache.max-weight";
+    static final String PRINCIPAL_CACHE_SNAPSHOT_ENABLED_KEY = "principal.cache.snapshot.enabled";
+    static final String PRINCIPAL_CACHE_SNAPSHOT_FILE_KEY = "principal.cache.snapshot.file";
+    static final String PRINCIPAL_CACHE_SNAPSHOT_INTERVAL_KEY = "principal.cache.snapshot.interval";
+    static final String SHARED_CACHE_KEY = "cache.shared";
+    static final String SHARED_CACHE_NEAR_TTL_KEY = "cache.shared.near-ttl";
+    static final String SHARED_CACHE_JDBC_QUERY_TIMEOUT_KEY = "cache.shared.jdbc.query-timeout";
+    static final String AUTHORIZATION_CACHE_ENABLED_KEY = "authorization.cache.enabled";
+    static final String ERROR_CACHE_TTL_KEY = "error.cache.ttl";
+    static final String ERROR_CACHE_MAX_SIZE_KEY = "error.cache.max-size";
+    static final String TRANSIENT_ERROR_BACKOFF_INITIAL_KEY = "error.transient.backoff.initial";
+    static final String TRANSIENT_ERROR_BACKOFF_MAX_KEY = "error.transient.backoff.max";
+    static final String ERROR_FILTER_ENABLED_KEY = "error.filter.enabled";
+    static final String ERROR_FILTER_EXPECTED_INSERTIONS_KEY = "error.filter.expected-insertions";
+    static final String ERROR_FILTER_FALSE_POSITIVE_PROBABILITY_KEY = "error.filter.false-positive-probability";
+    static final String LOGIN_THROTTLE_MAX_FAILURES_KEY = "login.throttle.max-failures";
+    static final String LOGIN_THROTTLE_WINDOW_KEY = "login.throttle.window";
+    static final String LOGIN_THROTTLE_BY_USERNAME_KEY = "login.throttle.by-username";
+    static final String TOKEN_PREFLIGHT_ENABLED_KEY = "token.preflight.enabled";
+    static final String TOKEN_PREFLIGHT_MIN_LENGTH_KEY = "token.preflight.min-length";
+    static final String TOKEN_PREFLIGHT_MAX_LENGTH_KEY = "token.preflight.max-length";
+    static final String TOKEN_PREFLIGHT_PATTERN_KEY = "token.preflight.pattern";
+    static final String REQUEST_CONNECT_TIMEOUT = "request.timeout.connect";
+    static final String REQUEST_CONNECTION_REQUEST_TIMEOUT = "request.timeout.connection-request";
+    static final String REQUEST_SOCKET_TIMEOUT = "request.timeout.socket";
+    static final String REQUEST_PARALLELISM = "request.parallelism";
+    static final String REQUEST_ASYNC = "request.async";
+    static final String REQUEST_ASYNC_THREADS = "request.async.threads";
+    static final String LOGIN_DEADLINE = "login.deadline";
+    static final String CONNECTION_POOL_MAX_TOTAL = "connection.pool.max-total";
+    static final String CONNECTION_POOL_MAX_PER_ROUTE = "connection.pool.max-per-route";
+    static final String CONNECTION_POOL_IDLE_TIMEOUT = "connection.pool.idle-timeout";
+    static final String CONNECTION_POOL_VALIDATE_AFTER_INACTIVITY = "connection.pool.validate-after-inactivity";
+    static final String CONNECTION_KEEP_ALIVE = "connection.keep-alive";
+    static final String CIRCUIT_BREAKER_FAILURE_THRESHOLD = "circuit-breaker.failure-threshold";
+    static final String CIRCUIT_BREAKER_OPEN_DURATION = "circuit-breaker.open-duration";
+    static final String JWT_LOCAL_VALIDATION_KEY = "jwt.local-validation";
+    static final String JWT_AUDIENCE_KEY = "jwt.audience";
+    static final String JWT_ROLES_CLAIM_KEY = "jwt.roles-claim";
+    static final String JWT_CLOCK_SKEW_KEY = "jwt.clock-skew";
+    static final String JWT_JWKS_TTL_KEY = "jwt.jwks.ttl";
+    static final String CLIENT_ID_KEY = "clientid";
 
     // Default values
     private static final String DEFAULT_CLIENT_ID = "Applications";
     private static final String DEFAULT_METADATA_URL = "https://security.criticalmanufacturing.com/tenant/CustomerPortal/.well-known/openid-configuration";
+    private static final boolean DEFAULT_METADATA_EAGER_LOAD = true;
+    private static final Duration DEFAULT_METADATA_REFRESH_INTERVAL = Duration.ofHours(1);
     private static final int DEFAULT_REQUEST_CONNECTION_REQUEST_TIMEOUT = 30000;
     private static final int DEFAULT_REQUEST_SOCKET_TIMEOUT = 30000;
     private static final int DEFAULT_REQUEST_CONNECT_TIMEOUT = 30000;
+    private static final int DEFAULT_REQUEST_PARALLELISM = 16;
+    private static final boolean DEFAULT_REQUEST_ASYNC = false;
+    private static final int DEFAULT_REQUEST_ASYNC_THREADS = 4;
+    private static final Duration DEFAULT_LOGIN_DEADLINE = Duration.ofSeconds(30);
+    private static final int DEFAULT_CONNECTION_POOL_MAX_TOTAL = 50;
+    private static final int DEFAULT_CONNECTION_POOL_MAX_PER_ROUTE = 20;
+    private static final int DEFAULT_CONNECTION_POOL_IDLE_TIMEOUT = 30000;
+    private static final int DEFAULT_CONNECTION_POOL_VALIDATE_AFTER_INACTIVITY = 2000;
+    private static final int DEFAULT_CONNECTION_KEEP_ALIVE = 60000;
     private static final Duration DEFAULT_PRINCIPAL_CACHE_TTL = Duration.ofMinutes(30);
+    private static final double DEFAULT_PRINCIPAL_CACHE_REFRESH_RATIO = 0;
+    private static final Duration DEFAULT_PRINCIPAL_CACHE_STALE_WINDOW = Duration.ZERO;
+    private static final boolean DEFAULT_PRINCIPAL_CACHE_TOKEN_LIFETIME = false;
+    private static final long DEFAULT_PRINCIPAL_CACHE_MAX_SIZE = 10000;
+    private static final long DEFAULT_PRINCIPAL_CACHE_MAX_WEIGHT = 0;
+    private static final boolean DEFAULT_PRINCIPAL_CACHE_SNAPSHOT_ENABLED = false;
+    private static final Duration DEFAULT_PRINCIPAL_CACHE_SNAPSHOT_INTERVAL = Duration.ofMinutes(5);
+    private static final String DEFAULT_SHARED_CACHE = "none";
+    private static final Duration DEFAULT_SHARED_CACHE_NEAR_TTL = Duration.ofSeconds(30);
+    private static final Duration DEFAULT_SHARED_CACHE_JDBC_QUERY_TIMEOUT = Duration.ofSeconds(2);
+    private static final boolean DEFAULT_AUTHORIZATION_CACHE_ENABLED = true;
+    private static final Duration DEFAULT_ERROR_CACHE_TTL = Duration.ofMinutes(5);
+    private static final long DEFAULT_ERROR_CACHE_MAX_SIZE = 10000;
+    private static final Duration DEFAULT_TRANSIENT_ERROR_BACKOFF_INITIAL = Duration.ofSeconds(1);
+    private static final Duration DEFAULT_TRANSIENT_ERROR_BACKOFF_MAX = Duration.ofSeconds(30);
+    private static final boolean DEFAULT_ERROR_FILTER_ENABLED = false;
+    private static final long DEFAULT_ERROR_FILTER_EXPECTED_INSERTIONS = 1000000;
+    private static final double DEFAULT_ERROR_FILTER_FALSE_POSITIVE_PROBABILITY = 0.000001;
+    private static final int DEFAULT_LOGIN_THROTTLE_MAX_FAILURES = 0;
+    private static final Duration DEFAULT_LOGIN_THROTTLE_WINDOW = Duration.ofMinutes(1);
+    private static final boolean DEFAULT_LOGIN_THROTTLE_BY_USERNAME = false;
+    private static final boolean DEFAULT_TOKEN_PREFLIGHT_ENABLED = true;
+    private static final int DEFAULT_TOKEN_PREFLIGHT_MIN_LENGTH = 1;
+    private static final int DEFAULT_TOKEN_PREFLIGHT_MAX_LENGTH = 8192;
+    // Visible ASCII, which holds every opaque, base64 or JWT token
+    private static final String DEFAULT_TOKEN_PREFLIGHT_PATTERN = "[\\x21-\\x7E]+";
+    private static final boolean DEFAULT_JWT_LOCAL_VALIDATION = false;
+    private static final String DEFAULT_JWT_ROLES_CLAIM = "role";
+    private static final Duration DEFAULT_JWT_CLOCK_SKEW = Duration.ofMinutes(1);
+    private static final Duration DEFAULT_JWT_JWKS_TTL = Duration.ofHours(1);
+    private static final int DEFAULT_CIRCUIT_BREAKER_FAILURE_THRESHOLD = 5;
+    private static final Duration DEFAULT_CIRCUIT_BREAKER_OPEN_DURATION = Duration.ofSeconds(30);
+
+
+    private volatile Snapshot snapshot;
 
+    // The watched file, null when built from properties
+    private final Path file;
+    private final Thread watcher;
 
-    private Properties configuration;
+    private final List<Consumer<Set<String>>> changeListeners = new CopyOnWriteArrayList<>();
 
     public SecurityPortalConfiguration() {
-        configuration = new Properties();
+        this(Paths.get(".", "etc", CONFIG_FILE));
+    }
+
+    /**
+     * Reads the given file and reloads it whenever it changes.
+     */
+    public SecurityPortalConfiguration(Path file) {
+        this.file = file;
 
+        Properties properties;
         try {
-            configuration.load(Files.newInputStream(Paths.get(".", "etc", CONFIG_FILE)));
-        } catch (Exception e) {
+            properties = load(file);
+        } catch (IOException e) {
             LOGGER.warn("Error reading Critical Manufacturing OIDC properties, falling back to default configuration", e);
+            properties = new Properties();
+        }
+        // Nexus starts with whatever is valid, a typo in one key must not discard the tenant and client of the others
+        snapshot = new Snapshot(properties, true);
+
+        watcher = new Thread(this::watch, "security-portal-configuration-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    /**
+     * Fixed settings, changed only through {@link #reload(Properties)}.
+     *
+     * @throws IllegalArgumentException when a value is invalid
+     */
+    public SecurityPortalConfiguration(Properties configuration) {
+        this.file = null;
+        this.watcher = null;
+        this.snapshot = new Snapshot(configuration, false);
+    }
+
+    private static Properties load(Path file) throws IOException {
+        Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(file)) {
+            properties.load(in);
+        }
+        return properties;
+    }
+
+    /**
+     * Registers a listener notified with the keys whose values changed, after the new values are in effect.
+     */
+    public void addChangeListener(Consumer<Set<String>> listener) {
+        changeListeners.add(listener);
+    }
+
+    /**
+     * Replaces every setting with the given ones and notifies the change listeners.
+     *
+     * @throws IllegalArgumentException when a value is invalid, leaving the current settings in effect
+     */
+    public void reload(Properties configuration) {
+        Snapshot changed = new Snapshot(configuration, false);
+        Set<String> changedKeys;
+        synchronized (this) {
+            changedKeys = snapshot.changedKeys(changed);
+            snapshot = changed;
+        }
+
+        if (changedKeys.isEmpty()) {
+            return;
+        }
+        LOGGER.info("Critical Manufacturing OIDC properties changed: {}", changedKeys);
+        for (Consumer<Set<String>> listener : changeListeners) {
+            try {
+                listener.accept(changedKeys);
+            } catch (RuntimeException e) {
+                LOGGER.warn("Failed to apply changed Critical Manufacturing OIDC properties", e);
+            }
+        }
+    }
+
+    private void reloadFile() {
+        try {
+            reload(load(file));
+        } catch (IOException | IllegalArgumentException e) {
+            LOGGER.warn("Ignoring changed Critical Manufacturing OIDC properties, keeping the current ones: {}", e.getMessage());
+        }
+    }
+
+    private void watch() {
+        Path directory = file.toAbsolutePath().getParent();
+        try (WatchService watchService = directory.getFileSystem().newWatchService()) {
+            directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+            while (true) {
+                WatchKey key = watchService.take();
+                boolean changed = isFileChanged(key);
+                if (!key.reset()) {
+                    LOGGER.warn("{} is no longer watched for changes", directory);
+                    return;
+                }
+                if (!changed) {
+                    continue;
+                }
+
+                Thread.sleep(RELOAD_QUIET_PERIOD_MILLIS);
+                for (WatchKey pending = watchService.poll(); pending != null; pending = watchService.poll()) {
+                    pending.pollEvents();
+                    pending.reset();
+                }
+                reloadFile();
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // Closed
+        } catch (IOException | RuntimeException e) {
+            LOGGER.warn("Not watching {} for changes, a restart is needed to apply them", file, e);
+        }
+    }
+
+    private boolean isFileChanged(WatchKey key) {
+        boolean changed = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            // Events were lost, the file may be among them
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW || file.getFileName().equals(event.context())) {
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Stops watching the file for changes, once Nexus stops or the plugin is unloaded.
+     */
+    @PreDestroy
+    public void close() {
+        if (watcher != null) {
+            watcher.interrupt();
         }
     }
 
     public String getClientId() {
-        return configuration.getOrDefault(CLIENT_ID_KEY, DEFAULT_CLIENT_ID).toString();
+        return snapshot.clientId;
     }
 
     public String getMetadataUrl() {
-        return configuration.getOrDefault(METADATA_URL_KEY, DEFAULT_METADATA_URL).toString();
+        return snapshot.metadataUrl;
+    }
+
+    public boolean isMetadataEagerLoad() {
+        return snapshot.metadataEagerLoad;
+    }
+
+    /**
+     * Interval at which the OIDC metadata is revalidated in the background. Zero disables the refresh.
+     */
+    public Duration getMetadataRefreshInterval() {
+        return snapshot.metadataRefreshInterval;
     }
 
     public Duration getPrincipalCacheTtl() {
-        return Duration.parse(configuration.getProperty(PRINCIPAL_CACHE_TTL_KEY, DEFAULT_PRINCIPAL_CACHE_TTL.toString()));
+        return snapshot.principalCacheTtl;
+    }
+
+    /**
+     * Fraction of the principal cache TTL after which a cached principal is refreshed in the background on its next
+     * use. Zero disables refresh-ahead.
+     */
+    public double getPrincipalCacheRefreshRatio() {
+        return snapshot.principalCacheRefreshRatio;
+    }
+
+    /**
+     * How long past its TTL a principal may still be served while the Security Portal is unavailable. Zero disables
+     * serving stale principals.
+     */
+    public Duration getPrincipalCacheStaleWindow() {
+        return snapshot.principalCacheStaleWindow;
+    }
+
+    /**
+     * Whether a principal is cached no longer than the lifetime the Security Portal gives its tokens, nor past the
+     * expiry of a PAT that is itself a JWT. The principal cache TTL stays the upper bound.
+     */
+    public boolean isPrincipalCacheTokenLifetime() {
+        return snapshot.principalCacheTokenLifetime;
+    }
+
+    public boolean isPrincipalCacheSnapshotEnabled() {
+        return snapshot.principalCacheSnapshotEnabled;
+    }
+
+    /**
+     * File the principal cache is saved to and restored from, by default in the Nexus data directory.
+     */
+    public Path getPrincipalCacheSnapshotFile() {
+        return snapshot.principalCacheSnapshotFile;
+    }
+
+    public Duration getPrincipalCacheSnapshotInterval() {
+        return snapshot.principalCacheSnapshotInterval;
+    }
+
+    /**
+     * Cache shared by the Nexus nodes, {@code none} or {@code jdbc}.
+     */
+    public String getSharedCache() {
+        return snapshot.sharedCache;
+    }
+
+    /**
+     * How long a node serves a principal from its own cache before looking at the shared cache again, which bounds
+     * how long a token rejected on another node is still accepted here.
+     */
+    public Duration getSharedCacheNearTtl() {
+        return snapshot.sharedCacheNearTtl;
+    }
+
+    /**
+     * How long a statement against the shared cache table may run, rounded up to whole seconds.
+     */
+    public Duration getSharedCacheJdbcQueryTimeout() {
+        return snapshot.sharedCacheJdbcQueryTimeout;
+    }
+
+    public boolean isAuthorizationCacheEnabled() {
+        return snapshot.authorizationCacheEnabled;
+    }
+
+    public long getPrincipalCacheMaxSize() {
+        return snapshot.principalCacheMaxSize;
+    }
+
+    /**
+     * Maximum total weight of the principal cache, where each principal weighs one plus its number of roles.
+     * Takes precedence over the maximum size when greater than zero.
+     */
+    public long getPrincipalCacheMaxWeight() {
+        return snapshot.principalCacheMaxWeight;
+    }
+
+    public Duration getErrorCacheTtl() {
+        return snapshot.errorCacheTtl;
+    }
+
+    public long getErrorCacheMaxSize() {
+        return snapshot.errorCacheMaxSize;
+    }
+
+    /**
+     * How long a token whose login failed for reasons unrelated to it (I/O errors, 5xx, timeouts) waits before it is
+     * tried again. Doubles with each consecutive failure.
+     */
+    public Duration getTransientErrorBackoffInitial() {
+        return snapshot.transientErrorBackoffInitial;
+    }
+
+    public Duration getTransientErrorBackoffMax() {
+        return snapshot.transientErrorBackoffMax;
+    }
+
+    /**
+     * Whether rejected tokens are also remembered in a fixed-size filter, which keeps turning them away once they
+     * no longer fit in the error cache.
+     */
+    public boolean isErrorFilterEnabled() {
+        return snapshot.errorFilterEnabled;
+    }
+
+    /**
+     * Rejected tokens per error cache TTL the filter is sized for, beyond which its false positive probability grows.
+     */
+    public long getErrorFilterExpectedInsertions() {
+        return snapshot.errorFilterExpectedInsertions;
+    }
+
+    public double getErrorFilterFalsePositiveProbability() {
+        return snapshot.errorFilterFalsePositiveProbability;
+    }
+
+    /**
+     * Rejected tokens after which further new tokens from the same client, or of the same username, are turned away
+     * until the throttle window ends, 0 disables throttling.
+     */
+    public int getLoginThrottleMaxFailures() {
+        return snapshot.loginThrottleMaxFailures;
+    }
+
+    public Duration getLoginThrottleWindow() {
+        return snapshot.loginThrottleWindow;
+    }
+
+    /**
+     * Whether the throttle counts rejected tokens per username instead of per client address. Anyone can then lock a
+     * user out by sending bad tokens with their username, and a spray rotating usernames is never throttled.
+     */
+    public boolean isLoginThrottleByUsername() {
+        return snapshot.loginThrottleByUsername;
+    }
+
+    /**
+     * Whether tokens are checked locally before any call to the Security Portal, turning away those that cannot be a
+     * valid PAT.
+     */
+    public boolean isTokenPreflightEnabled() {
+        return snapshot.tokenPreflightEnabled;
+    }
+
+    public int getTokenPreflightMinLength() {
+        return snapshot.tokenPreflightMinLength;
+    }
+
+    public int getTokenPreflightMaxLength() {
+        return snapshot.tokenPreflightMaxLength;
+    }
+
+    /**
+     * Pattern the whole token must match.
+     */
+    public Pattern getTokenPreflightPattern() {
+        return snapshot.tokenPreflightPattern;
     }
 
     public int getRequestConnectTimeout() {
-        return Integer.parseInt(configuration.getProperty(REQUEST_CONNECT_TIMEOUT, String.valueOf(DEFAULT_REQUEST_CONNECT_TIMEOUT)));
+        return snapshot.requestConnectTimeout;
     }
 
     public Integer getRequestConnectionRequestTimeout() {
-        return Integer.parseInt(configuration.getProperty(REQUEST_CONNECTION_REQUEST_TIMEOUT, String.valueOf(DEFAULT_REQUEST_CONNECTION_REQUEST_TIMEOUT)));
+        return snapshot.requestConnectionRequestTimeout;
     }
 
     public Integer getRequestSocketTimeout() {
-        return Integer.parseInt(configuration.getProperty(REQUEST_SOCKET_TIMEOUT, String.valueOf(DEFAULT_REQUEST_SOCKET_TIMEOUT)));
+        return snapshot.requestSocketTimeout;
+    }
+
+    public int getRequestParallelism() {
+        return snapshot.requestParallelism;
+    }
+
+    public boolean isRequestAsync() {
+        return snapshot.requestAsync;
+    }
+
+    public int getRequestAsyncThreads() {
+        return snapshot.requestAsyncThreads;
+    }
+
+    public Duration getLoginDeadline() {
+        return snapshot.loginDeadline;
+    }
+
+    public int getConnectionPoolMaxTotal() {
+        return snapshot.connectionPoolMaxTotal;
+    }
+
+    public int getConnectionPoolMaxPerRoute() {
+        return snapshot.connectionPoolMaxPerRoute;
+    }
+
+    public int getConnectionPoolIdleTimeout() {
+        return snapshot.connectionPoolIdleTimeout;
+    }
+
+    public int getConnectionPoolValidateAfterInactivity() {
+        return snapshot.connectionPoolValidateAfterInactivity;
+    }
+
+    public int getConnectionKeepAlive() {
+        return snapshot.connectionKeepAlive;
+    }
+
+    /**
+     * Consecutive Security Portal failures after which calls are refused for the open duration. Zero disables the
+     * circuit breaker.
+     */
+    public int getCircuitBreakerFailureThreshold() {
+        return snapshot.circuitBreakerFailureThreshold;
+    }
+
+    public Duration getCircuitBreakerOpenDuration() {
+        return snapshot.circuitBreakerOpenDuration;
     }
 
+    /**
+     * Whether signed JWT access tokens are validated locally against the portal's JWKS, taking the subject and roles
+     * from their claims instead of calling the user information and roles endpoints.
+     */
+    public boolean isJwtLocalValidation() {
+        return snapshot.jwtLocalValidation;
+    }
+
+    /**
+     * Audience expected in locally validated access tokens, or {@code null} to accept any audience.
+     */
+    public String getJwtAudience() {
+        return snapshot.jwtAudience;
+    }
+
+    public String getJwtRolesClaim() {
+        return snapshot.jwtRolesClaim;
+    }
+
+    public Duration getJwtClockSkew() {
+        return snapshot.jwtClockSkew;
+    }
+
+    public Duration getJwtJwksTtl() {
+        return snapshot.jwtJwksTtl;
+    }
+
+    /**
+     * Every setting parsed and validated, so reading one costs no more than a field access.
+     */
+    private static final class Snapshot {
+
+        private final Map<String, String> values;
+        private final boolean lenient;
+
+        private final String clientId;
+        private final String metadataUrl;
+        private final boolean metadataEagerLoad;
+        private final Duration metadataRefreshInterval;
+        private final Duration principalCacheTtl;
+        private final double principalCacheRefreshRatio;
+        private final Duration principalCacheStaleWindow;
+        private final boolean principalCacheTokenLifetime;
+        private final long principalCacheMaxSize;
+        private final long principalCacheMaxWeight;
+        private final boolean principalCacheSnapshotEnabled;
+        private final Path principalCacheSnapshotFile;
+        private final Duration principalCacheSnapshotInterval;
+        private final String sharedCache;
+        private final Duration sharedCacheNearTtl;
+        private final Duration sharedCacheJdbcQueryTimeout;
+        private final boolean authorizationCacheEnabled;
+        private final Duration errorCacheTtl;
+        private final long errorCacheMaxSize;
+        private final Duration transientErrorBackoffInitial;
+        private final Duration transientErrorBackoffMax;
+        private final boolean errorFilterEnabled;
+        private final long errorFilterExpectedInsertions;
+        private final double errorFilterFalsePositiveProbability;
+        private final int loginThrottleMaxFailures;
+        private final Duration loginThrottleWindow;
+        private final boolean loginThrottleByUsername;
+        private final boolean tokenPreflightEnabled;
+        private final int tokenPreflightMinLength;
+        private final int tokenPreflightMaxLength;
+        private final Pattern tokenPreflightPattern;
+        private final int requestConnectTimeout;
+        private final int requestConnectionRequestTimeout;
+        private final int requestSocketTimeout;
+        private final int requestParallelism;
+        private final boolean requestAsync;
+        private final int requestAsyncThreads;
+        private final Duration loginDeadline;
+        private final int connectionPoolMaxTotal;
+        private final int connectionPoolMaxPerRoute;
+        private final int connectionPoolIdleTimeout;
+        private final int connectionPoolValidateAfterInactivity;
+        private final int connectionKeepAlive;
+        private final int circuitBreakerFailureThreshold;
+        private final Duration circuitBreakerOpenDuration;
+        private final boolean jwtLocalValidation;
+        private final String jwtAudience;
+        private final String jwtRolesClaim;
+        private final Duration jwtClockSkew;
+        private final Duration jwtJwksTtl;
+
+        private Snapshot(Properties configuration, boolean lenient) {
+            this.lenient = lenient;
+            Map<String, String> values = new HashMap<>();
+            for (String key : configuration.stringPropertyNames()) {
+                values.put(key, configuration.getProperty(key).trim());
+            }
+            this.values = Collections.unmodifiableMap(values);
+
+            clientId = getString(CLIENT_ID_KEY, DEFAULT_CLIENT_ID);
+            metadataUrl = getString(METADATA_URL_KEY, DEFAULT_METADATA_URL);
+            metadataEagerLoad = getBoolean(METADATA_EAGER_LOAD_KEY, DEFAULT_METADATA_EAGER_LOAD);
+            metadataRefreshInterval = getDuration(METADATA_REFRESH_INTERVAL_KEY, DEFAULT_METADATA_REFRESH_INTERVAL, false);
+            principalCacheTtl = getDuration(PRINCIPAL_CACHE_TTL_KEY, DEFAULT_PRINCIPAL_CACHE_TTL, true);
+            principalCacheRefreshRatio = getDouble(PRINCIPAL_CACHE_REFRESH_RATIO_KEY, DEFAULT_PRINCIPAL_CACHE_REFRESH_RATIO, 0, 1);
+            principalCacheStaleWindow = getDuration(PRINCIPAL_CACHE_STALE_WINDOW_KEY, DEFAULT_PRINCIPAL_CACHE_STALE_WINDOW, false);
+            principalCacheTokenLifetime = getBoolean(PRINCIPAL_CACHE_TOKEN_LIFETIME_KEY, DEFAULT_PRINCIPAL_CACHE_TOKEN_LIFETIME);
+            principalCacheMaxSize = getLong(PRINCIPAL_CACHE_MAX_SIZE_KEY, DEFAULT_PRINCIPAL_CACHE_MAX_SIZE, 0);
+            principalCacheMaxWeight = getLong(PRINCIPAL_CACHE_MAX_WEIGHT_KEY, DEFAULT_PRINCIPAL_CACHE_MAX_WEIGHT, 0);
+            principalCacheSnapshotEnabled = getBoolean(PRINCIPAL_CACHE_SNAPSHOT_ENABLED_KEY, DEFAULT_PRINCIPAL_CACHE_SNAPSHOT_ENABLED);
+            String snapshotFile = values.get(PRINCIPAL_CACHE_SNAPSHOT_FILE_KEY);
+            principalCacheSnapshotFile = snapshotFile != null ? Paths.get(snapshotFile)
+                    : Paths.get(System.getProperty("karaf.data", "."), "criticalmanufacturing-oidc", "principal-cache.bin");
+            principalCacheSnapshotInterval = getDuration(PRINCIPAL_CACHE_SNAPSHOT_INTERVAL_KEY, DEFAULT_PRINCIPAL_CACHE_SNAPSHOT_INTERVAL, true);
+            sharedCache = getString(SHARED_CACHE_KEY, DEFAULT_SHARED_CACHE);
+            sharedCacheNearTtl = getDuration(SHARED_CACHE_NEAR_TTL_KEY, DEFAULT_SHARED_CACHE_NEAR_TTL, false);
+            sharedCacheJdbcQueryTimeout = getDuration(SHARED_CACHE_JDBC_QUERY_TIMEOUT_KEY, DEFAULT_SHARED_CACHE_JDBC_QUERY_TIMEOUT, true);
+            authorizationCacheEnabled = getBoolean(AUTHORIZATION_CACHE_ENABLED_KEY, DEFAULT_AUTHORIZATION_CACHE_ENABLED);
+            errorCacheTtl = getDuration(ERROR_CACHE_TTL_KEY, DEFAULT_ERROR_CACHE_TTL, true);
+            errorCacheMaxSize = getLong(ERROR_CACHE_MAX_SIZE_KEY, DEFAULT_ERROR_CACHE_MAX_SIZE, 0);
+            transientErrorBackoffInitial = getDuration(TRANSIENT_ERROR_BACKOFF_INITIAL_KEY, DEFAULT_TRANSIENT_ERROR_BACKOFF_INITIAL, false);
+            transientErrorBackoffMax = getDuration(TRANSIENT_ERROR_BACKOFF_MAX_KEY, DEFAULT_TRANSIENT_ERROR_BACKOFF_MAX, false);
+            errorFilterEnabled = getBoolean(ERROR_FILTER_ENABLED_KEY, DEFAULT_ERROR_FILTER_ENABLED);
+            errorFilterExpectedInsertions = getLong(ERROR_FILTER_EXPECTED_INSERTIONS_KEY, DEFAULT_ERROR_FILTER_EXPECTED_INSERTIONS, 1);
+            errorFilterFalsePositiveProbability = getDouble(ERROR_FILTER_FALSE_POSITIVE_PROBABILITY_KEY, DEFAULT_ERROR_FILTER_FALSE_POSITIVE_PROBABILITY, Double.MIN_VALUE, 1);
+            loginThrottleMaxFailures = getInt(LOGIN_THROTTLE_MAX_FAILURES_KEY, DEFAULT_LOGIN_THROTTLE_MAX_FAILURES, 0);
+            loginThrottleWindow = getDuration(LOGIN_THROTTLE_WINDOW_KEY, DEFAULT_LOGIN_THROTTLE_WINDOW, true);
+            loginThrottleByUsername = getBoolean(LOGIN_THROTTLE_BY_USERNAME_KEY, DEFAULT_LOGIN_THROTTLE_BY_USERNAME);
+            tokenPreflightEnabled = getBoolean(TOKEN_PREFLIGHT_ENABLED_KEY, DEFAULT_TOKEN_PREFLIGHT_ENABLED);
+            tokenPreflightMinLength = getInt(TOKEN_PREFLIGHT_MIN_LENGTH_KEY, DEFAULT_TOKEN_PREFLIGHT_MIN_LENGTH, 1);
+            tokenPreflightMaxLength = getInt(TOKEN_PREFLIGHT_MAX_LENGTH_KEY, DEFAULT_TOKEN_PREFLIGHT_MAX_LENGTH, tokenPreflightMinLength);
+            tokenPreflightPattern = getPattern(TOKEN_PREFLIGHT_PATTERN_KEY, DEFAULT_TOKEN_PREFLIGHT_PATTERN);
+            requestConnectTimeout = getInt(REQUEST_CONNECT_TIMEOUT, DEFAULT_REQUEST_CONNECT_TIMEOUT, 0);
+            requestConnectionRequestTimeout = getInt(REQUEST_CONNECTION_REQUEST_TIMEOUT, DEFAULT_REQUEST_CONNECTION_REQUEST_TIMEOUT, 0);
+            requestSocketTimeout = getInt(REQUEST_SOCKET_TIMEOUT, DEFAULT_REQUEST_SOCKET_TIMEOUT, 0);
+            requestParallelism = getInt(REQUEST_PARALLELISM, DEFAULT_REQUEST_PARALLELISM, 1);
+            requestAsync = getBoolean(REQUEST_ASYNC, DEFAULT_REQUEST_ASYNC);
+            requestAsyncThreads = getInt(REQUEST_ASYNC_THREADS, DEFAULT_REQUEST_ASYNC_THREADS, 1);
+            loginDeadline = getDuration(LOGIN_DEADLINE, DEFAULT_LOGIN_DEADLINE, true);
+            connectionPoolMaxTotal = getInt(CONNECTION_POOL_MAX_TOTAL, DEFAULT_CONNECTION_POOL_MAX_TOTAL, 1);
+            connectionPoolMaxPerRoute = getInt(CONNECTION_POOL_MAX_PER_ROUTE, DEFAULT_CONNECTION_POOL_MAX_PER_ROUTE, 1);
+            connectionPoolIdleTimeout = getInt(CONNECTION_POOL_IDLE_TIMEOUT, DEFAULT_CONNECTION_POOL_IDLE_TIMEOUT, 0);
+            connectionPoolValidateAfterInactivity = getInt(CONNECTION_POOL_VALIDATE_AFTER_INACTIVITY, DEFAULT_CONNECTION_POOL_VALIDATE_AFTER_INACTIVITY, 0);
+            connectionKeepAlive = getInt(CONNECTION_KEEP_ALIVE, DEFAULT_CONNECTION_KEEP_ALIVE, 0);
+            circuitBreakerFailureThreshold = getInt(CIRCUIT_BREAKER_FAILURE_THRESHOLD, DEFAULT_CIRCUIT_BREAKER_FAILURE_THRESHOLD, 0);
+            circuitBreakerOpenDuration = getDuration(CIRCUIT_BREAKER_OPEN_DURATION, DEFAULT_CIRCUIT_BREAKER_OPEN_DURATION, false);
+            jwtLocalValidation = getBoolean(JWT_LOCAL_VALIDATION_KEY, DEFAULT_JWT_LOCAL_VALIDATION);
+            String audience = getString(JWT_AUDIENCE_KEY, "");
+            jwtAudience = audience.isEmpty() ? null : audience;
+            jwtRolesClaim = getString(JWT_ROLES_CLAIM_KEY, DEFAULT_JWT_ROLES_CLAIM);
+            jwtClockSkew = getDuration(JWT_CLOCK_SKEW_KEY, DEFAULT_JWT_CLOCK_SKEW, false);
+            jwtJwksTtl = getDuration(JWT_JWKS_TTL_KEY, DEFAULT_JWT_JWKS_TTL, false);
+        }
+
+        // Keys whose value differs in the other snapshot, including those only set in one of them
+        private Set<String> changedKeys(Snapshot other) {
+            Set<String> changedKeys = new HashSet<>(values.keySet());
+            changedKeys.addAll(other.values.keySet());
+            changedKeys.removeIf(key -> Objects.equals(values.get(key), other.values.get(key)));
+            return Collections.unmodifiableSet(changedKeys);
+        }
+
+        private String getString(String key, String defaultValue) {
+            return values.getOrDefault(key, defaultValue);
+        }
+
+        private boolean getBoolean(String key, boolean defaultValue) {
+            String value = values.get(key);
+            if (value == null) {
+                return defaultValue;
+            }
+            // Anything but true or false is a typo rather than false
+            if (!value.equalsIgnoreCase("true") && !value.equalsIgnoreCase("false")) {
+                return invalid(key, value, null, defaultValue);
+            }
+            return Boolean.parseBoolean(value);
+        }
+
+        private int getInt(String key, int defaultValue, int min) {
+            return (int) getLong(key, defaultValue, min, Integer.MAX_VALUE);
+        }
+
+        private long getLong(String key, long defaultValue, long min) {
+            return getLong(key, defaultValue, min, Long.MAX_VALUE);
+        }
+
+        private long getLong(String key, long defaultValue, long min, long max) {
+            String value = values.get(key);
+            if (value == null) {
+                return defaultValue;
+            }
+            long parsed;
+            try {
+                parsed = Long.parseLong(value);
+            } catch (NumberFormatException e) {
+                return invalid(key, value, e, defaultValue);
+            }
+            if (parsed < min || parsed > max) {
+                return invalid(key, value, null, defaultValue);
+            }
+            return parsed;
+        }
+
+        // Within [min, max)
+        private double getDouble(String key, double defaultValue, double min, double max) {
+            String value = values.get(key);
+            if (value == null) {
+                return defaultValue;
+            }
+            double parsed;
+            try {
+                parsed = Double.parseDouble(value);
+            } catch (NumberFormatException e) {
+                return invalid(key, value, e, defaultValue);
+            }
+            if (!(parsed >= min && parsed < max)) {
+                return invalid(key, value, null, defaultValue);
+            }
+            return parsed;
+        }
+
+        private Pattern getPattern(String key, String defaultValue) {
+            String value = getString(key, defaultValue);
+            try {
+                return Pattern.compile(value);
+            } catch (PatternSyntaxException e) {
+                return invalid(key, value, e, Pattern.compile(defaultValue));
+            }
+        }
+
+        private Duration getDuration(String key, Duration defaultValue, boolean positive) {
+            String value = values.get(key);
+            if (value == null) {
+                return defaultValue;
+            }
+            Duration parsed;
+            try {
+                parsed = Duration.parse(value);
+            } catch (DateTimeParseException e) {
+                return invalid(key, value, e, defaultValue);
+            }
+            if (parsed.isNegative() || (positive && parsed.isZero())) {
+                return invalid(key, value, null, defaultValue);
+            }
+            return parsed;
+        }
+
+        // A lenient snapshot falls back to the default of the offending key alone, never to that of the other keys
+        private <T> T invalid(String key, String value, Exception cause, T defaultValue) {
+            IllegalArgumentException invalid = new IllegalArgumentException("Invalid value for " + key + ": " + value, cause);
+            if (!lenient) {
+                throw invalid;
+            }
+            LOGGER.error("{}, using the default {} instead", invalid.getMessage(), defaultValue);
+            return defaultValue;
+        }
+    }
 }
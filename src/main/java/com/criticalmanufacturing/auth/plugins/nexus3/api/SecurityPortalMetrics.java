@@ -0,0 +1,198 @@
+package com.criticalmanufacturing.auth.plugins.nexus3.api;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+import com.codahale.metrics.Timer;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Dropwizard metrics of the authentication path, published to the registry Nexus exports through JMX and its
+ * metrics endpoint.
+ */
+public class SecurityPortalMetrics {
+
+    public static final String NEXUS_REGISTRY = "nexus";
+
+    private static final String PREFIX = "com.criticalmanufacturing.auth.plugins.nexus3";
+
+    private final MetricRegistry registry;
+
+    private final Timer authentication;
+    private final Meter authenticationFailures;
+
+    private final Timer exchangeToken;
+    private final Timer userInformation;
+    private final Timer userRoles;
+    private final Timer oidcInformation;
+    private final Timer jsonWebKeySet;
+
+    private final Meter cacheHits;
+    private final Meter cacheMisses;
+    private final Meter cacheNegativeHits;
+    private final Meter cacheStaleHits;
+    private final Meter cacheRejectedFilterHits;
+    private final Meter cacheTransientFailureHits;
+    private final Meter sharedCacheHits;
+    private final Meter sharedCacheFailures;
+    private final Meter coalescedLogins;
+    private final Meter loginDeadlineExceeded;
+    private final Meter throttledLogins;
+    private final Meter preflightRejectedLogins;
+
+    private final Counter portalRequestsInFlight;
+    private final Meter portalErrors;
+    private final Meter portalRejections;
+    private final ConcurrentMap<Integer, Meter> portalResponses = new ConcurrentHashMap<>();
+
+    public SecurityPortalMetrics() {
+        this(SharedMetricRegistries.getOrCreate(NEXUS_REGISTRY));
+    }
+
+    public SecurityPortalMetrics(MetricRegistry registry) {
+        this.registry = registry;
+
+        authentication = registry.timer(name("authentication"));
+        authenticationFailures = registry.meter(name("authentication", "failures"));
+
+        exchangeToken = registry.timer(name("portal", "exchange-token"));
+        userInformation = registry.timer(name("portal", "user-information"));
+        userRoles = registry.timer(name("portal", "user-roles"));
+        oidcInformation = registry.timer(name("portal", "oidc-information"));
+        jsonWebKeySet = registry.timer(name("portal", "jwks"));
+
+        cacheHits = registry.meter(name("cache", "hits"));
+        cacheMisses = registry.meter(name("cache", "misses"));
+        cacheNegativeHits = registry.meter(name("cache", "negative-hits"));
+        cacheStaleHits = registry.meter(name("cache", "stale-hits"));
+        cacheRejectedFilterHits = registry.meter(name("cache", "rejected-filter-hits"));
+        cacheTransientFailureHits = registry.meter(name("cache", "transient-failure-hits"));
+        sharedCacheHits = registry.meter(name("cache", "shared", "hits"));
+        sharedCacheFailures = registry.meter(name("cache", "shared", "failures"));
+        coalescedLogins = registry.meter(name("logins", "coalesced"));
+        loginDeadlineExceeded = registry.meter(name("logins", "deadline-exceeded"));
+        throttledLogins = registry.meter(name("logins", "throttled"));
+        preflightRejectedLogins = registry.meter(name("logins", "preflight-rejected"));
+
+        portalRequestsInFlight = registry.counter(name("portal", "requests", "in-flight"));
+        portalErrors = registry.meter(name("portal", "errors"));
+        portalRejections = registry.meter(name("portal", "circuit-breaker", "rejections"));
+    }
+
+    private static String name(String... names) {
+        return MetricRegistry.name(PREFIX, names);
+    }
+
+    public MetricRegistry getRegistry() {
+        return registry;
+    }
+
+    /**
+     * Registers a gauge, replacing the one left behind by a previous client so it never reports a stale instance.
+     */
+    public void registerGauge(Gauge<?> gauge, String... names) {
+        String name = name(names);
+        registry.remove(name);
+        registry.register(name, gauge);
+    }
+
+    public Timer getAuthenticationTimer() {
+        return authentication;
+    }
+
+    public Meter getAuthenticationFailures() {
+        return authenticationFailures;
+    }
+
+    public Timer getExchangeTokenTimer() {
+        return exchangeToken;
+    }
+
+    public Timer getUserInformationTimer() {
+        return userInformation;
+    }
+
+    public Timer getUserRolesTimer() {
+        return userRoles;
+    }
+
+    public Timer getOidcInformationTimer() {
+        return oidcInformation;
+    }
+
+    public Timer getJsonWebKeySetTimer() {
+        return jsonWebKeySet;
+    }
+
+    public Meter getCacheHits() {
+        return cacheHits;
+    }
+
+    public Meter getCacheMisses() {
+        return cacheMisses;
+    }
+
+    public Meter getCacheNegativeHits() {
+        return cacheNegativeHits;
+    }
+
+    public Meter getCacheStaleHits() {
+        return cacheStaleHits;
+    }
+
+    public Meter getCacheRejectedFilterHits() {
+        return cacheRejectedFilterHits;
+    }
+
+    public Meter getCacheTransientFailureHits() {
+        return cacheTransientFailureHits;
+    }
+
+    public Meter getSharedCacheHits() {
+        return sharedCacheHits;
+    }
+
+    public Meter getSharedCacheFailures() {
+        return sharedCacheFailures;
+    }
+
+    public Meter getCoalescedLogins() {
+        return coalescedLogins;
+    }
+
+    public Meter getLoginDeadlineExceeded() {
+        return loginDeadlineExceeded;
+    }
+
+    public Meter getThrottledLogins() {
+        return throttledLogins;
+    }
+
+    public Meter getPreflightRejectedLogins() {
+        return preflightRejectedLogins;
+    }
+
+    public Counter getPortalRequestsInFlight() {
+        return portalRequestsInFlight;
+    }
+
+    public Meter getPortalErrors() {
+        return portalErrors;
+    }
+
+    public Meter getPortalRejections() {
+        return portalRejections;
+    }
+
+    /**
+     * Responses of the Security Portal with the given status code.
+     */
+    public Meter getPortalResponses(int statusCode) {
+        return portalResponses.computeIfAbsent(statusCode,
+                code -> registry.meter(name("portal", "responses", String.valueOf(code))));
+    }
+}
@@ -0,0 +1,89 @@
+package com.criticalmanufacturing.auth.plugins.nexus3.api;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Streaming readers for the Security Portal responses on the login path, pulling out only the fields the plugin uses
+ * instead of binding whole documents.
+ */
+final class SecurityPortalResponses {
+
+    private SecurityPortalResponses() {
+    }
+
+    /**
+     * The {@code sub} of a user information response, or {@code null} when absent.
+     */
+    static String readUserAccount(JsonFactory factory, InputStream content) throws IOException {
+        try (JsonParser parser = factory.createParser(content)) {
+            if (!startsObject(parser)) {
+                return null;
+            }
+
+            String userAccount = null;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                parser.nextToken();
+                if ("sub".equals(field) && parser.currentToken() == JsonToken.VALUE_STRING) {
+                    userAccount = parser.getText();
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            return userAccount;
+        }
+    }
+
+    /**
+     * The role {@code name}s listed in the {@code body} of a roles response.
+     */
+    static List<String> readRoleNames(JsonFactory factory, InputStream content) throws IOException {
+        List<String> roleNames = new ArrayList<>();
+        try (JsonParser parser = factory.createParser(content)) {
+            if (!startsObject(parser)) {
+                return roleNames;
+            }
+
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                if (parser.nextToken() == JsonToken.START_ARRAY && "body".equals(field)) {
+                    readRoleNames(parser, roleNames);
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+        return roleNames;
+    }
+
+    private static void readRoleNames(JsonParser parser, List<String> roleNames) throws IOException {
+        JsonToken token;
+        while ((token = parser.nextToken()) != JsonToken.END_ARRAY && token != null) {
+            if (token != JsonToken.START_OBJECT) {
+                parser.skipChildren();
+                continue;
+            }
+
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                parser.nextToken();
+                if ("name".equals(field) && parser.currentToken() == JsonToken.VALUE_STRING) {
+                    roleNames.add(parser.getText());
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+    }
+
+    private static boolean startsObject(JsonParser parser) throws IOException {
+        return parser.nextToken() == JsonToken.START_OBJECT;
+    }
+}
@@ -12,6 +12,9 @@ public class SecurityPortalTokenResponse {
     @JsonProperty("refresh_token")
     private String refreshToken;
 
+    @JsonProperty("expires_in")
+    private Long expiresIn;
+
     public String getAccessToken() {
         return accessToken;
     }
@@ -27,4 +30,15 @@ public class SecurityPortalTokenResponse {
     public void setRefreshToken(String refreshToken) {
         this.refreshToken = refreshToken;
     }
+
+    /**
+     * Seconds the access token is valid for, {@code null} when the Security Portal does not say.
+     */
+    public Long getExpiresIn() {
+        return expiresIn;
+    }
+
+    public void setExpiresIn(Long expiresIn) {
+        this.expiresIn = expiresIn;
+    }
 }
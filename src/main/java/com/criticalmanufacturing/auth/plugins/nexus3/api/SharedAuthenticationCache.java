@@ -0,0 +1,89 @@
+package com.criticalmanufacturing.auth.plugins.nexus3.api;
+
+import java.io.IOException;
+
+/**
+ * Authentication results shared by every Nexus node, so a token is exchanged against the Security Portal once for
+ * the whole cluster and, unless the implementation only keeps principals, a rejection on one node is seen by all of
+ * them.
+ * <p>
+ * Each node keeps serving from its own in-process caches and only turns to the shared cache when a token misses
+ * them. Implementations must be thread-safe.
+ */
+public interface SharedAuthenticationCache {
+
+    /**
+     * The entry stored for the token, or {@code null} when there is none or it expired at {@code now}.
+     */
+    Entry get(TokenDigest key, long now) throws IOException;
+
+    /**
+     * Stores the entry for the token, replacing whatever was stored for it.
+     */
+    void put(TokenDigest key, Entry entry) throws IOException;
+
+    void invalidate(TokenDigest key) throws IOException;
+
+    /**
+     * Whether rejections are stored too. When not, a rejected token only has its principal invalidated, and only on
+     * the node that had it cached, so tokens nobody ever accepted cost no write at all.
+     */
+    default boolean isSharingRejections() {
+        return true;
+    }
+
+    void invalidateAll() throws IOException;
+
+    /**
+     * Drops the entries expired at {@code now}, for implementations that do not expire them on their own.
+     */
+    default void purgeExpired(long now) throws IOException {
+    }
+
+    /**
+     * Either a principal resolved for a token or the error code the token was rejected with.
+     */
+    final class Entry {
+
+        private final CachedPrincipal principal;
+        private final int errorCode;
+        private final long expiresAt;
+
+        private Entry(CachedPrincipal principal, int errorCode, long expiresAt) {
+            this.principal = principal;
+            this.errorCode = errorCode;
+            this.expiresAt = expiresAt;
+        }
+
+        public static Entry principal(CachedPrincipal principal) {
+            return new Entry(principal, 0, principal.getExpiresAt());
+        }
+
+        public static Entry rejection(int errorCode, long expiresAt) {
+            return new Entry(null, errorCode, expiresAt);
+        }
+
+        public boolean isRejection() {
+            return principal == null;
+        }
+
+        /**
+         * The principal, or {@code null} for a rejection.
+         */
+        public CachedPrincipal getPrincipal() {
+            return principal;
+        }
+
+        public int getErrorCode() {
+            return errorCode;
+        }
+
+        public long getExpiresAt() {
+            return expiresAt;
+        }
+
+        public boolean isExpired(long now) {
+            return now >= expiresAt;
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package com.criticalmanufacturing.auth.plugins.nexus3.api;
+
+import java.nio.ByteBuffer;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * SHA-256 digest of a token, used as cache key so raw tokens are never retained by the caches.
+ */
+public final class TokenDigest {
+
+    private static final ThreadLocal<MessageDigest> SHA_256 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    });
+
+    // Per-thread scratch space, so hashing a token on the request path allocates nothing but the digest itself
+    private static final ThreadLocal<Buffers> BUFFERS = ThreadLocal.withInitial(Buffers::new);
+
+    // The 32 digest bytes, kept as primitives to avoid the extra array per key
+    private final long d0;
+    private final long d1;
+    private final long d2;
+    private final long d3;
+
+    private TokenDigest(byte[] digest) {
+        d0 = getLong(digest, 0);
+        d1 = getLong(digest, 8);
+        d2 = getLong(digest, 16);
+        d3 = getLong(digest, 24);
+    }
+
+    public static TokenDigest of(String token) {
+        Buffers buffers = BUFFERS.get();
+        byte[] utf8 = buffers.utf8(token.length());
+        int length = 0;
+        for (int i = 0; i < token.length(); ) {
+            int codePoint = Character.codePointAt(token, i);
+            length = encode(utf8, codePoint, length);
+            i += Character.charCount(codePoint);
+        }
+        return buffers.digest(utf8, length);
+    }
+
+    /**
+     * Same digest as {@link #of(String)} for the same characters, without copying them into a {@code String}.
+     */
+    public static TokenDigest of(char[] token) {
+        Buffers buffers = BUFFERS.get();
+        byte[] utf8 = buffers.utf8(token.length);
+        int length = 0;
+        for (int i = 0; i < token.length; ) {
+            int codePoint = Character.codePointAt(token, i);
+            length = encode(utf8, codePoint, length);
+            i += Character.charCount(codePoint);
+        }
+        return buffers.digest(utf8, length);
+    }
+
+    /**
+     * Rebuilds a digest from the bytes returned by {@link #toBytes()}.
+     */
+    public static TokenDigest fromBytes(byte[] digest) {
+        if (digest.length != 32) {
+            throw new IllegalArgumentException("A token digest is 32 bytes long, got " + digest.length);
+        }
+        return new TokenDigest(digest);
+    }
+
+    /**
+     * Parses the hexadecimal form returned by {@link #toString()}.
+     */
+    public static TokenDigest parse(String hex) {
+        if (hex.length() != 64) {
+            throw new IllegalArgumentException("A token digest is 64 hexadecimal digits, got " + hex.length());
+        }
+        byte[] digest = new byte[32];
+        for (int i = 0; i < digest.length; i++) {
+            int high = Character.digit(hex.charAt(2 * i), 16);
+            int low = Character.digit(hex.charAt(2 * i + 1), 16);
+            if (high < 0 || low < 0) {
+                throw new IllegalArgumentException("Not a hexadecimal token digest: " + hex);
+            }
+            digest[i] = (byte) ((high << 4) | low);
+        }
+        return new TokenDigest(digest);
+    }
+
+    // Writes the UTF-8 encoding of codePoint at offset and returns the new length
+    private static int encode(byte[] utf8, int codePoint, int offset) {
+        if (codePoint < 0x80) {
+            utf8[offset++] = (byte) codePoint;
+        } else if (codePoint < 0x800) {
+            utf8[offset++] = (byte) (0xC0 | (codePoint >> 6));
+            utf8[offset++] = (byte) (0x80 | (codePoint & 0x3F));
+        } else if (codePoint >= Character.MIN_SURROGATE && codePoint <= Character.MAX_SURROGATE) {
+            // Unpaired surrogates become '?', as String.getBytes(UTF_8) does
+            utf8[offset++] = '?';
+        } else if (codePoint < 0x10000) {
+            utf8[offset++] = (byte) (0xE0 | (codePoint >> 12));
+            utf8[offset++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+            utf8[offset++] = (byte) (0x80 | (codePoint & 0x3F));
+        } else {
+            utf8[offset++] = (byte) (0xF0 | (codePoint >> 18));
+            utf8[offset++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+            utf8[offset++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+            utf8[offset++] = (byte) (0x80 | (codePoint & 0x3F));
+        }
+        return offset;
+    }
+
+    private static long getLong(byte[] bytes, int offset) {
+        long value = 0;
+        for (int i = offset; i < offset + 8; i++) {
+            value = (value << 8) | (bytes[i] & 0xFF);
+        }
+        return value;
+    }
+
+    public byte[] toBytes() {
+        return ByteBuffer.allocate(32).putLong(d0).putLong(d1).putLong(d2).putLong(d3).array();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof TokenDigest)) {
+            return false;
+        }
+        TokenDigest other = (TokenDigest) o;
+        return d0 == other.d0 && d1 == other.d1 && d2 == other.d2 && d3 == other.d3;
+    }
+
+    @Override
+    public int hashCode() {
+        // SHA-256 output is uniformly distributed, any 32 bits of it make a good hash
+        return (int) d0;
+    }
+
+    /**
+     * Another 64 bits of the digest, independent from {@link #hashCode()}, for structures that need more than one hash
+     * of the same token.
+     */
+    long secondaryHash() {
+        return d1 ^ d2;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%016x%016x%016x%016x", d0, d1, d2, d3);
+    }
+
+    private static final class Buffers {
+
+        // Enough for any token the default pre-flight length allows, larger ones get an array of their own
+        static final int MAX_RETAINED_UTF8 = 32 * 1024;
+
+        private final byte[] digest = new byte[32];
+        private byte[] utf8 = new byte[256];
+
+        // Room for the UTF-8 encoding of that many chars, at most three bytes each
+        byte[] utf8(int chars) {
+            long required = 3L * chars;
+            if (required <= utf8.length) {
+                return utf8;
+            }
+            if (required > MAX_RETAINED_UTF8) {
+                return new byte[Math.toIntExact(required)];
+            }
+            utf8 = new byte[(int) Math.min(MAX_RETAINED_UTF8, Math.max(required, 2L * utf8.length))];
+            return utf8;
+        }
+
+        TokenDigest digest(byte[] utf8, int length) {
+            MessageDigest sha256 = SHA_256.get();
+            sha256.reset();
+            sha256.update(utf8, 0, length);
+            // Tokens must not linger in the scratch space
+            Arrays.fill(utf8, 0, length, (byte) 0);
+            try {
+                sha256.digest(digest, 0, digest.length);
+            } catch (DigestException e) {
+                throw new IllegalStateException(e);
+            }
+            return new TokenDigest(digest);
+        }
+    }
+
+    // Bytes of scratch space the calling thread keeps between tokens
+    static int getRetainedBufferSize() {
+        return BUFFERS.get().utf8.length;
+    }
+}
@@ -0,0 +1,48 @@
+package com.criticalmanufacturing.auth.plugins.nexus3.api;
+
+import com.criticalmanufacturing.auth.plugins.nexus3.SecurityPortalException;
+
+/**
+ * A login that failed for reasons unrelated to the token, such as the Security Portal being unreachable, and when the
+ * token may be tried again.
+ */
+final class TransientFailure {
+
+    private final SecurityPortalException failure;
+    private final int attempts;
+    private final long retryAt;
+
+    private TransientFailure(SecurityPortalException failure, int attempts, long retryAt) {
+        this.failure = failure;
+        this.attempts = attempts;
+        this.retryAt = retryAt;
+    }
+
+    /**
+     * Records a failure following {@code previous}, or the first one when it is {@code null}, backing off
+     * exponentially from {@code initialBackoffMillis} up to {@code maxBackoffMillis}.
+     */
+    static TransientFailure after(TransientFailure previous, SecurityPortalException failure, long now,
+                                  long initialBackoffMillis, long maxBackoffMillis) {
+        int attempts = previous == null ? 1 : previous.attempts + 1;
+        // Shifting further would only overflow, the backoff is capped long before
+        long backoffMillis = Math.min(initialBackoffMillis << Math.min(attempts - 1, 30), maxBackoffMillis);
+        return new TransientFailure(failure, attempts, now + backoffMillis);
+    }
+
+    SecurityPortalException getFailure() {
+        return failure;
+    }
+
+    int getAttempts() {
+        return attempts;
+    }
+
+    long getRetryAt() {
+        return retryAt;
+    }
+
+    boolean isBackingOff(long now) {
+        return now < retryAt;
+    }
+}
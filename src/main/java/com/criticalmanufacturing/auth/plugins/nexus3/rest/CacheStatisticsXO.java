@@ -0,0 +1,71 @@
+package com.criticalmanufacturing.auth.plugins.nexus3.rest;
+
+/**
+ * Sizes and statistics of the Security Portal client caches on this node.
+ */
+public class CacheStatisticsXO {
+
+    private long principalCacheSize;
+    private long principalCacheHits;
+    private long principalCacheMisses;
+    private double principalCacheHitRate;
+    private long principalCacheEvictions;
+    private long errorCacheSize;
+    private int cachedUsers;
+
+    public long getPrincipalCacheSize() {
+        return principalCacheSize;
+    }
+
+    public void setPrincipalCacheSize(long principalCacheSize) {
+        this.principalCacheSize = principalCacheSize;
+    }
+
+    public long getPrincipalCacheHits() {
+        return principalCacheHits;
+    }
+
+    public void setPrincipalCacheHits(long principalCacheHits) {
+        this.principalCacheHits = principalCacheHits;
+    }
+
+    public long getPrincipalCacheMisses() {
+        return principalCacheMisses;
+    }
+
+    public void setPrincipalCacheMisses(long principalCacheMisses) {
+        this.principalCacheMisses = principalCacheMisses;
+    }
+
+    public double getPrincipalCacheHitRate() {
+        return principalCacheHitRate;
+    }
+
+    public void setPrincipalCacheHitRate(double principalCacheHitRate) {
+        this.principalCacheHitRate = principalCacheHitRate;
+    }
+
+    public long getPrincipalCacheEvictions() {
+        return principalCacheEvictions;
+    }
+
+    public void setPrincipalCacheEvictions(long principalCacheEvictions) {
+        this.principalCacheEvictions = principalCacheEvictions;
+    }
+
+    public long getErrorCacheSize() {
+        return errorCacheSize;
+    }
+
+    public void setErrorCacheSize(long errorCacheSize) {
+        this.errorCacheSize = errorCacheSize;
+    }
+
+    public int getCachedUsers() {
+        return cachedUsers;
+    }
+
+    public void setCachedUsers(int cachedUsers) {
+        this.cachedUsers = cachedUsers;
+    }
+}
@@ -0,0 +1,133 @@
+package com.criticalmanufacturing.auth.plugins.nexus3.rest;
+
+import com.criticalmanufacturing.auth.plugins.nexus3.Principal;
+import com.criticalmanufacturing.auth.plugins.nexus3.SecurityPortalException;
+import com.criticalmanufacturing.auth.plugins.nexus3.api.SecurityPortalClient;
+import com.criticalmanufacturing.auth.plugins.nexus3.api.TokenDigest;
+import com.google.common.cache.CacheStats;
+import org.apache.shiro.authz.annotation.RequiresAuthentication;
+import org.apache.shiro.authz.annotation.RequiresPermissions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sonatype.nexus.rest.APIConstants;
+import org.sonatype.nexus.rest.Resource;
+import org.sonatype.nexus.rest.WebApplicationMessageException;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+import javax.ws.rs.Consumes;
+import javax.ws.rs.DELETE;
+import javax.ws.rs.GET;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Lets administrators inspect the Security Portal caches of this node, drop entries that must not wait for their TTL
+ * and authenticate service accounts ahead of their first request.
+ */
+@Singleton
+@Named
+@Path(SecurityPortalCacheResource.RESOURCE_PATH)
+@Produces(MediaType.APPLICATION_JSON)
+@Consumes(MediaType.APPLICATION_JSON)
+public class SecurityPortalCacheResource implements Resource {
+
+    public static final String RESOURCE_PATH = APIConstants.V1_API_PREFIX + "/security/criticalmanufacturing/cache";
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SecurityPortalCacheResource.class);
+
+    private final SecurityPortalClient securityPortalClient;
+
+    @Inject
+    public SecurityPortalCacheResource(SecurityPortalClient securityPortalClient) {
+        this.securityPortalClient = securityPortalClient;
+    }
+
+    @GET
+    @RequiresAuthentication
+    @RequiresPermissions("nexus:*")
+    public CacheStatisticsXO getStatistics() {
+        CacheStats stats = securityPortalClient.getPrincipalCacheStats();
+
+        CacheStatisticsXO statistics = new CacheStatisticsXO();
+        statistics.setPrincipalCacheSize(securityPortalClient.getPrincipalCacheSize());
+        statistics.setPrincipalCacheHits(stats.hitCount());
+        statistics.setPrincipalCacheMisses(stats.missCount());
+        statistics.setPrincipalCacheHitRate(stats.hitRate());
+        statistics.setPrincipalCacheEvictions(stats.evictionCount());
+        statistics.setErrorCacheSize(securityPortalClient.getErrorCodeCacheSize());
+        statistics.setCachedUsers(securityPortalClient.getCachedUserCount());
+        return statistics;
+    }
+
+    @DELETE
+    @RequiresAuthentication
+    @RequiresPermissions("nexus:*")
+    public void invalidateAll() {
+        securityPortalClient.invalidateAll();
+    }
+
+    @DELETE
+    @Path("/users/{username}")
+    @RequiresAuthentication
+    @RequiresPermissions("nexus:*")
+    public void invalidateUser(@PathParam("username") String username) {
+        if (securityPortalClient.invalidateUser(username) == 0) {
+            throw new WebApplicationMessageException(Response.Status.NOT_FOUND, "No cached tokens for user " + username);
+        }
+    }
+
+    @DELETE
+    @Path("/tokens/{digest}")
+    @RequiresAuthentication
+    @RequiresPermissions("nexus:*")
+    public void invalidateToken(@PathParam("digest") String digest) {
+        TokenDigest cacheKey;
+        try {
+            cacheKey = TokenDigest.parse(digest);
+        } catch (IllegalArgumentException e) {
+            throw new WebApplicationMessageException(Response.Status.BAD_REQUEST, e.getMessage());
+        }
+        securityPortalClient.invalidateToken(cacheKey);
+    }
+
+    @POST
+    @Path("/warm-up")
+    @RequiresAuthentication
+    @RequiresPermissions("nexus:*")
+    public List<WarmUpResultXO> warmUp(List<WarmUpXO> accounts) {
+        if (accounts == null) {
+            throw new WebApplicationMessageException(Response.Status.BAD_REQUEST, "Expected a list of service accounts");
+        }
+
+        List<WarmUpResultXO> results = new ArrayList<>(accounts.size());
+        for (WarmUpXO account : accounts) {
+            WarmUpResultXO result = new WarmUpResultXO();
+            result.setUsername(account.getUsername());
+            if (account.getToken() == null) {
+                result.setMessage("Missing token");
+                results.add(result);
+                continue;
+            }
+
+            try {
+                Principal principal = securityPortalClient.authz(account.getUsername(), account.getToken().toCharArray());
+                result.setUsername(principal.getUsername());
+                result.setAuthenticated(true);
+            } catch (SecurityPortalException e) {
+                LOGGER.debug("Failed to warm up service account {}", account.getUsername());
+                result.setStatusCode(e.getStatusCode());
+                result.setMessage(e.getMessage());
+            }
+            results.add(result);
+        }
+        return results;
+    }
+}
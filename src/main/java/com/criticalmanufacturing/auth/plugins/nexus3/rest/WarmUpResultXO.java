@@ -0,0 +1,47 @@
+package com.criticalmanufacturing.auth.plugins.nexus3.rest;
+
+/**
+ * Outcome of warming up one service account.
+ */
+public class WarmUpResultXO {
+
+    private String username;
+    private boolean authenticated;
+    private int statusCode;
+    private String message;
+
+    public String getUsername() {
+        return username;
+    }
+
+    public void setUsername(String username) {
+        this.username = username;
+    }
+
+    public boolean isAuthenticated() {
+        return authenticated;
+    }
+
+    public void setAuthenticated(boolean authenticated) {
+        this.authenticated = authenticated;
+    }
+
+    /**
+     * Status code the Security Portal failed the authentication with, {@code 0} when it succeeded or never answered.
+     */
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    public void setStatusCode(int statusCode) {
+        this.statusCode = statusCode;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public void setMessage(String message) {
+        this.message = message;
+    }
+}
@@ -0,0 +1,26 @@
+package com.criticalmanufacturing.auth.plugins.nexus3.rest;
+
+/**
+ * A service account to authenticate ahead of its first request.
+ */
+public class WarmUpXO {
+
+    private String username;
+    private String token;
+
+    public String getUsername() {
+        return username;
+    }
+
+    public void setUsername(String username) {
+        this.username = username;
+    }
+
+    public String getToken() {
+        return token;
+    }
+
+    public void setToken(String token) {
+        this.token = token;
+    }
+}
@@ -0,0 +1,128 @@
+package com.criticalmanufacturing.auth.plugins.nexus3;
+
+import com.criticalmanufacturing.auth.plugins.nexus3.api.MockSecurityPortalConfiguration;
+import com.criticalmanufacturing.auth.plugins.nexus3.api.SecurityPortalClient;
+import com.criticalmanufacturing.auth.plugins.nexus3.api.StubSecurityPortal;
+import org.apache.shiro.authc.UsernamePasswordToken;
+import org.apache.shiro.authz.AuthorizationInfo;
+import org.apache.shiro.authz.SimpleAuthorizationInfo;
+import org.apache.shiro.subject.PrincipalCollection;
+import org.apache.shiro.subject.SimplePrincipalCollection;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Properties;
+
+public class AuthenticatingRealmTest {
+
+    private AuthenticatingRealm createRealm(StubSecurityPortal portal, Properties properties) {
+        return createRealm(configuration(portal, properties));
+    }
+
+    private AuthenticatingRealm createRealm(MockSecurityPortalConfiguration configuration) {
+        return new AuthenticatingRealm(new SecurityPortalClient(configuration), configuration);
+    }
+
+    private MockSecurityPortalConfiguration configuration(StubSecurityPortal portal, Properties properties) {
+        MockSecurityPortalConfiguration configuration = new MockSecurityPortalConfiguration(properties);
+        configuration.setMetadataUrl(portal.getMetadataUrl());
+        return configuration;
+    }
+
+    private Principal authenticate(AuthenticatingRealm realm, String token) {
+        return (Principal) realm.getAuthenticationInfo(new UsernamePasswordToken("JSilva", token)).getPrincipals().getPrimaryPrincipal();
+    }
+
+    @Test
+    public void shouldCacheAuthorizationUntilPrincipalIsReplaced() throws Throwable {
+        try (StubSecurityPortal portal = new StubSecurityPortal()) {
+            Properties properties = new Properties();
+            properties.setProperty("principal.cache.ttl", "PT10S");
+            properties.setProperty("principal.cache.refresh-ratio", "0.01");
+            AuthenticatingRealm realm = createRealm(portal, properties);
+
+            Principal principal = authenticate(realm, "12312313");
+            PrincipalCollection principals = new SimplePrincipalCollection(principal, AuthenticatingRealm.NAME);
+
+            Assert.assertTrue(realm.hasRole(principals, "Administrator"));
+            AuthorizationInfo cachedInfo = realm.getAuthorizationCache().get(principal);
+            Assert.assertNotNull(cachedInfo);
+            Assert.assertTrue(realm.hasRole(principals, "Administrator"));
+            Assert.assertFalse(realm.hasRole(principals, "Developer"));
+            Assert.assertSame(cachedInfo, realm.getAuthorizationCache().get(principal));
+
+            // Once past the refresh age the next login refreshes the principal, which drops its authorization info
+            Thread.sleep(200);
+            authenticate(realm, "12312313");
+            long deadline = System.currentTimeMillis() + 5000;
+            while (realm.getAuthorizationCache().get(principal) != null && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+
+            Assert.assertNull(realm.getAuthorizationCache().get(principal));
+            Assert.assertNotSame(principal, authenticate(realm, "12312313"));
+        }
+    }
+
+    @Test
+    public void shouldShareRoleSetsAcrossUsersWithSameRoles() throws Throwable {
+        try (StubSecurityPortal portal = new StubSecurityPortal()) {
+            AuthenticatingRealm realm = createRealm(portal, new Properties());
+
+            Principal principal = authenticate(realm, "12312313");
+            Principal otherPrincipal = authenticate(realm, "45645645");
+            AuthorizationInfo info = realm.doGetAuthorizationInfo(new SimplePrincipalCollection(principal, AuthenticatingRealm.NAME));
+            AuthorizationInfo otherInfo = realm.doGetAuthorizationInfo(new SimplePrincipalCollection(otherPrincipal, AuthenticatingRealm.NAME));
+
+            Assert.assertNotSame(principal, otherPrincipal);
+            Assert.assertSame(principal.getRoles(), otherPrincipal.getRoles());
+            Assert.assertSame(info.getRoles(), otherInfo.getRoles());
+            try {
+                ((SimpleAuthorizationInfo) info).addRole("Developer");
+                Assert.fail("Roles shared with other users must not be changed");
+            } catch (UnsupportedOperationException e) {
+                Assert.assertFalse(otherInfo.getRoles().contains("Developer"));
+            }
+        }
+    }
+
+    @Test
+    public void shouldApplyReloadedTtlToAuthorizationCache() throws Throwable {
+        try (StubSecurityPortal portal = new StubSecurityPortal()) {
+            Properties properties = new Properties();
+            properties.setProperty("principal.cache.ttl", "PT10M");
+            MockSecurityPortalConfiguration configuration = configuration(portal, properties);
+            AuthenticatingRealm realm = createRealm(configuration);
+
+            Principal principal = authenticate(realm, "12312313");
+            PrincipalCollection principals = new SimplePrincipalCollection(principal, AuthenticatingRealm.NAME);
+            Assert.assertTrue(realm.hasRole(principals, "Administrator"));
+
+            properties.setProperty("principal.cache.ttl", "PT0.2S");
+            configuration.reload(properties);
+            Assert.assertTrue(realm.hasRole(principals, "Administrator"));
+            Assert.assertNotNull(realm.getAuthorizationCache().get(principal));
+
+            // Expires under the reloaded TTL, not the one the realm started with
+            long deadline = System.currentTimeMillis() + 5000;
+            while (realm.getAuthorizationCache().get(principal) != null && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            Assert.assertNull(realm.getAuthorizationCache().get(principal));
+        }
+    }
+
+    @Test
+    public void shouldNotCacheAuthorizationWhenDisabled() throws Throwable {
+        try (StubSecurityPortal portal = new StubSecurityPortal()) {
+            Properties properties = new Properties();
+            properties.setProperty("authorization.cache.enabled", "false");
+            AuthenticatingRealm realm = createRealm(portal, properties);
+
+            Principal principal = authenticate(realm, "12312313");
+
+            Assert.assertTrue(realm.hasRole(new SimplePrincipalCollection(principal, AuthenticatingRealm.NAME), "Administrator"));
+            Assert.assertNull(realm.getAuthorizationCache());
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package com.criticalmanufacturing.auth.plugins.nexus3;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Set;
+
+public class RoleSetsTest {
+
+    @Test
+    public void shouldShareEqualRoleSets() {
+        Set<String> roles = RoleSets.intern(Arrays.asList(new String("Administrator"), new String("Developer")));
+        Set<String> sameRoles = RoleSets.intern(Arrays.asList(new String("Developer"), new String("Administrator")));
+        Set<String> otherRoles = RoleSets.intern(Arrays.asList(new String("Developer")));
+
+        Assert.assertSame(roles, sameRoles);
+        Assert.assertNotEquals(roles, otherRoles);
+        Assert.assertSame(roles.stream().filter("Developer"::equals).findFirst().get(), otherRoles.iterator().next());
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void shouldNotAllowChangingSharedRoleSets() {
+        RoleSets.intern(Arrays.asList("Administrator")).add("Developer");
+    }
+}
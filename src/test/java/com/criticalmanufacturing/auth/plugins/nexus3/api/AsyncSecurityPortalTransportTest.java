@@ -0,0 +1,73 @@
+package com.criticalmanufacturing.auth.plugins.nexus3.api;
+
+import com.codahale.metrics.MetricRegistry;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+
+public class AsyncSecurityPortalTransportTest {
+
+    private static AsyncSecurityPortalTransport newTransport(CircuitBreaker circuitBreaker, SecurityPortalMetrics metrics) {
+        return new AsyncSecurityPortalTransport(new MockSecurityPortalConfiguration(), circuitBreaker, metrics,
+                Executors.defaultThreadFactory());
+    }
+
+    private static void awaitIdle(SecurityPortalMetrics metrics) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 2000;
+        while (metrics.getPortalRequestsInFlight().getCount() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(0, metrics.getPortalRequestsInFlight().getCount());
+    }
+
+    @Test
+    public void shouldNotCountCancelledCallsAgainstCircuitBreaker() throws Throwable {
+        try (StubSecurityPortal portal = new StubSecurityPortal()) {
+            portal.setDelay(StubSecurityPortal.ROLES_PATH, 3000);
+            CircuitBreaker circuitBreaker = new CircuitBreaker(1, 60000);
+            SecurityPortalMetrics metrics = new SecurityPortalMetrics(new MetricRegistry());
+            AsyncSecurityPortalTransport transport = newTransport(circuitBreaker, metrics);
+            HttpRequest request = HttpRequest.newBuilder(URI.create(portal.getBaseUrl() + StubSecurityPortal.ROLES_PATH)).GET().build();
+
+            try {
+                CompletableFuture<HttpResponse<byte[]>> response = transport.send(request, metrics.getUserRolesTimer());
+                response.cancel(true);
+                awaitIdle(metrics);
+
+                Assert.assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState());
+                Assert.assertEquals(0, metrics.getPortalErrors().getCount());
+            } finally {
+                transport.close();
+            }
+        }
+    }
+
+    @Test
+    public void shouldReleaseCancelledTrialCall() throws Throwable {
+        try (StubSecurityPortal portal = new StubSecurityPortal()) {
+            portal.setDelay(StubSecurityPortal.ROLES_PATH, 3000);
+            CircuitBreaker circuitBreaker = new CircuitBreaker(1, 10);
+            SecurityPortalMetrics metrics = new SecurityPortalMetrics(new MetricRegistry());
+            AsyncSecurityPortalTransport transport = newTransport(circuitBreaker, metrics);
+            HttpRequest request = HttpRequest.newBuilder(URI.create(portal.getBaseUrl() + StubSecurityPortal.ROLES_PATH)).GET().build();
+
+            try {
+                circuitBreaker.onFailure(System.currentTimeMillis() - 100);
+                CompletableFuture<HttpResponse<byte[]>> trial = transport.send(request, metrics.getUserRolesTimer());
+                Assert.assertEquals(CircuitBreaker.State.HALF_OPEN, circuitBreaker.getState());
+                trial.cancel(true);
+                awaitIdle(metrics);
+
+                // A cancelled trial says nothing about the portal, the next call may try again
+                Assert.assertTrue(circuitBreaker.tryAcquire(System.currentTimeMillis()));
+            } finally {
+                transport.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package com.criticalmanufacturing.auth.plugins.nexus3.api;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Stands in for a cache shared between Nexus nodes by handing the same instance to several clients.
+ */
+public class InMemorySharedAuthenticationCache implements SharedAuthenticationCache {
+
+    private final ConcurrentMap<TokenDigest, Entry> entries = new ConcurrentHashMap<>();
+
+    @Override
+    public Entry get(TokenDigest key, long now) {
+        Entry entry = entries.get(key);
+        return entry == null || entry.isExpired(now) ? null : entry;
+    }
+
+    @Override
+    public void put(TokenDigest key, Entry entry) {
+        entries.put(key, entry);
+    }
+
+    @Override
+    public void invalidate(TokenDigest key) {
+        entries.remove(key);
+    }
+
+    @Override
+    public void invalidateAll() {
+        entries.clear();
+    }
+
+    @Override
+    public void purgeExpired(long now) {
+        entries.values().removeIf(entry -> entry.isExpired(now));
+    }
+
+    public int size() {
+        return entries.size();
+    }
+}
@@ -0,0 +1,84 @@
+package com.criticalmanufacturing.auth.plugins.nexus3.api;
+
+import com.criticalmanufacturing.auth.plugins.nexus3.Principal;
+import com.criticalmanufacturing.auth.plugins.nexus3.RoleSets;
+import org.h2.jdbcx.JdbcConnectionPool;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.UUID;
+
+public class JdbcSharedAuthenticationCacheTest {
+
+    private static JdbcSharedAuthenticationCache newCache() {
+        JdbcConnectionPool dataSource = JdbcConnectionPool.create("jdbc:h2:mem:" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1", "sa", "");
+        return new JdbcSharedAuthenticationCache(() -> dataSource, Duration.ofSeconds(2));
+    }
+
+    private static CachedPrincipal principal(String username, long createdAt, long expiresAt, String... roles) {
+        Principal principal = new Principal();
+        principal.setUsername(username);
+        principal.setRoles(RoleSets.intern(Arrays.asList(roles)));
+        return new CachedPrincipal(principal, createdAt, expiresAt);
+    }
+
+    @Test
+    public void shouldSharePrincipalsUntilTheyExpire() throws Exception {
+        JdbcSharedAuthenticationCache cache = newCache();
+        TokenDigest key = TokenDigest.of("12312313");
+
+        cache.put(key, SharedAuthenticationCache.Entry.principal(principal("JSilva", 1000, 5000, "Administrator", "Developer")));
+
+        SharedAuthenticationCache.Entry entry = cache.get(key, 2000);
+        Assert.assertFalse(entry.isRejection());
+        Assert.assertEquals("JSilva", entry.getPrincipal().getPrincipal().getUsername());
+        Assert.assertEquals(new HashSet<>(Arrays.asList("Administrator", "Developer")), entry.getPrincipal().getPrincipal().getRoles());
+        Assert.assertEquals(1000, entry.getPrincipal().getCreatedAt());
+        Assert.assertEquals(5000, entry.getExpiresAt());
+
+        Assert.assertNull(cache.get(key, 5000));
+        Assert.assertNull(cache.get(TokenDigest.of("other"), 2000));
+    }
+
+    @Test
+    public void shouldDropPrincipalOnRejectionWithoutStoringIt() throws Exception {
+        JdbcSharedAuthenticationCache cache = newCache();
+        TokenDigest key = TokenDigest.of("12312313");
+        cache.put(key, SharedAuthenticationCache.Entry.principal(principal("JSilva", 1000, 5000, "Administrator")));
+
+        cache.put(key, SharedAuthenticationCache.Entry.rejection(401, 4000));
+        cache.put(TokenDigest.of("guessed"), SharedAuthenticationCache.Entry.rejection(401, 4000));
+
+        Assert.assertFalse(cache.isSharingRejections());
+        Assert.assertNull(cache.get(key, 2000));
+        Assert.assertNull(cache.get(TokenDigest.of("guessed"), 2000));
+    }
+
+    @Test
+    public void shouldInvalidatePrincipals() throws Exception {
+        JdbcSharedAuthenticationCache cache = newCache();
+        TokenDigest key = TokenDigest.of("12312313");
+        cache.put(key, SharedAuthenticationCache.Entry.principal(principal("JSilva", 1000, 5000, "Administrator")));
+
+        cache.invalidate(key);
+
+        Assert.assertNull(cache.get(key, 2000));
+    }
+
+    @Test
+    public void shouldPurgeExpiredEntries() throws Exception {
+        JdbcSharedAuthenticationCache cache = newCache();
+        TokenDigest expired = TokenDigest.of("expired");
+        TokenDigest live = TokenDigest.of("live");
+        cache.put(expired, SharedAuthenticationCache.Entry.principal(principal("JSilva", 1000, 2000)));
+        cache.put(live, SharedAuthenticationCache.Entry.principal(principal("JSilva", 1000, 5000)));
+
+        cache.purgeExpired(3000);
+
+        Assert.assertNull(cache.get(expired, 0));
+        Assert.assertTrue(cache.get(live, 3000).getPrincipal().getPrincipal().getRoles().isEmpty());
+    }
+}
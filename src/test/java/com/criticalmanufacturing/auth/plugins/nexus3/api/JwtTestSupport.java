@@ -0,0 +1,100 @@
+package com.criticalmanufacturing.auth.plugins.nexus3.api;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.security.interfaces.ECPublicKey;
+import java.security.interfaces.RSAPublicKey;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Signs JWTs and publishes the matching JSON Web Key Set, standing in for the Security Portal's keys.
+ */
+public class JwtTestSupport {
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final KeyPair rsaKeyPair;
+    private final KeyPair ecKeyPair;
+
+    public JwtTestSupport() throws Exception {
+        KeyPairGenerator rsaGenerator = KeyPairGenerator.getInstance("RSA");
+        rsaGenerator.initialize(2048);
+        rsaKeyPair = rsaGenerator.generateKeyPair();
+
+        KeyPairGenerator ecGenerator = KeyPairGenerator.getInstance("EC");
+        ecGenerator.initialize(256);
+        ecKeyPair = ecGenerator.generateKeyPair();
+    }
+
+    public Map<String, Object> jwks() {
+        RSAPublicKey rsaKey = (RSAPublicKey) rsaKeyPair.getPublic();
+        Map<String, Object> rsaJwk = new LinkedHashMap<>();
+        rsaJwk.put("kty", "RSA");
+        rsaJwk.put("kid", "rsa-key");
+        rsaJwk.put("use", "sig");
+        rsaJwk.put("n", encode(rsaKey.getModulus()));
+        rsaJwk.put("e", encode(rsaKey.getPublicExponent()));
+
+        ECPublicKey ecKey = (ECPublicKey) ecKeyPair.getPublic();
+        Map<String, Object> ecJwk = new LinkedHashMap<>();
+        ecJwk.put("kty", "EC");
+        ecJwk.put("kid", "ec-key");
+        ecJwk.put("crv", "P-256");
+        ecJwk.put("x", encode(ecKey.getW().getAffineX()));
+        ecJwk.put("y", encode(ecKey.getW().getAffineY()));
+
+        return Collections.singletonMap("keys", Arrays.asList(rsaJwk, ecJwk));
+    }
+
+    public String signRs256(Map<String, Object> claims) throws Exception {
+        return sign("RS256", "rsa-key", "SHA256withRSA", rsaKeyPair.getPrivate(), claims);
+    }
+
+    public String signEs256(Map<String, Object> claims) throws Exception {
+        // P1363 format is the raw R || S concatenation JWS uses
+        return sign("ES256", "ec-key", "SHA256withECDSAinP1363Format", ecKeyPair.getPrivate(), claims);
+    }
+
+    public Map<String, Object> claims(String issuer, String subject, long expiresInSeconds) {
+        Map<String, Object> claims = new LinkedHashMap<>();
+        claims.put("iss", issuer);
+        claims.put("sub", subject);
+        claims.put("exp", System.currentTimeMillis() / 1000 + expiresInSeconds);
+        return claims;
+    }
+
+    private String sign(String algorithm, String kid, String jcaAlgorithm, PrivateKey key, Map<String, Object> claims) throws Exception {
+        Map<String, Object> header = new LinkedHashMap<>();
+        header.put("alg", algorithm);
+        header.put("typ", "JWT");
+        header.put("kid", kid);
+
+        String signingInput = encode(mapper.writeValueAsBytes(header)) + "." + encode(mapper.writeValueAsBytes(claims));
+        Signature signer = Signature.getInstance(jcaAlgorithm);
+        signer.initSign(key);
+        signer.update(signingInput.getBytes(StandardCharsets.US_ASCII));
+
+        return signingInput + "." + encode(signer.sign());
+    }
+
+    private static String encode(BigInteger value) {
+        byte[] bytes = value.toByteArray();
+        if (bytes.length > 1 && bytes[0] == 0) {
+            bytes = Arrays.copyOfRange(bytes, 1, bytes.length);
+        }
+        return encode(bytes);
+    }
+
+    private static String encode(byte[] bytes) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+    }
+}
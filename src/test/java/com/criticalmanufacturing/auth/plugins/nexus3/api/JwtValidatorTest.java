@@ -0,0 +1,92 @@
+package com.criticalmanufacturing.auth.plugins.nexus3.api;
+
+import com.criticalmanufacturing.auth.plugins.nexus3.SecurityPortalException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Map;
+
+public class JwtValidatorTest {
+
+    private static final String ISSUER = "http://localhost/tenant/Development";
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final JwtValidator validator = new JwtValidator(mapper, Duration.ofMinutes(1));
+
+    private JsonWebKeySet keys(JwtTestSupport jwts) {
+        return JsonWebKeySet.parse(mapper.valueToTree(jwts.jwks()));
+    }
+
+    @Test
+    public void shouldValidateRsaAndEcSignedTokens() throws Throwable {
+        JwtTestSupport jwts = new JwtTestSupport();
+        JsonWebKeySet keys = keys(jwts);
+
+        JsonNode rsaClaims = validator.validate(jwts.signRs256(jwts.claims(ISSUER, "JSilva", 300)), keys::getKey, ISSUER, null);
+        JsonNode ecClaims = validator.validate(jwts.signEs256(jwts.claims(ISSUER, "JSilva", 300)), keys::getKey, ISSUER, null);
+
+        Assert.assertEquals(2, keys.size());
+        Assert.assertEquals("JSilva", rsaClaims.get("sub").asText());
+        Assert.assertEquals("JSilva", ecClaims.get("sub").asText());
+    }
+
+    @Test
+    public void shouldRejectInvalidTokens() throws Throwable {
+        JwtTestSupport jwts = new JwtTestSupport();
+        JsonWebKeySet keys = keys(jwts);
+
+        Map<String, Object> audienceClaims = jwts.claims(ISSUER, "JSilva", 300);
+        audienceClaims.put("aud", "other-client");
+        String validToken = jwts.signRs256(jwts.claims(ISSUER, "JSilva", 300));
+
+        assertRejected(jwts.signRs256(jwts.claims(ISSUER, "JSilva", -300)), keys, null);
+        assertRejected(jwts.signRs256(jwts.claims("http://localhost/tenant/Other", "JSilva", 300)), keys, null);
+        assertRejected(jwts.signRs256(audienceClaims), keys, "nexus");
+        assertRejected(validToken.substring(0, validToken.length() - 4) + "AAAA", keys, null);
+        assertRejected(validToken, keys(new JwtTestSupport()), null);
+        assertRejected("not-a-jwt", keys, null);
+    }
+
+    @Test
+    public void shouldRejectClaimsOfTheWrongType() throws Throwable {
+        JwtTestSupport jwts = new JwtTestSupport();
+        JsonWebKeySet keys = keys(jwts);
+
+        Map<String, Object> numericAudience = jwts.claims(ISSUER, "JSilva", 300);
+        numericAudience.put("aud", 12345);
+        Map<String, Object> mixedAudience = jwts.claims(ISSUER, "JSilva", 300);
+        mixedAudience.put("aud", Arrays.asList("nexus", 12345));
+        Map<String, Object> textExpiry = jwts.claims(ISSUER, "JSilva", 300);
+        textExpiry.put("exp", String.valueOf(textExpiry.get("exp")));
+
+        assertRejected(jwts.signRs256(numericAudience), keys, "12345");
+        assertRejected(jwts.signRs256(mixedAudience), keys, "nexus");
+        assertRejected(jwts.signRs256(textExpiry), keys, null);
+    }
+
+    @Test
+    public void shouldReadExpiryOfUnverifiedTokens() throws Throwable {
+        JwtTestSupport jwts = new JwtTestSupport();
+        Map<String, Object> claims = jwts.claims(ISSUER, "JSilva", 300);
+
+        Long expiry = validator.getUnverifiedExpiry(jwts.signRs256(claims));
+
+        Assert.assertEquals(((Number) claims.get("exp")).longValue() * 1000, (long) expiry);
+        Assert.assertNull(validator.getUnverifiedExpiry("12312313"));
+        Assert.assertNull(validator.getUnverifiedExpiry("a.b.c"));
+        Assert.assertNull(validator.getUnverifiedExpiry("a.b.c.d"));
+    }
+
+    private void assertRejected(String token, JsonWebKeySet keys, String audience) {
+        try {
+            validator.validate(token, keys::getKey, ISSUER, audience);
+            Assert.fail("Token should have been rejected");
+        } catch (SecurityPortalException e) {
+            Assert.assertNotNull(e.getMessage());
+        }
+    }
+}
@@ -1,11 +1,21 @@
 package com.criticalmanufacturing.auth.plugins.nexus3.api;
 
+import java.util.Properties;
+
 public class MockSecurityPortalConfiguration extends SecurityPortalConfiguration {
 
     private String clientId = "nexus";
 
     private String metadataUrl = "http://localhost:11000/tenant/MesDevelopment/.well-known/openid-configuration";
 
+    public MockSecurityPortalConfiguration() {
+        this(new Properties());
+    }
+
+    public MockSecurityPortalConfiguration(Properties configuration) {
+        super(configuration);
+    }
+
     @Override
     public String getClientId() {
         return clientId;
@@ -0,0 +1,85 @@
+package com.criticalmanufacturing.auth.plugins.nexus3.api;
+
+import com.criticalmanufacturing.auth.plugins.nexus3.Principal;
+import com.criticalmanufacturing.auth.plugins.nexus3.RoleSets;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+public class PrincipalCacheSnapshotTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static Principal principal(String username, Collection<String> roles) {
+        Principal principal = new Principal();
+        principal.setUsername(username);
+        principal.setRoles(RoleSets.intern(roles));
+        return principal;
+    }
+
+    @Test
+    public void shouldRestoreEntriesThatHaveNotExpired() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("data").resolve("principal-cache.bin");
+        PrincipalCacheSnapshot snapshot = new PrincipalCacheSnapshot(file);
+
+        Map<TokenDigest, CachedPrincipal> entries = new HashMap<>();
+        entries.put(TokenDigest.of("live"), new CachedPrincipal(principal("JSilva", Arrays.asList("Administrator", "Developer")), 1000, 5000));
+        entries.put(TokenDigest.of("expiring"), new CachedPrincipal(principal("PCosta", Arrays.asList("Developer")), 1000, 3000));
+        entries.put(TokenDigest.of("expired"), new CachedPrincipal(principal("RSousa", Arrays.asList("Developer")), 1000, 2000));
+        snapshot.write(entries, 2000);
+
+        Map<TokenDigest, CachedPrincipal> restored = snapshot.read(3000, PrincipalCacheSnapshotTest::principal);
+
+        Assert.assertEquals(1, restored.size());
+        CachedPrincipal cached = restored.get(TokenDigest.of("live"));
+        Assert.assertEquals("JSilva", cached.getPrincipal().getUsername());
+        Assert.assertEquals(new HashSet<>(Arrays.asList("Administrator", "Developer")), cached.getPrincipal().getRoles());
+        Assert.assertEquals(1000, cached.getCreatedAt());
+        Assert.assertEquals(5000, cached.getExpiresAt());
+
+        byte[] content = Files.readAllBytes(file);
+        Assert.assertFalse(new String(content, StandardCharsets.ISO_8859_1).contains("live"));
+    }
+
+    @Test
+    public void shouldLeaveOutPrincipalsWithoutUsername() throws Exception {
+        PrincipalCacheSnapshot snapshot = new PrincipalCacheSnapshot(folder.getRoot().toPath().resolve("principal-cache.bin"));
+
+        Map<TokenDigest, CachedPrincipal> entries = new HashMap<>();
+        entries.put(TokenDigest.of("named"), new CachedPrincipal(principal("JSilva", Arrays.asList("Developer")), 1000, 5000));
+        entries.put(TokenDigest.of("anonymous"), new CachedPrincipal(principal(null, Arrays.asList("Developer")), 1000, 5000));
+        snapshot.write(entries, 2000);
+
+        Map<TokenDigest, CachedPrincipal> restored = snapshot.read(3000, PrincipalCacheSnapshotTest::principal);
+
+        Assert.assertEquals(1, restored.size());
+        Assert.assertEquals("JSilva", restored.get(TokenDigest.of("named")).getPrincipal().getUsername());
+    }
+
+    @Test
+    public void shouldRestoreNothingWithoutSnapshot() throws Exception {
+        PrincipalCacheSnapshot snapshot = new PrincipalCacheSnapshot(folder.getRoot().toPath().resolve("missing.bin"));
+
+        Assert.assertTrue(snapshot.read(0, PrincipalCacheSnapshotTest::principal).isEmpty());
+    }
+
+    @Test(expected = IOException.class)
+    public void shouldRejectForeignFiles() throws Exception {
+        Path file = folder.newFile("principal-cache.bin").toPath();
+        Files.write(file, "not a snapshot".getBytes(StandardCharsets.UTF_8));
+
+        new PrincipalCacheSnapshot(file).read(0, PrincipalCacheSnapshotTest::principal);
+    }
+}
@@ -0,0 +1,56 @@
+package com.criticalmanufacturing.auth.plugins.nexus3.api;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class RejectedTokenFilterTest {
+
+    @Test
+    public void shouldRememberRejectedTokensForTwoRotations() {
+        RejectedTokenFilter filter = new RejectedTokenFilter(1000, 0.001);
+        filter.put(TokenDigest.of("12312313"));
+
+        Assert.assertTrue(filter.mightContain(TokenDigest.of("12312313")));
+        Assert.assertFalse(filter.mightContain(TokenDigest.of("12312314")));
+
+        filter.rotate();
+        Assert.assertTrue(filter.mightContain(TokenDigest.of("12312313")));
+
+        filter.rotate();
+        Assert.assertFalse(filter.mightContain(TokenDigest.of("12312313")));
+    }
+
+    @Test
+    public void shouldStayWithinFalsePositiveProbability() {
+        RejectedTokenFilter filter = new RejectedTokenFilter(10000, 0.001);
+        for (int i = 0; i < 10000; i++) {
+            filter.put(TokenDigest.of("rejected-" + i));
+        }
+
+        int falsePositives = 0;
+        for (int i = 0; i < 100000; i++) {
+            if (filter.mightContain(TokenDigest.of("never-rejected-" + i))) {
+                falsePositives++;
+            }
+        }
+
+        // 100 expected, with ample room for chance
+        Assert.assertTrue("False positives: " + falsePositives, falsePositives < 200);
+        for (int i = 0; i < 10000; i++) {
+            Assert.assertTrue(filter.mightContain(TokenDigest.of("rejected-" + i)));
+        }
+    }
+
+    @Test
+    public void shouldForgetEverythingOnClear() {
+        RejectedTokenFilter filter = new RejectedTokenFilter(1000, 0.001);
+        filter.put(TokenDigest.of("12312313"));
+        filter.rotate();
+        filter.put(TokenDigest.of("12312314"));
+
+        filter.clear();
+
+        Assert.assertFalse(filter.mightContain(TokenDigest.of("12312313")));
+        Assert.assertFalse(filter.mightContain(TokenDigest.of("12312314")));
+    }
+}
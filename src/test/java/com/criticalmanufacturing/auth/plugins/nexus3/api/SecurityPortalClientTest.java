@@ -2,20 +2,51 @@ package com.criticalmanufacturing.auth.plugins.nexus3.api;
 
 import com.criticalmanufacturing.auth.plugins.nexus3.AuthenticationException;
 import com.criticalmanufacturing.auth.plugins.nexus3.Principal;
+import com.criticalmanufacturing.auth.plugins.nexus3.SecurityPortalException;
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import com.codahale.metrics.MetricRegistry;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.pool.PoolStats;
 import org.junit.Assert;
+import org.junit.Assume;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.Mockito;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.junit.MockitoJUnitRunner;
+import org.slf4j.LoggerFactory;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
 
 @RunWith(MockitoJUnitRunner.class)
 public class SecurityPortalClientTest {
@@ -95,6 +126,64 @@ public class SecurityPortalClientTest {
         return mockOrgResponse;
     }
 
+    // Plain response objects, safe to hand out from many threads at once unlike deep-stubbed mocks
+    private HttpResponse createResponse(int statusCode, Object entity) throws IOException {
+        BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, statusCode, null);
+        response.setEntity(new ByteArrayEntity(mapper.writeValueAsBytes(entity), ContentType.APPLICATION_JSON));
+
+        return response;
+    }
+
+    // Answers the n-th token exchange with the n-th status code, repeating the last one
+    private HttpClient countingMockClient(AtomicInteger tokenExchanges, int... tokenStatusCodes) throws IOException {
+        OidcMetadata metadata = mockMetadata();
+
+        HttpClient mockClient = Mockito.mock(HttpClient.class);
+        Mockito.when(mockClient.execute(Mockito.any())).thenAnswer(invocationOnMock -> {
+            String uriString = ((HttpRequestBase) invocationOnMock.getArguments()[0]).getURI().toString();
+            if (uriString.equals(config.getMetadataUrl())) {
+                return createResponse(200, metadata);
+            } else if (uriString.equals(metadata.getTokenEndpoint())) {
+                int tokenStatusCode = tokenStatusCodes[Math.min(tokenExchanges.getAndIncrement(), tokenStatusCodes.length - 1)];
+                // Keep the leader busy long enough for every other thread to pile up behind it
+                Thread.sleep(200);
+                return tokenStatusCode == 200 ? createResponse(200, mockToken()) : createResponse(tokenStatusCode, "Invalid User");
+            } else if (uriString.equals(metadata.getUserinfoEndpoint())) {
+                return createResponse(200, mockUser("JSilva"));
+            } else if (uriString.equals(metadata.getUserinfoEndpoint() + "/roles")) {
+                return createResponse(200, mockRoles());
+            }
+
+            return null;
+        });
+
+        return mockClient;
+    }
+
+    private List<Future<Principal>> authzConcurrently(SecurityPortalClient clientToTest, String token, int threads) throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CountDownLatch startGate = new CountDownLatch(1);
+        List<Future<Principal>> results = new ArrayList<>(threads);
+        try {
+            for (int i = 0; i < threads; i++) {
+                results.add(executor.submit(() -> {
+                    startGate.await();
+                    try {
+                        return clientToTest.authz("JSilva", token);
+                    } catch (SecurityPortalException e) {
+                        throw new IllegalStateException(e);
+                    }
+                }));
+            }
+            startGate.countDown();
+        } finally {
+            executor.shutdown();
+            Assert.assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
+        }
+
+        return results;
+    }
+
     private HttpResponse answerOnInvocationError(InvocationOnMock invocationOnMock, HttpResponse mockUserResponse) throws IOException {
 
         OidcMetadata metadata = mockMetadata();
@@ -143,6 +232,60 @@ public class SecurityPortalClientTest {
         Mockito.when(mockClient.execute(Mockito.any())).thenAnswer(invocationOnMock -> answerOnInvocationError(invocationOnMock, mockUserResponse));
     }
 
+    private static MockSecurityPortalConfiguration stubPortalConfiguration(StubSecurityPortal portal, Properties properties) {
+        MockSecurityPortalConfiguration configuration = new MockSecurityPortalConfiguration(properties);
+        configuration.setMetadataUrl(portal.getMetadataUrl());
+        return configuration;
+    }
+
+    // Client of the stub portal with metrics of its own, so counts never leak between tests
+    private static SecurityPortalClient stubPortalClient(MockSecurityPortalConfiguration configuration) {
+        return new SecurityPortalClient(null, configuration, new SecurityPortalMetrics(new MetricRegistry()));
+    }
+
+    private static SecurityPortalClient stubPortalClient(StubSecurityPortal portal, Properties properties) {
+        return stubPortalClient(stubPortalConfiguration(portal, properties));
+    }
+
+    // Polls instead of sleeping a fixed time, failing once the condition still does not hold after five seconds
+    private static void await(String description, BooleanSupplier condition) throws InterruptedException {
+        await(description, 5000, condition);
+    }
+
+    private static void await(String description, long timeoutMillis, BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() >= deadline) {
+                Assert.fail("Timed out waiting for " + description);
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    // For polling, where a failed login only means the condition does not hold yet
+    private static Principal tryAuthz(SecurityPortalClient client, String token) {
+        try {
+            return client.authz("JSilva", token);
+        } catch (SecurityPortalException e) {
+            return null;
+        }
+    }
+
+    private static List<Thread> startedClientThreads(Set<Thread> threadsBefore) {
+        List<Thread> started = new ArrayList<>();
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (!threadsBefore.contains(thread) && thread.getName().startsWith("security-portal-")) {
+                started.add(thread);
+            }
+        }
+        return started;
+    }
+
+    // The client reads the same clock, so whatever expires at that instant has expired once this returns
+    private static void awaitClock(long instantMillis) throws InterruptedException {
+        await("the clock to reach " + instantMillis, () -> System.currentTimeMillis() >= instantMillis);
+    }
+
     @Test
     public void shouldDoMockAuthz() throws Throwable {
         HttpClient mockClient = fullyFunctionalMockClient();
@@ -181,6 +324,1192 @@ public class SecurityPortalClientTest {
         }
     }
 
+    @Test
+    public void shouldExchangeTokenOnceForConcurrentLogins() throws Throwable {
+        AtomicInteger tokenExchanges = new AtomicInteger();
+        SecurityPortalClient clientToTest = new SecurityPortalClient(countingMockClient(tokenExchanges, 200), new MockSecurityPortalConfiguration());
+
+        List<Future<Principal>> results = authzConcurrently(clientToTest, "12312313", 200);
+
+        Principal leaderPrincipal = results.get(0).get();
+        for (Future<Principal> result : results) {
+            Assert.assertSame(leaderPrincipal, result.get());
+        }
+        Assert.assertEquals("JSilva", leaderPrincipal.getUsername());
+        Assert.assertEquals(1, tokenExchanges.get());
+    }
+
+    @Test
+    public void shouldShareLeaderFailureWithConcurrentLogins() throws Throwable {
+        AtomicInteger tokenExchanges = new AtomicInteger();
+        SecurityPortalClient clientToTest = new SecurityPortalClient(countingMockClient(tokenExchanges, 401), new MockSecurityPortalConfiguration());
+
+        List<Future<Principal>> results = authzConcurrently(clientToTest, "12312313", 200);
+
+        for (Future<Principal> result : results) {
+            try {
+                result.get();
+                Assert.fail("Authz method should throw an AuthenticationException");
+            } catch (ExecutionException e) {
+                Assert.assertTrue(e.getCause().getCause() instanceof AuthenticationException);
+            }
+        }
+        Assert.assertEquals(1, tokenExchanges.get());
+    }
+
+    @Test
+    public void shouldFetchUserInformationAndRolesConcurrently() throws Throwable {
+        try (StubSecurityPortal portal = new StubSecurityPortal()) {
+            portal.setDelay(StubSecurityPortal.USERINFO_PATH, 500);
+            portal.setDelay(StubSecurityPortal.ROLES_PATH, 500);
+
+            SecurityPortalClient clientToTest = stubPortalClient(portal, new Properties());
+            // Warm up class loading, discovery and pooled connections with a different token
+            clientToTest.authz("JSilva", "warm-up");
+
+            long start = System.nanoTime();
+            Principal principal = clientToTest.authz("JSilva", "12312313");
+            long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+            Assert.assertEquals("JSilva", principal.getUsername());
+            Assert.assertEquals(1, principal.getRoles().size());
+            // Sequential calls would take at least the sum of both delays
+            Assert.assertTrue("Cache miss took " + elapsedMillis + "ms", elapsedMillis >= 500 && elapsedMillis < 1000);
+        }
+    }
+
+    @Test
+    public void shouldFailWhenConcurrentRolesFetchFails() throws Throwable {
+        try (StubSecurityPortal portal = new StubSecurityPortal()) {
+            portal.setStatusCode(StubSecurityPortal.ROLES_PATH, 403);
+
+            SecurityPortalClient clientToTest = stubPortalClient(portal, new Properties());
+
+            try {
+                clientToTest.authz("JSilva", "12312313");
+                Assert.fail("Authz method should throw an AuthenticationException");
+            } catch (AuthenticationException e) {
+                Assert.assertEquals(403, e.getStatusCode());
+            }
+        }
+    }
+
+    @Test
+    public void shouldSizeConnectionPoolFromConfiguration() throws Throwable {
+        try (StubSecurityPortal portal = new StubSecurityPortal()) {
+            Properties properties = new Properties();
+            properties.setProperty("connection.pool.max-total", "40");
+            properties.setProperty("connection.pool.max-per-route", "10");
+
+            SecurityPortalClient clientToTest = stubPortalClient(portal, properties);
+            clientToTest.authz("JSilva", "12312313");
+
+            PoolStats stats = clientToTest.getConnectionPoolStats();
+            Assert.assertEquals(40, stats.getMax());
+            Assert.assertEquals(0, stats.getLeased());
+            Assert.assertEquals(0, stats.getPending());
+            Assert.assertTrue(stats.getAvailable() > 0);
+        }
+    }
+
+    @Test
+    public void shouldBoundPrincipalCacheAndRecordStats() throws Throwable {
+        Properties properties = new Properties();
+        properties.setProperty("principal.cache.max-size", "2");
+
+        AtomicInteger tokenExchanges = new AtomicInteger();
+        SecurityPortalClient clientToTest = new SecurityPortalClient(countingMockClient(tokenExchanges, 200),
+                new MockSecurityPortalConfiguration(properties));
+
+        clientToTest.authz("JSilva", "token-1");
+        clientToTest.authz("JSilva", "token-2");
+        clientToTest.authz("JSilva", "token-3");
+        clientToTest.authz("JSilva", "token-3");
+
+        Assert.assertEquals(3, tokenExchanges.get());
+        Assert.assertEquals(2, clientToTest.getPrincipalCacheSize());
+        Assert.assertEquals(1, clientToTest.getPrincipalCacheStats().evictionCount());
+        Assert.assertTrue(clientToTest.getPrincipalCacheStats().hitCount() >= 1);
+    }
+
+    private void awaitTokenExchanges(AtomicInteger tokenExchanges, int expected) throws InterruptedException {
+        await("token exchange " + expected, () -> tokenExchanges.get() >= expected);
+        Assert.assertEquals(expected, tokenExchanges.get());
+    }
+
+    @Test
+    public void shouldRefreshAgingPrincipalInBackground() throws Throwable {
+        Properties properties = new Properties();
+        properties.setProperty("principal.cache.ttl", "PT10S");
+        properties.setProperty("principal.cache.refresh-ratio", "0.05");
+
+        AtomicInteger tokenExchanges = new AtomicInteger();
+        SecurityPortalClient clientToTest = new SecurityPortalClient(countingMockClient(tokenExchanges, 200),
+                new MockSecurityPortalConfiguration(properties));
+
+        Principal principal = clientToTest.authz("JSilva", "12312313");
+        // Refreshed ahead once older than 5% of the TTL
+        awaitClock(System.currentTimeMillis() + 500);
+
+        // The aging principal is served right away while the refresh runs behind it
+        long start = System.nanoTime();
+        Assert.assertSame(principal, clientToTest.authz("JSilva", "12312313"));
+        Assert.assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 150);
+
+        awaitTokenExchanges(tokenExchanges, 2);
+        // The refresh still has to get past the delayed token exchange
+        await("the refreshed principal", () -> tryAuthz(clientToTest, "12312313") != principal);
+        Principal refreshedPrincipal = clientToTest.authz("JSilva", "12312313");
+        Assert.assertNotSame(principal, refreshedPrincipal);
+        Assert.assertEquals("JSilva", refreshedPrincipal.getUsername());
+    }
+
+    @Test
+    public void shouldEvictPrincipalWhenRefreshIsRejected() throws Throwable {
+        Properties properties = new Properties();
+        properties.setProperty("principal.cache.ttl", "PT10S");
+        properties.setProperty("principal.cache.refresh-ratio", "0.05");
+
+        AtomicInteger tokenExchanges = new AtomicInteger();
+        SecurityPortalClient clientToTest = new SecurityPortalClient(countingMockClient(tokenExchanges, 200, 401),
+                new MockSecurityPortalConfiguration(properties));
+
+        clientToTest.authz("JSilva", "12312313");
+        awaitClock(System.currentTimeMillis() + 500);
+        clientToTest.authz("JSilva", "12312313");
+
+        awaitTokenExchanges(tokenExchanges, 2);
+        await("the rejected refresh", () -> clientToTest.getErrorCodeCacheSize() == 1);
+        try {
+            clientToTest.authz("JSilva", "12312313");
+            Assert.fail("Authz method should throw an AuthenticationException");
+        } catch (AuthenticationException e) {
+            Assert.assertTrue(e.getMessage().startsWith("Token already cached with error"));
+        }
+    }
+
+    @Test
+    public void shouldServeLastKnownPrincipalWhilePortalIsDown() throws Throwable {
+        try (StubSecurityPortal portal = new StubSecurityPortal()) {
+            Properties properties = new Properties();
+            properties.setProperty("principal.cache.ttl", "PT0.5S");
+            properties.setProperty("principal.cache.stale-window", "PT1M");
+
+            SecurityPortalClient clientToTest = stubPortalClient(portal, properties);
+
+            Principal principal = clientToTest.authz("JSilva", "12312313");
+            awaitClock(System.currentTimeMillis() + 500);
+            portal.setStatusCode(StubSecurityPortal.TOKEN_PATH, 503);
+
+            Assert.assertSame(principal, clientToTest.authz("JSilva", "12312313"));
+            Assert.assertEquals(2, portal.getRequestCount(StubSecurityPortal.TOKEN_PATH));
+
+            try {
+                clientToTest.authz("JSilva", "never-authenticated");
+                Assert.fail("Authz method should throw a SecurityPortalException");
+            } catch (SecurityPortalException e) {
+                Assert.assertEquals(503, e.getStatusCode());
+            }
+        }
+    }
+
+    @Test
+    public void shouldFailFastOnceCircuitBreakerOpens() throws Throwable {
+        try (StubSecurityPortal portal = new StubSecurityPortal()) {
+            portal.setStatusCode(StubSecurityPortal.TOKEN_PATH, 500);
+
+            Properties properties = new Properties();
+            properties.setProperty("circuit-breaker.failure-threshold", "2");
+            properties.setProperty("circuit-breaker.open-duration", "PT1M");
+
+            SecurityPortalClient clientToTest = stubPortalClient(portal, properties);
+
+            // Distinct tokens, retries of a single one would back off before reaching the breaker
+            for (int i = 0; i < 5; i++) {
+                try {
+                    clientToTest.authz("JSilva", "12312313-" + i);
+                    Assert.fail("Authz method should throw a SecurityPortalException");
+                } catch (SecurityPortalException e) {
+                    Assert.assertFalse(e instanceof AuthenticationException);
+                }
+            }
+
+            Assert.assertEquals(CircuitBreaker.State.OPEN, clientToTest.getCircuitBreakerState());
+            Assert.assertEquals(2, portal.getRequestCount(StubSecurityPortal.TOKEN_PATH));
+        }
+    }
+
+    @Test
+    public void shouldLoadOidcMetadataEagerly() throws Throwable {
+        try (StubSecurityPortal portal = new StubSecurityPortal()) {
+            SecurityPortalClient clientToTest = stubPortalClient(portal, new Properties());
+
+            await("the eager metadata load", () -> portal.getRequestCount(StubSecurityPortal.METADATA_PATH) > 0);
+
+            clientToTest.authz("JSilva", "12312313");
+            Assert.assertEquals(1, portal.getRequestCount(StubSecurityPortal.METADATA_PATH));
+        }
+    }
+
+    @Test
+    public void shouldRevalidateOidcMetadataInBackground() throws Throwable {
+        try (StubSecurityPortal portal = new StubSecurityPortal()) {
+            portal.setETag(StubSecurityPortal.METADATA_PATH, "\"v1\"");
+
+            Properties properties = new Properties();
+            properties.setProperty("metadata.refresh-interval", "PT0.1S");
+
+            SecurityPortalClient clientToTest = stubPortalClient(portal, properties);
+            clientToTest.authz("JSilva", "12312313");
+
+            await("two metadata revalidations", () -> portal.getNotModifiedCount(StubSecurityPortal.METADATA_PATH) >= 2);
+
+            // Move the token endpoint and publish a new metadata version
+            String movedTokenPath = StubSecurityPortal.TOKEN_PATH + "/v2";
+            OidcMetadata metadata = new OidcMetadata();
+            metadata.setTokenEndpoint(portal.getBaseUrl() + movedTokenPath);
+            metadata.setUserinfoEndpoint(portal.getBaseUrl() + StubSecurityPortal.USERINFO_PATH);
+            portal.setResponse(movedTokenPath, mockToken());
+            portal.setResponse(StubSecurityPortal.METADATA_PATH, metadata);
+            portal.setETag(StubSecurityPortal.METADATA_PATH, "\"v2\"");
+
+            // Revalidations only come back unchanged again once the client holds the new version. One may have been
+            // answered just before the change, the scheduler never runs two at once
+            int notModified = portal.getNotModifiedCount(StubSecurityPortal.METADATA_PATH);
+            await("revalidation of the new metadata", () -> portal.getNotModifiedCount(StubSecurityPortal.METADATA_PATH) > notModified + 1);
+            clientToTest.authz("JSilva", "45645645");
+            Assert.assertEquals(1, portal.getRequestCount(movedTokenPath));
+        }
+    }
+
+    // Publishes the signing keys of the given tokens on the portal's jwks_uri and returns the issuer to sign them for
+    private static String serveJsonWebKeySet(StubSecurityPortal portal, JwtTestSupport jwts) {
+        String issuer = portal.getBaseUrl() + "/tenant/Development";
+
+        OidcMetadata metadata = new OidcMetadata();
+        metadata.setIssuer(issuer);
+        metadata.setTokenEndpoint(portal.getBaseUrl() + StubSecurityPortal.TOKEN_PATH);
+        metadata.setUserinfoEndpoint(portal.getBaseUrl() + StubSecurityPortal.USERINFO_PATH);
+        metadata.setJwksUri(portal.getBaseUrl() + "/jwks");
+        portal.setResponse(StubSecurityPortal.METADATA_PATH, metadata);
+        portal.setResponse("/jwks", jwts.jwks());
+        return issuer;
+    }
+
+    @Test
+    public void shouldTakeSubjectAndRolesFromLocallyValidatedJwt() throws Throwable {
+        try (StubSecurityPortal portal = new StubSecurityPortal()) {
+            JwtTestSupport jwts = new JwtTestSupport();
+            String issuer = serveJsonWebKeySet(portal, jwts);
+
+            Map<String, Object> claims = jwts.claims(issuer, "JSilva", 300);
+            claims.put("role", Arrays.asList("Administrator", "Developer"));
+            SecurityPortalTokenResponse tokens = new SecurityPortalTokenResponse();
+            tokens.setAccessToken(jwts.signRs256(claims));
+            portal.setResponse(StubSecurityPortal.TOKEN_PATH, tokens);
+
+            Properties properties = new Properties();
+            properties.setProperty("jwt.local-validation", "true");
+            SecurityPortalClient clientToTest = stubPortalClient(portal, properties);
+
+            Principal principal = clientToTest.authz("JSilva", "12312313");
+
+            Assert.assertEquals("JSilva", principal.getUsername());
+            Assert.assertEquals(new HashSet<>(Arrays.asList("Administrator", "Developer")), principal.getRoles());
+            Assert.assertEquals(0, portal.getRequestCount(StubSecurityPortal.USERINFO_PATH));
+            Assert.assertEquals(0, portal.getRequestCount(StubSecurityPortal.ROLES_PATH));
+
+            // Without roles in the token they still come from the roles endpoint
+            claims.remove("role");
+            tokens.setAccessToken(jwts.signRs256(claims));
+            principal = clientToTest.authz("JSilva", "45645645");
+
+            Assert.assertEquals(Collections.singleton("Administrator"), principal.getRoles());
+            Assert.assertEquals(0, portal.getRequestCount(StubSecurityPortal.USERINFO_PATH));
+            Assert.assertEquals(1, portal.getRequestCount(StubSecurityPortal.ROLES_PATH));
+            Assert.assertEquals(1, portal.getRequestCount("/jwks"));
+        }
+    }
+
+    @Test
+    public void shouldRecordAuthenticationMetrics() throws Throwable {
+        try (StubSecurityPortal portal = new StubSecurityPortal()) {
+            Properties properties = new Properties();
+            properties.setProperty("metadata.eager-load", "false");
+
+            SecurityPortalClient clientToTest = stubPortalClient(portal, properties);
+            SecurityPortalMetrics metrics = clientToTest.getMetrics();
+
+            clientToTest.authz("JSilva", "12312313");
+            clientToTest.authz("JSilva", "12312313");
+
+            portal.setStatusCode(StubSecurityPortal.TOKEN_PATH, 401);
+            try {
+                clientToTest.authz("JSilva", "45645645");
+                Assert.fail("Authentication should have failed");
+            } catch (AuthenticationException e) {
+                Assert.assertEquals(401, e.getStatusCode());
+            }
+            try {
+                clientToTest.authz("JSilva", "45645645");
+                Assert.fail("Authentication should have failed");
+            } catch (AuthenticationException e) {
+                Assert.assertEquals(401, e.getStatusCode());
+            }
+
+            Assert.assertEquals(2, metrics.getExchangeTokenTimer().getCount());
+            Assert.assertEquals(1, metrics.getUserInformationTimer().getCount());
+            Assert.assertEquals(1, metrics.getUserRolesTimer().getCount());
+            Assert.assertEquals(1, metrics.getOidcInformationTimer().getCount());
+            Assert.assertEquals(1, metrics.getCacheHits().getCount());
+            Assert.assertEquals(2, metrics.getCacheMisses().getCount());
+            Assert.assertEquals(1, metrics.getCacheNegativeHits().getCount());
+            Assert.assertEquals(4, metrics.getPortalResponses(200).getCount());
+            Assert.assertEquals(1, metrics.getPortalResponses(401).getCount());
+            Assert.assertEquals(0, metrics.getPortalRequestsInFlight().getCount());
+            Assert.assertEquals(1L, metrics.getRegistry().getGauges().get(
+                    "com.criticalmanufacturing.auth.plugins.nexus3.cache.principals.size").getValue());
+        }
+    }
+
+    @Test
+    public void shouldServeCacheHitsWithoutAllocating() throws Throwable {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threads instanceof com.sun.management.ThreadMXBean
+                && ((com.sun.management.ThreadMXBean) threads).isThreadAllocatedMemorySupported());
+        com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+
+        // Per-request details are logged at DEBUG, which production runs without
+        Logger logger = (Logger) LoggerFactory.getLogger(SecurityPortalClient.class);
+        Level level = logger.getLevel();
+        logger.setLevel(Level.INFO);
+        try {
+            SecurityPortalClient clientToTest = new SecurityPortalClient(fullyFunctionalMockClient(), config);
+            char[] token = "12312313".toCharArray();
+            clientToTest.authz("JSilva", token);
+
+            for (int i = 0; i < 50000; i++) {
+                clientToTest.authz("JSilva", token);
+            }
+
+            int hits = 10000;
+            long threadId = Thread.currentThread().getId();
+            long before = allocations.getThreadAllocatedBytes(threadId);
+            for (int i = 0; i < hits; i++) {
+                clientToTest.authz("JSilva", token);
+            }
+            long bytesPerHit = (allocations.getThreadAllocatedBytes(threadId) - before) / hits;
+
+            // The token digest and the cache's own bookkeeping, no token copies or log messages
+            Assert.assertTrue("Cache hit allocated " + bytesPerHit + " bytes", bytesPerHit <= 128);
+        } finally {
+            logger.setLevel(level);
+        }
+    }
+
+    private SecurityPortalClient asyncClient(StubSecurityPortal portal, Properties properties) {
+        properties.setProperty("request.async", "true");
+        return stubPortalClient(portal, properties);
+    }
+
+    @Test
+    public void shouldAuthenticateOverAsyncTransport() throws Throwable {
+        try (StubSecurityPortal portal = new StubSecurityPortal()) {
+            SecurityPortalClient clientToTest = asyncClient(portal, new Properties());
+
+            Principal principal = clientToTest.authz("JSilva", "12312313");
+
+            Assert.assertEquals("JSilva", principal.getUsername());
+            Assert.assertEquals(Collections.singleton("Administrator"), principal.getRoles());
+            Assert.assertEquals(1, portal.getRequestCount(StubSecurityPortal.TOKEN_PATH));
+            Assert.assertEquals(1, portal.getRequestCount(StubSecurityPortal.USERINFO_PATH));
+            Assert.assertEquals(1, portal.getRequestCount(StubSecurityPortal.ROLES_PATH));
+            Assert.assertEquals(1, clientToTest.getMetrics().getExchangeTokenTimer().getCount());
+
+            portal.setStatusCode(StubSecurityPortal.TOKEN_PATH, 401);
+            try {
+                clientToTest.authz("JSilva", "45645645");
+                Assert.fail("Authentication should have failed");
+            } catch (AuthenticationException e) {
+                Assert.assertEquals(401, e.getStatusCode());
+            }
+        }
+    }
+
+    @Test
+    public void shouldAbortAsyncLoginAtDeadline() throws Throwable {
+        try (StubSecurityPortal portal = new StubSecurityPortal()) {
+            Properties properties = new Properties();
+            properties.setProperty("request.async", "true");
+            MockSecurityPortalConfiguration stubConfig = stubPortalConfiguration(portal, properties);
+            SecurityPortalClient clientToTest = stubPortalClient(stubConfig);
+            clientToTest.authz("JSilva", "warm-up");
+
+            // Only the login under test runs against the deadline, a cold warm-up may well exceed it
+            properties.setProperty("login.deadline", "PT0.5S");
+            stubConfig.reload(properties);
+            portal.setDelay(StubSecurityPortal.ROLES_PATH, 3000);
+
+            long start = System.currentTimeMillis();
+            try {
+                clientToTest.authz("JSilva", "12312313");
+                Assert.fail("Authentication should have timed out");
+            } catch (SecurityPortalException e) {
+                Assert.assertEquals(504, e.getStatusCode());
+            }
+            Assert.assertTrue(System.currentTimeMillis() - start < 2000);
+
+            // The pending roles request was aborted rather than left running, well before the portal would answer
+            await("the roles request to be aborted", 1000,
+                    () -> clientToTest.getMetrics().getPortalRequestsInFlight().getCount() == 0);
+        }
+    }
+
+    @Test
+    public void shouldNotStallAsyncLoginsOnSlowKeySet() throws Throwable {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try (StubSecurityPortal portal = new StubSecurityPortal()) {
+            JwtTestSupport jwts = new JwtTestSupport();
+            SecurityPortalTokenResponse tokens = new SecurityPortalTokenResponse();
+            tokens.setAccessToken(jwts.signRs256(jwts.claims(serveJsonWebKeySet(portal, jwts), "JSilva", 300)));
+            portal.setResponse(StubSecurityPortal.TOKEN_PATH, tokens);
+
+            Properties properties = new Properties();
+            properties.setProperty("request.async", "true");
+            properties.setProperty("request.async.threads", "1");
+            MockSecurityPortalConfiguration stubConfig = stubPortalConfiguration(portal, properties);
+            SecurityPortalClient clientToTest = stubPortalClient(stubConfig);
+            clientToTest.authz("JSilva", "warm-up");
+
+            // Only the logins under test validate locally and run against the deadline
+            properties.setProperty("jwt.local-validation", "true");
+            properties.setProperty("login.deadline", "PT1S");
+            stubConfig.reload(properties);
+            portal.setDelay("/jwks", 3000);
+
+            Future<Principal> waitingForKeys = executor.submit(() -> {
+                try {
+                    return clientToTest.authz("JSilva", "12312313");
+                } catch (SecurityPortalException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+            await("the key set to be requested", () -> portal.getRequestCount("/jwks") == 1);
+
+            // The transport's only thread is not held up by the pending fetch, this login falls back to the endpoints
+            Principal principal = clientToTest.authz("JSilva", "45645645");
+            Assert.assertEquals("JSilva", principal.getUsername());
+            Assert.assertEquals(2, portal.getRequestCount(StubSecurityPortal.USERINFO_PATH));
+
+            // The fetch runs against the deadline of the login that started it, and is aborted with it
+            try {
+                waitingForKeys.get(2, TimeUnit.SECONDS);
+                Assert.fail("Authentication should have timed out");
+            } catch (ExecutionException e) {
+                Assert.assertEquals(504, ((SecurityPortalException) e.getCause().getCause()).getStatusCode());
+            }
+            await("the key set request to be aborted", 1000,
+                    () -> clientToTest.getMetrics().getPortalRequestsInFlight().getCount() == 0);
+            Assert.assertEquals(1, portal.getRequestCount("/jwks"));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void shouldAbortBlockingLoginAtDeadline() throws Throwable {
+        try (StubSecurityPortal portal = new StubSecurityPortal()) {
+            Properties properties = new Properties();
+            MockSecurityPortalConfiguration stubConfig = stubPortalConfiguration(portal, properties);
+            SecurityPortalClient clientToTest = stubPortalClient(stubConfig);
+            clientToTest.authz("JSilva", "warm-up");
+
+            // Only the login under test runs against the deadline, a cold warm-up may well exceed it
+            properties.setProperty("login.deadline", "PT1S");
+            stubConfig.reload(properties);
+            portal.setDelay(StubSecurityPortal.USERINFO_PATH, 3000);
+
+            long start = System.currentTimeMillis();
+            try {
+                clientToTest.authz("JSilva", "12312313");
+                Assert.fail("Authentication should have timed out");
+            } catch (SecurityPortalException e) {
+                Assert.assertEquals(504, e.getStatusCode());
+            }
+            Assert.assertTrue(System.currentTimeMillis() - start < 2500);
+            Assert.assertEquals(1, clientToTest.getMetrics().getLoginDeadlineExceeded().getCount());
+            Assert.assertEquals(0, clientToTest.getMetrics().getPortalRequestsInFlight().getCount());
+            // A login cut short by the deadline says nothing about the token
+            Assert.assertEquals(0, clientToTest.getErrorCodeCacheSize());
+        }
+    }
+
+    @Test
+    public void shouldAbortPendingRolesRequestWhenUserInformationFails() throws Throwable {
+        try (StubSecurityPortal portal = new StubSecurityPortal()) {
+            Properties properties = new Properties();
+            properties.setProperty("circuit-breaker.failure-threshold", "1");
+            SecurityPortalClient clientToTest = stubPortalClient(portal, properties);
+            portal.setStatusCode(StubSecurityPortal.USERINFO_PATH, 401);
+            portal.setDelay(StubSecurityPortal.ROLES_PATH, 3000);
+
+            long start = System.currentTimeMillis();
+            try {
+                clientToTest.authz("JSilva", "12312313");
+                Assert.fail("Token should have been rejected");
+            } catch (AuthenticationException e) {
+                Assert.assertEquals(401, e.getStatusCode());
+            }
+
+            // The roles request gave up its connection rather than waiting out the slow portal
+            await("the roles request to be aborted", 1000,
+                    () -> clientToTest.getMetrics().getPortalRequestsInFlight().getCount() == 0);
+            Assert.assertTrue(System.currentTimeMillis() - start < 2000);
+            Assert.assertEquals(CircuitBreaker.State.CLOSED, clientToTest.getCircuitBreakerState());
+            Assert.assertEquals(0, clientToTest.getMetrics().getLoginDeadlineExceeded().getCount());
+        }
+    }
+
+    @Test
+    public void shouldRestorePrincipalCacheAfterRestart() throws Throwable {
+        Path snapshotFile = Files.createTempDirectory("principal-cache").resolve("principal-cache.bin");
+        try (StubSecurityPortal portal = new StubSecurityPortal()) {
+            Properties properties = new Properties();
+            properties.setProperty("principal.cache.snapshot.enabled", "true");
+            properties.setProperty("principal.cache.snapshot.file", snapshotFile.toString());
+            MockSecurityPortalConfiguration stubConfig = stubPortalConfiguration(portal, properties);
+
+            SecurityPortalClient beforeRestart = stubPortalClient(stubConfig);
+            beforeRestart.authz("JSilva", "12312313");
+            beforeRestart.close();
+
+            SecurityPortalClient afterRestart = stubPortalClient(stubConfig);
+            await("the snapshot to be restored", () -> afterRestart.getPrincipalCacheSize() > 0);
+
+            Principal principal = afterRestart.authz("JSilva", "12312313".toCharArray());
+
+            Assert.assertEquals("JSilva", principal.getUsername());
+            Assert.assertEquals(Collections.singleton("Administrator"), principal.getRoles());
+            Assert.assertEquals(1, portal.getRequestCount(StubSecurityPortal.TOKEN_PATH));
+            Assert.assertEquals(1, afterRestart.getMetrics().getCacheHits().getCount());
+            afterRestart.close();
+
+            // Saved under a TTL since lowered, past which they are not restored
+            properties.setProperty("principal.cache.ttl", "PT0.001S");
+            awaitClock(System.currentTimeMillis() + 1);
+            SecurityPortalClient afterLoweringTtl = stubPortalClient(portal, properties);
+            afterLoweringTtl.close();
+            Assert.assertEquals(0, afterLoweringTtl.getPrincipalCacheSize());
+        } finally {
+            Files.deleteIfExists(snapshotFile);
+            Files.deleteIfExists(snapshotFile.getParent());
+        }
+    }
+
+    @Test
+    public void shouldShareAuthenticationResultsBetweenNodes() throws Throwable {
+        try (StubSecurityPortal portal = new StubSecurityPortal()) {
+            MockSecurityPortalConfiguration stubConfig = stubPortalConfiguration(portal, new Properties());
+            InMemorySharedAuthenticationCache sharedCache = new InMemorySharedAuthenticationCache();
+            SecurityPortalClient firstNode = new SecurityPortalClient(null, stubConfig, new SecurityPortalMetrics(new MetricRegistry()), sharedCache);
+            SecurityPortalClient secondNode = new SecurityPortalClient(null, stubConfig, new SecurityPortalMetrics(new MetricRegistry()), sharedCache);
+
+            firstNode.authz("JSilva", "12312313");
+            Principal principal = secondNode.authz("JSilva", "12312313");
+
+            Assert.assertEquals("JSilva", principal.getUsername());
+            Assert.assertEquals(Collections.singleton("Administrator"), principal.getRoles());
+            Assert.assertEquals(1, portal.getRequestCount(StubSecurityPortal.TOKEN_PATH));
+            Assert.assertEquals(1, secondNode.getMetrics().getSharedCacheHits().getCount());
+
+            portal.setStatusCode(StubSecurityPortal.TOKEN_PATH, 401);
+            try {
+                firstNode.authz("JSilva", "revoked");
+                Assert.fail("Token should have been rejected");
+            } catch (AuthenticationException e) {
+                Assert.assertEquals(401, e.getStatusCode());
+            }
+            try {
+                secondNode.authz("JSilva", "revoked");
+                Assert.fail("Token should have been rejected by the other node");
+            } catch (AuthenticationException e) {
+                Assert.assertEquals(401, e.getStatusCode());
+            }
+            Assert.assertEquals(2, portal.getRequestCount(StubSecurityPortal.TOKEN_PATH));
+        }
+    }
+
+    @Test
+    public void shouldNotWriteRejectionsToCacheSharingOnlyPrincipals() throws Throwable {
+        try (StubSecurityPortal portal = new StubSecurityPortal()) {
+            Properties properties = new Properties();
+            properties.setProperty("principal.cache.ttl", "PT10S");
+            properties.setProperty("principal.cache.refresh-ratio", "0.05");
+            AtomicInteger sharedWrites = new AtomicInteger();
+            InMemorySharedAuthenticationCache sharedCache = new InMemorySharedAuthenticationCache() {
+                @Override
+                public boolean isSharingRejections() {
+                    return false;
+                }
+
+                @Override
+                public void put(TokenDigest key, Entry entry) {
+                    sharedWrites.incrementAndGet();
+                    super.put(key, entry);
+                }
+
+                @Override
+                public void invalidate(TokenDigest key) {
+                    sharedWrites.incrementAndGet();
+                    super.invalidate(key);
+                }
+            };
+            SecurityPortalClient clientToTest = new SecurityPortalClient(null, stubPortalConfiguration(portal, properties),
+                    new SecurityPortalMetrics(new MetricRegistry()), sharedCache);
+
+            clientToTest.authz("JSilva", "12312313");
+            Assert.assertEquals(1, sharedWrites.get());
+
+            // Tokens nobody ever accepted leave the shared cache alone
+            portal.setStatusCode(StubSecurityPortal.TOKEN_PATH, 401);
+            for (int i = 0; i < 20; i++) {
+                try {
+                    clientToTest.authz("JSilva", "guessed-" + i);
+                    Assert.fail("Token should have been rejected");
+                } catch (AuthenticationException e) {
+                    Assert.assertEquals(401, e.getStatusCode());
+                }
+            }
+            Assert.assertEquals(1, sharedWrites.get());
+            Assert.assertEquals(1, sharedCache.size());
+
+            // A cached token rejected on refresh is no longer served by the other nodes
+            awaitClock(System.currentTimeMillis() + 500);
+            clientToTest.authz("JSilva", "12312313");
+            await("the rejected refresh", () -> sharedCache.size() == 0);
+            Assert.assertEquals(2, sharedWrites.get());
+        }
+    }
+
+    @Test
+    public void shouldBoundSharedCacheLookupByLoginDeadline() throws Throwable {
+        try (StubSecurityPortal portal = new StubSecurityPortal()) {
+            Properties properties = new Properties();
+            MockSecurityPortalConfiguration stubConfig = stubPortalConfiguration(portal, properties);
+            CountDownLatch unreachable = new CountDownLatch(1);
+            SecurityPortalClient clientToTest = new SecurityPortalClient(null, stubConfig, new SecurityPortalMetrics(new MetricRegistry()),
+                    new InMemorySharedAuthenticationCache() {
+                        @Override
+                        public Entry get(TokenDigest key, long now) {
+                            try {
+                                unreachable.await();
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                            }
+                            return null;
+                        }
+                    });
+
+            properties.setProperty("login.deadline", "PT0.5S");
+            stubConfig.reload(properties);
+
+            long start = System.currentTimeMillis();
+            try {
+                clientToTest.authz("JSilva", "12312313");
+                Assert.fail("Authentication should have timed out");
+            } catch (SecurityPortalException e) {
+                Assert.assertEquals(504, e.getStatusCode());
+            } finally {
+                unreachable.countDown();
+            }
+            Assert.assertTrue(System.currentTimeMillis() - start < 2000);
+            Assert.assertEquals(1, clientToTest.getMetrics().getSharedCacheFailures().getCount());
+            Assert.assertEquals(0, portal.getRequestCount(StubSecurityPortal.TOKEN_PATH));
+        }
+    }
+
+    @Test
+    public void shouldBackOffTransientFailuresWithoutRejectingToken() throws Throwable {
+        try (StubSecurityPortal portal = new StubSecurityPortal()) {
+            Properties properties = new Properties();
+            properties.setProperty("metadata.eager-load", "false");
+            properties.setProperty("error.transient.backoff.initial", "PT0.3S");
+            SecurityPortalClient clientToTest = stubPortalClient(portal, properties);
+
+            // Discovery failing is no reason to reject the token
+            portal.setStatusCode(StubSecurityPortal.METADATA_PATH, 503);
+            try {
+                clientToTest.authz("JSilva", "12312313");
+                Assert.fail("Authentication should have failed");
+            } catch (AuthenticationException e) {
+                Assert.fail("A discovery failure must not reject the token");
+            } catch (SecurityPortalException e) {
+                Assert.assertEquals(503, e.getStatusCode());
+            }
+            long failedAt = System.currentTimeMillis();
+            Assert.assertEquals(0, clientToTest.getErrorCodeCacheSize());
+
+            // Retries within the backoff do not reach the portal
+            portal.setStatusCode(StubSecurityPortal.METADATA_PATH, 200);
+            try {
+                clientToTest.authz("JSilva", "12312313");
+                Assert.fail("Authentication should still be backing off");
+            } catch (AuthenticationException e) {
+                Assert.fail("A backing off token must not be rejected");
+            } catch (SecurityPortalException e) {
+                Assert.assertEquals(503, e.getStatusCode());
+            }
+            Assert.assertEquals(1, portal.getRequestCount(StubSecurityPortal.METADATA_PATH));
+            Assert.assertEquals(1, clientToTest.getMetrics().getCacheTransientFailureHits().getCount());
+
+            awaitClock(failedAt + 300);
+            Principal principal = clientToTest.authz("JSilva", "12312313");
+
+            Assert.assertEquals("JSilva", principal.getUsername());
+        }
+    }
+
+    @Test
+    public void shouldRejectTokenRefusedWithClientErrorInsteadOfServingItStale() throws Throwable {
+        try (StubSecurityPortal portal = new StubSecurityPortal()) {
+            Properties properties = new Properties();
+            properties.setProperty("metadata.eager-load", "false");
+            properties.setProperty("principal.cache.ttl", "PT0.2S");
+            properties.setProperty("principal.cache.stale-window", "PT1M");
+            SecurityPortalClient clientToTest = stubPortalClient(portal, properties);
+            clientToTest.authz("JSilva", "12312313");
+            long cachedAt = System.currentTimeMillis();
+
+            // invalid_grant, the portal will never accept this token again
+            portal.setResponse(StubSecurityPortal.TOKEN_PATH, Collections.singletonMap("error", "invalid_grant"));
+            portal.setStatusCode(StubSecurityPortal.TOKEN_PATH, 400);
+            awaitClock(cachedAt + 200);
+            try {
+                clientToTest.authz("JSilva", "12312313");
+                Assert.fail("The stale principal kept being served");
+            } catch (AuthenticationException e) {
+                Assert.assertEquals(400, e.getStatusCode());
+            }
+
+            Assert.assertEquals(0, clientToTest.getMetrics().getCacheStaleHits().getCount());
+            Assert.assertEquals(1, clientToTest.getErrorCodeCacheSize());
+        }
+    }
+
+    @Test
+    public void shouldNotRejectTokenWhenPortalRateLimits() throws Throwable {
+        assertTokenNotRejectedOn(429);
+    }
+
+    @Test
+    public void shouldNotRejectTokenWhenPortalTimesOutRequest() throws Throwable {
+        assertTokenNotRejectedOn(408);
+    }
+
+    @Test
+    public void shouldNotRejectTokenOnBadRequestOtherThanInvalidGrant() throws Throwable {
+        try (StubSecurityPortal portal = new StubSecurityPortal()) {
+            Properties properties = new Properties();
+            properties.setProperty("metadata.eager-load", "false");
+            SecurityPortalClient clientToTest = stubPortalClient(portal, properties);
+
+            // invalid_client is the plugin's configuration at fault, not the token
+            portal.setResponse(StubSecurityPortal.TOKEN_PATH, Collections.singletonMap("error", "invalid_client"));
+            portal.setStatusCode(StubSecurityPortal.TOKEN_PATH, 400);
+            try {
+                clientToTest.authz("JSilva", "12312313");
+                Assert.fail("Authentication should have failed");
+            } catch (AuthenticationException e) {
+                Assert.fail("A misconfigured client must not reject the token");
+            } catch (SecurityPortalException e) {
+                Assert.assertEquals(400, e.getStatusCode());
+            }
+            Assert.assertEquals(0, clientToTest.getErrorCodeCacheSize());
+        }
+    }
+
+    // The portal turning the request away for now says nothing about the token, it backs off like any outage
+    private static void assertTokenNotRejectedOn(int statusCode) throws Throwable {
+        try (StubSecurityPortal portal = new StubSecurityPortal()) {
+            Properties properties = new Properties();
+            properties.setProperty("metadata.eager-load", "false");
+            properties.setProperty("error.transient.backoff.initial", "PT0.1S");
+            properties.setProperty("error.filter.enabled", "true");
+            properties.setProperty("error.filter.expected-insertions", "1000");
+            properties.setProperty("login.throttle.max-failures", "1");
+            InMemorySharedAuthenticationCache sharedCache = new InMemorySharedAuthenticationCache();
+            SecurityPortalClient clientToTest = new SecurityPortalClient(null, stubPortalConfiguration(portal, properties),
+                    new SecurityPortalMetrics(new MetricRegistry()), sharedCache);
+
+            portal.setStatusCode(StubSecurityPortal.TOKEN_PATH, statusCode);
+            try {
+                clientToTest.authz("JSilva", "12312313");
+                Assert.fail("Authentication should have failed");
+            } catch (AuthenticationException e) {
+                Assert.fail("A " + statusCode + " must not reject the token");
+            } catch (SecurityPortalException e) {
+                Assert.assertEquals(statusCode, e.getStatusCode());
+            }
+            long failedAt = System.currentTimeMillis();
+            Assert.assertEquals(0, clientToTest.getErrorCodeCacheSize());
+            Assert.assertEquals(0, sharedCache.size());
+
+            // Neither the Bloom filter nor the login throttle turn the token away once the portal answers again
+            portal.setStatusCode(StubSecurityPortal.TOKEN_PATH, 200);
+            awaitClock(failedAt + 100);
+            Assert.assertEquals("JSilva", clientToTest.authz("JSilva", "12312313").getUsername());
+            Assert.assertEquals(2, portal.getRequestCount(StubSecurityPortal.TOKEN_PATH));
+        }
+    }
+
+    @Test
+    public void shouldTurnAwayRejectedTokensEvictedFromErrorCache() throws Throwable {
+        try (StubSecurityPortal portal = new StubSecurityPortal()) {
+            Properties properties = new Properties();
+            properties.setProperty("metadata.eager-load", "false");
+            properties.setProperty("error.cache.max-size", "1");
+            properties.setProperty("error.filter.enabled", "true");
+            properties.setProperty("error.filter.expected-insertions", "1000");
+            SecurityPortalClient clientToTest = stubPortalClient(portal, properties);
+
+            portal.setStatusCode(StubSecurityPortal.TOKEN_PATH, 401);
+            for (int i = 0; i < 10; i++) {
+                try {
+                    clientToTest.authz("JSilva", "bad-token-" + i);
+                    Assert.fail("Authentication should have failed");
+                } catch (AuthenticationException e) {
+                    Assert.assertEquals(401, e.getStatusCode());
+                }
+            }
+            Assert.assertEquals(1, clientToTest.getErrorCodeCacheSize());
+
+            // Every one of them is still turned away without another exchange
+            for (int i = 0; i < 10; i++) {
+                try {
+                    clientToTest.authz("JSilva", "bad-token-" + i);
+                    Assert.fail("Authentication should have failed");
+                } catch (AuthenticationException e) {
+                    Assert.assertEquals(401, e.getStatusCode());
+                }
+            }
+            Assert.assertEquals(10, portal.getRequestCount(StubSecurityPortal.TOKEN_PATH));
+            Assert.assertEquals(9, clientToTest.getMetrics().getCacheRejectedFilterHits().getCount());
+
+            portal.setStatusCode(StubSecurityPortal.TOKEN_PATH, 200);
+            Assert.assertEquals("JSilva", clientToTest.authz("JSilva", "good-token").getUsername());
+        }
+    }
+
+    @Test
+    public void shouldThrottleUsernameSprayedWithBadTokens() throws Throwable {
+        try (StubSecurityPortal portal = new StubSecurityPortal()) {
+            Properties properties = new Properties();
+            properties.setProperty("metadata.eager-load", "false");
+            properties.setProperty("login.throttle.max-failures", "3");
+            properties.setProperty("login.throttle.window", "PT0.5S");
+            properties.setProperty("login.throttle.by-username", "true");
+            SecurityPortalClient clientToTest = stubPortalClient(portal, properties);
+
+            // Cached principals of the sprayed username keep working throughout
+            Assert.assertEquals("JSilva", clientToTest.authz("JSilva", "good-token").getUsername());
+
+            portal.setStatusCode(StubSecurityPortal.TOKEN_PATH, 401);
+            for (int i = 0; i < 3; i++) {
+                try {
+                    clientToTest.authz("JSilva", "bad-token-" + i);
+                    Assert.fail("Authentication should have failed");
+                } catch (AuthenticationException e) {
+                    Assert.assertEquals(401, e.getStatusCode());
+                }
+            }
+
+            for (int i = 3; i < 100; i++) {
+                try {
+                    clientToTest.authz("JSilva", "bad-token-" + i);
+                    Assert.fail("Authentication should have been throttled");
+                } catch (AuthenticationException e) {
+                    Assert.fail("A throttled token must not be rejected");
+                } catch (SecurityPortalException e) {
+                    Assert.assertEquals(429, e.getStatusCode());
+                }
+            }
+            Assert.assertEquals(4, portal.getRequestCount(StubSecurityPortal.TOKEN_PATH));
+            Assert.assertEquals(3, clientToTest.getErrorCodeCacheSize());
+            Assert.assertEquals(97, clientToTest.getMetrics().getThrottledLogins().getCount());
+            Assert.assertEquals("JSilva", clientToTest.authz("JSilva", "good-token").getUsername());
+
+            // Other usernames are not affected, and the throttle lifts once its window ends
+            portal.setStatusCode(StubSecurityPortal.TOKEN_PATH, 200);
+            Assert.assertEquals("JSilva", clientToTest.authz("MSantos", "other-token").getUsername());
+            await("the throttle window to end", () -> tryAuthz(clientToTest, "new-token") != null);
+        }
+    }
+
+    @Test
+    public void shouldThrottleClientSprayingBadTokens() throws Throwable {
+        try (StubSecurityPortal portal = new StubSecurityPortal()) {
+            Properties properties = new Properties();
+            properties.setProperty("metadata.eager-load", "false");
+            properties.setProperty("login.throttle.max-failures", "3");
+            SecurityPortalClient clientToTest = stubPortalClient(portal, properties);
+
+            // Rotating usernames does not get the client past the throttle
+            portal.setStatusCode(StubSecurityPortal.TOKEN_PATH, 401);
+            for (int i = 0; i < 3; i++) {
+                try {
+                    clientToTest.authz("user-" + i, "bad-token-" + i, "10.0.0.66");
+                    Assert.fail("Authentication should have failed");
+                } catch (AuthenticationException e) {
+                    Assert.assertEquals(401, e.getStatusCode());
+                }
+            }
+            try {
+                clientToTest.authz("JSilva", "bad-token-3", "10.0.0.66");
+                Assert.fail("Authentication should have been throttled");
+            } catch (AuthenticationException e) {
+                Assert.fail("A throttled token must not be rejected");
+            } catch (SecurityPortalException e) {
+                Assert.assertEquals(429, e.getStatusCode());
+            }
+            Assert.assertEquals(3, portal.getRequestCount(StubSecurityPortal.TOKEN_PATH));
+
+            // Nor does the spray lock out the users it named
+            portal.setStatusCode(StubSecurityPortal.TOKEN_PATH, 200);
+            Assert.assertEquals("JSilva", clientToTest.authz("JSilva", "good-token", "10.0.0.7").getUsername());
+            // Logins of unknown origin are never throttled
+            Assert.assertEquals("JSilva", clientToTest.authz("user-0", "other-token").getUsername());
+            Assert.assertEquals(1, clientToTest.getMetrics().getThrottledLogins().getCount());
+        }
+    }
+
+    @Test
+    public void shouldKeepCachedPrincipalsWhenCacheSettingsChange() throws Throwable {
+        try (StubSecurityPortal portal = new StubSecurityPortal()) {
+            Properties properties = new Properties();
+            properties.setProperty("metadata.eager-load", "false");
+            properties.setProperty("principal.cache.ttl", "PT10M");
+            MockSecurityPortalConfiguration stubConfig = stubPortalConfiguration(portal, properties);
+            SecurityPortalClient clientToTest = stubPortalClient(stubConfig);
+            clientToTest.authz("JSilva", "12312313");
+            long cachedAt = System.currentTimeMillis();
+
+            properties.setProperty("principal.cache.ttl", "PT5M");
+            properties.setProperty("connection.pool.max-total", "10");
+            stubConfig.reload(properties);
+
+            Assert.assertEquals(1, clientToTest.getPrincipalCacheSize());
+            Assert.assertEquals("JSilva", clientToTest.authz("JSilva", "12312313").getUsername());
+            Assert.assertEquals(1, portal.getRequestCount(StubSecurityPortal.TOKEN_PATH));
+            Assert.assertEquals(10, clientToTest.getConnectionPoolStats().getMax());
+
+            // A TTL the cached principal already outlived drops it
+            awaitClock(cachedAt + 10);
+            properties.setProperty("principal.cache.ttl", "PT0.01S");
+            stubConfig.reload(properties);
+
+            Assert.assertEquals(0, clientToTest.getPrincipalCacheSize());
+            Assert.assertEquals(0, clientToTest.getCachedUserCount());
+        }
+    }
+
+    @Test
+    public void shouldNotLosePrincipalsCachedWhileCacheSettingsChange() throws Throwable {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try (StubSecurityPortal portal = new StubSecurityPortal()) {
+            Properties properties = new Properties();
+            properties.setProperty("metadata.eager-load", "false");
+            properties.setProperty("principal.cache.ttl", "PT10M");
+            MockSecurityPortalConfiguration stubConfig = stubPortalConfiguration(portal, properties);
+            SecurityPortalClient clientToTest = stubPortalClient(stubConfig);
+            clientToTest.authz("JSilva", "warm-up");
+
+            List<Future<?>> logins = new ArrayList<>();
+            for (int thread = 0; thread < 4; thread++) {
+                int first = thread * 100;
+                logins.add(executor.submit(() -> {
+                    for (int i = first; i < first + 100; i++) {
+                        try {
+                            clientToTest.authz("JSilva", "token-" + i);
+                        } catch (SecurityPortalException e) {
+                            throw new IllegalStateException(e);
+                        }
+                    }
+                }));
+            }
+            // Each reload swaps the caches while the logins keep caching principals
+            for (int reload = 0; !logins.stream().allMatch(Future::isDone); reload++) {
+                properties.setProperty("principal.cache.ttl", reload % 2 == 0 ? "PT9M" : "PT10M");
+                stubConfig.reload(properties);
+            }
+            for (Future<?> login : logins) {
+                login.get();
+            }
+
+            // Every indexed token is still cached, so dropping the user drops exactly what is cached
+            Assert.assertEquals(401, clientToTest.getPrincipalCacheSize());
+            Assert.assertEquals(401, clientToTest.invalidateUser("JSilva"));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void shouldApplyReloadedTimeoutsToMetadataRequests() throws Throwable {
+        try (StubSecurityPortal portal = new StubSecurityPortal()) {
+            Properties properties = new Properties();
+            properties.setProperty("metadata.eager-load", "false");
+            MockSecurityPortalConfiguration stubConfig = stubPortalConfiguration(portal, properties);
+            SecurityPortalClient clientToTest = stubPortalClient(stubConfig);
+
+            properties.setProperty("request.timeout.socket", "300");
+            stubConfig.reload(properties);
+            portal.setDelay(StubSecurityPortal.METADATA_PATH, 3000);
+
+            long start = System.currentTimeMillis();
+            try {
+                clientToTest.authz("JSilva", "12312313");
+                Assert.fail("Fetching the metadata should have timed out");
+            } catch (AuthenticationException e) {
+                Assert.fail("A metadata timeout must not reject the token");
+            } catch (SecurityPortalException e) {
+                Assert.assertTrue(System.currentTimeMillis() - start < 2500);
+            }
+        }
+    }
+
+    @Test
+    public void shouldCachePrincipalsNoLongerThanTheirTokens() throws Throwable {
+        try (StubSecurityPortal portal = new StubSecurityPortal()) {
+            SecurityPortalTokenResponse tokens = new SecurityPortalTokenResponse();
+            tokens.setAccessToken("abc");
+            tokens.setExpiresIn(1L);
+            portal.setResponse(StubSecurityPortal.TOKEN_PATH, tokens);
+            Properties properties = new Properties();
+            properties.setProperty("principal.cache.token-lifetime", "true");
+            properties.setProperty("principal.cache.stale-window", "PT0.5S");
+            SecurityPortalClient clientToTest = stubPortalClient(portal, properties);
+
+            clientToTest.authz("JSilva", "12312313");
+            long cachedAt = System.currentTimeMillis();
+            clientToTest.authz("JSilva", "12312313");
+            Assert.assertEquals(1, portal.getRequestCount(StubSecurityPortal.TOKEN_PATH));
+            awaitClock(cachedAt + 1000);
+            clientToTest.authz("JSilva", "12312313");
+            Assert.assertEquals(2, portal.getRequestCount(StubSecurityPortal.TOKEN_PATH));
+
+            // A PAT that is a JWT is cached no longer than its own expiry, even when the access token lives longer
+            tokens.setExpiresIn(3600L);
+            long exp = System.currentTimeMillis() / 1000 + 2;
+            String pat = "eyJhbGciOiJub25lIn0." + Base64.getUrlEncoder().withoutPadding()
+                    .encodeToString(("{\"exp\":" + exp + "}").getBytes()) + ".c2lnbmF0dXJl";
+            clientToTest.authz("JSilva", pat);
+            clientToTest.authz("JSilva", pat);
+            Assert.assertEquals(3, portal.getRequestCount(StubSecurityPortal.TOKEN_PATH));
+            awaitClock(exp * 1000);
+            clientToTest.authz("JSilva", pat);
+            Assert.assertEquals(4, portal.getRequestCount(StubSecurityPortal.TOKEN_PATH));
+
+            // The stale window starts at the token's expiry too, not at the end of the TTL
+            tokens.setExpiresIn(1L);
+            clientToTest.authz("JSilva", "45645646");
+            cachedAt = System.currentTimeMillis();
+            awaitClock(cachedAt + 1500);
+            portal.setStatusCode(StubSecurityPortal.TOKEN_PATH, 503);
+            try {
+                clientToTest.authz("JSilva", "45645646");
+                Assert.fail("Principal should not have been served past its token's lifetime");
+            } catch (SecurityPortalException e) {
+                Assert.assertEquals(503, e.getStatusCode());
+            }
+            Assert.assertEquals(0, clientToTest.getMetrics().getCacheStaleHits().getCount());
+        }
+    }
+
+    @Test
+    public void shouldCachePrincipalsForTheirTtlByDefault() throws Throwable {
+        try (StubSecurityPortal portal = new StubSecurityPortal()) {
+            SecurityPortalTokenResponse tokens = new SecurityPortalTokenResponse();
+            tokens.setAccessToken("abc");
+            tokens.setExpiresIn(1L);
+            portal.setResponse(StubSecurityPortal.TOKEN_PATH, tokens);
+            SecurityPortalClient clientToTest = stubPortalClient(portal, new Properties());
+
+            clientToTest.authz("JSilva", "12312313");
+            awaitClock(System.currentTimeMillis() + 1000);
+            clientToTest.authz("JSilva", "12312313");
+            Assert.assertEquals(1, portal.getRequestCount(StubSecurityPortal.TOKEN_PATH));
+        }
+    }
+
+    @Test
+    public void shouldTurnAwayImpossibleTokensWithoutCallingPortal() throws Throwable {
+        try (StubSecurityPortal portal = new StubSecurityPortal()) {
+            Properties properties = new Properties();
+            properties.setProperty("metadata.eager-load", "false");
+            properties.setProperty("token.preflight.min-length", "8");
+            properties.setProperty("token.preflight.pattern", "[A-Za-z0-9._-]+");
+            SecurityPortalClient clientToTest = stubPortalClient(portal, properties);
+
+            long exp = System.currentTimeMillis() / 1000 - 3600;
+            String expiredPat = "eyJhbGciOiJub25lIn0." + Base64.getUrlEncoder().withoutPadding()
+                    .encodeToString(("{\"exp\":" + exp + "}").getBytes()) + ".c2lnbmF0dXJl";
+            for (String token : Arrays.asList("1231231", "12312313 OR 1=1", expiredPat)) {
+                try {
+                    clientToTest.authz("JSilva", token);
+                    Assert.fail("Should have turned away " + token);
+                } catch (AuthenticationException e) {
+                    Assert.assertEquals(401, e.getStatusCode());
+                }
+            }
+
+            // Oversized tokens are turned away before they are even hashed
+            char[] oversized = new char[1024 * 1024];
+            Arrays.fill(oversized, 'x');
+            try {
+                clientToTest.authz("JSilva", oversized);
+                Assert.fail("Should have turned away an oversized token");
+            } catch (AuthenticationException e) {
+                Assert.assertEquals(401, e.getStatusCode());
+            }
+            Assert.assertTrue(TokenDigest.getRetainedBufferSize() < oversized.length);
+
+            Assert.assertEquals(4, clientToTest.getMetrics().getPreflightRejectedLogins().getCount());
+            Assert.assertEquals(0, portal.getRequestCount(StubSecurityPortal.TOKEN_PATH));
+            Assert.assertEquals(0, portal.getRequestCount(StubSecurityPortal.METADATA_PATH));
+            Assert.assertEquals("JSilva", clientToTest.authz("JSilva", "12312313").getUsername());
+            Assert.assertEquals(1, portal.getRequestCount(StubSecurityPortal.TOKEN_PATH));
+        }
+    }
+
+    @Test
+    public void shouldStopThreadsAndConnectionsOnClose() throws Throwable {
+        try (StubSecurityPortal portal = new StubSecurityPortal()) {
+            Set<Thread> threadsBefore = Thread.getAllStackTraces().keySet();
+            Properties properties = new Properties();
+            properties.setProperty("request.async", "true");
+            properties.setProperty("metadata.url", portal.getMetadataUrl());
+            Path file = Files.createTempDirectory("etc").resolve("criticalmanufacturing-oidc.properties");
+            try (java.io.OutputStream out = Files.newOutputStream(file)) {
+                properties.store(out, null);
+            }
+            // Watches the file, so the configuration has a thread of its own to stop
+            SecurityPortalConfiguration watchedConfig = new SecurityPortalConfiguration(file);
+            SecurityPortalClient clientToTest = new SecurityPortalClient(null, watchedConfig, new SecurityPortalMetrics(new MetricRegistry()));
+            clientToTest.authz("JSilva", "12312313");
+
+            clientToTest.close();
+
+            // The configuration is a singleton of its own, which Nexus stops separately
+            await("the client's threads to stop", () -> startedClientThreads(threadsBefore).stream()
+                    .allMatch(thread -> thread.getName().equals("security-portal-configuration-watcher")));
+            Assert.assertEquals(1, startedClientThreads(threadsBefore).size());
+            Assert.assertEquals(0, clientToTest.getConnectionPoolStats().getAvailable());
+
+            watchedConfig.close();
+            await("the configuration watcher to stop", () -> startedClientThreads(threadsBefore).isEmpty());
+        }
+    }
+
 //    @Test
 //    public void shouldDoAuthInCustomerPortal() throws Exception {
 //
@@ -0,0 +1,136 @@
+package com.criticalmanufacturing.auth.plugins.nexus3.api;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+
+public class SecurityPortalConfigurationTest {
+
+    private static void write(Path file, Properties properties) throws Exception {
+        try (OutputStream out = Files.newOutputStream(file)) {
+            properties.store(out, null);
+        }
+    }
+
+    @Test
+    public void shouldRejectInvalidValues() {
+        String[][] invalid = {
+                { "principal.cache.ttl", "30 minutes" },
+                { "principal.cache.ttl", "PT0S" },
+                { "error.cache.max-size", "-1" },
+                { "connection.pool.max-total", "many" },
+                { "request.async", "yes" },
+                { "principal.cache.refresh-ratio", "1.5" },
+                { "token.preflight.pattern", "[a-z" },
+                { "token.preflight.max-length", "0" },
+        };
+        for (String[] value : invalid) {
+            Properties properties = new Properties();
+            properties.setProperty(value[0], value[1]);
+            try {
+                new SecurityPortalConfiguration(properties);
+                Assert.fail("Should have rejected " + value[0] + "=" + value[1]);
+            } catch (IllegalArgumentException e) {
+                Assert.assertTrue(e.getMessage(), e.getMessage().contains(value[0]));
+            }
+        }
+    }
+
+    @Test
+    public void shouldNotifyChangedKeysOnReload() {
+        Properties properties = new Properties();
+        properties.setProperty("principal.cache.ttl", "PT10M");
+        properties.setProperty("clientid", "Nexus");
+        SecurityPortalConfiguration configuration = new SecurityPortalConfiguration(properties);
+        List<Set<String>> changes = new ArrayList<>();
+        configuration.addChangeListener(changes::add);
+
+        // The snapshot is independent from the properties it was read from
+        properties.setProperty("principal.cache.ttl", "PT5M");
+        properties.remove("clientid");
+        properties.setProperty("login.deadline", "PT10S");
+        Assert.assertEquals(Duration.ofMinutes(10), configuration.getPrincipalCacheTtl());
+
+        configuration.reload(properties);
+        configuration.reload(properties);
+
+        Assert.assertEquals(Duration.ofMinutes(5), configuration.getPrincipalCacheTtl());
+        Assert.assertEquals("Applications", configuration.getClientId());
+        Assert.assertEquals(Duration.ofSeconds(10), configuration.getLoginDeadline());
+        Assert.assertEquals(Collections.singletonList(Set.of("principal.cache.ttl", "clientid", "login.deadline")), changes);
+    }
+
+    @Test
+    public void shouldKeepCurrentSettingsOnInvalidReload() {
+        SecurityPortalConfiguration configuration = new SecurityPortalConfiguration(new Properties());
+        Properties invalid = new Properties();
+        invalid.setProperty("principal.cache.ttl", "PT5M");
+        invalid.setProperty("login.deadline", "soon");
+
+        try {
+            configuration.reload(invalid);
+            Assert.fail("Should have rejected login.deadline");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+
+        Assert.assertEquals(Duration.ofMinutes(30), configuration.getPrincipalCacheTtl());
+    }
+
+    @Test
+    public void shouldDefaultOnlyInvalidKeysOfFileAtStartup() throws Exception {
+        Path file = Files.createTempDirectory("etc").resolve("criticalmanufacturing-oidc.properties");
+        Properties properties = new Properties();
+        properties.setProperty("metadata.url", "https://portal.example.com/tenant/Production/.well-known/openid-configuration");
+        properties.setProperty("clientid", "Nexus");
+        properties.setProperty("error.filter.enabled", "yes");
+        write(file, properties);
+
+        SecurityPortalConfiguration configuration = new SecurityPortalConfiguration(file);
+        try {
+            Assert.assertEquals("https://portal.example.com/tenant/Production/.well-known/openid-configuration", configuration.getMetadataUrl());
+            Assert.assertEquals("Nexus", configuration.getClientId());
+            Assert.assertFalse(configuration.isErrorFilterEnabled());
+        } finally {
+            configuration.close();
+        }
+    }
+
+    @Test
+    public void shouldReloadWatchedFile() throws Exception {
+        Path file = Files.createTempDirectory("etc").resolve("criticalmanufacturing-oidc.properties");
+        Properties properties = new Properties();
+        properties.setProperty("principal.cache.ttl", "PT10M");
+        write(file, properties);
+
+        SecurityPortalConfiguration configuration = new SecurityPortalConfiguration(file);
+        try {
+            Assert.assertEquals(Duration.ofMinutes(10), configuration.getPrincipalCacheTtl());
+
+            // Ignored, the previous settings stay in effect
+            properties.setProperty("principal.cache.ttl", "later");
+            write(file, properties);
+            Thread.sleep(1500);
+            Assert.assertEquals(Duration.ofMinutes(10), configuration.getPrincipalCacheTtl());
+
+            properties.setProperty("principal.cache.ttl", "PT5M");
+            write(file, properties);
+            long deadline = System.currentTimeMillis() + 10000;
+            while (!configuration.getPrincipalCacheTtl().equals(Duration.ofMinutes(5)) && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+            Assert.assertEquals(Duration.ofMinutes(5), configuration.getPrincipalCacheTtl());
+        } finally {
+            configuration.close();
+        }
+    }
+}
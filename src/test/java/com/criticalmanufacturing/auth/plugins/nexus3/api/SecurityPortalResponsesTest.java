@@ -0,0 +1,59 @@
+package com.criticalmanufacturing.auth.plugins.nexus3.api;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class SecurityPortalResponsesTest {
+
+    private final JsonFactory factory = new JsonFactory();
+
+    private ByteArrayInputStream json(String json) {
+        return new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void shouldReadOnlyUserAccount() throws IOException {
+        String user = "{\"name\":\"Jo\\u00e3o Silva\",\"groups\":[{\"sub\":\"nested\"}],\"address\":{\"sub\":\"nested\"},\"sub\":\"JSilva\",\"email\":null}";
+
+        Assert.assertEquals("JSilva", SecurityPortalResponses.readUserAccount(factory, json(user)));
+        Assert.assertNull(SecurityPortalResponses.readUserAccount(factory, json("{\"name\":\"JSilva\"}")));
+        Assert.assertNull(SecurityPortalResponses.readUserAccount(factory, json("\"Not Found\"")));
+    }
+
+    @Test
+    public void shouldReadOnlyRoleNames() throws IOException {
+        String roles = "{\"meta\":{\"body\":[{\"name\":\"Nested\"}]},\"body\":["
+                + "{\"id\":\"1\",\"name\":\"Administrator\",\"description\":\"Admin\",\"isScope\":false},"
+                + "{\"id\":\"2\",\"scopes\":[{\"name\":\"Nested\"}],\"name\":\"Developer\"},"
+                + "{\"id\":\"3\"},"
+                + "\"not-a-role\","
+                + "{\"name\":\"Caf\\u00e9\"}"
+                + "],\"count\":3}";
+
+        Assert.assertEquals(Arrays.asList("Administrator", "Developer", "Café"), SecurityPortalResponses.readRoleNames(factory, json(roles)));
+        Assert.assertEquals(Collections.emptyList(), SecurityPortalResponses.readRoleNames(factory, json("{\"body\":null}")));
+        Assert.assertEquals(Collections.emptyList(), SecurityPortalResponses.readRoleNames(factory, json("[]")));
+    }
+
+    @Test
+    public void shouldReadManyRoles() throws IOException {
+        StringBuilder roles = new StringBuilder("{\"body\":[");
+        for (int i = 0; i < 500; i++) {
+            roles.append(i == 0 ? "" : ",").append("{\"id\":\"").append(i).append("\",\"name\":\"Role").append(i).append("\"}");
+        }
+        roles.append("]}");
+
+        List<String> roleNames = SecurityPortalResponses.readRoleNames(factory, json(roles.toString()));
+
+        Assert.assertEquals(500, roleNames.size());
+        Assert.assertEquals("Role499", roleNames.get(499));
+    }
+}
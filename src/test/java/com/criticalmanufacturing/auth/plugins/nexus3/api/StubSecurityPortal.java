@@ -0,0 +1,142 @@
+package com.criticalmanufacturing.auth.plugins.nexus3.api;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-process Security Portal serving the OIDC discovery, token, user information and roles endpoints.
+ */
+public class StubSecurityPortal implements AutoCloseable {
+
+    public static final String METADATA_PATH = "/tenant/Development/.well-known/openid-configuration";
+    public static final String TOKEN_PATH = "/api/tenant/Development/oauth2/token";
+    public static final String USERINFO_PATH = "/api/users/me";
+    public static final String ROLES_PATH = "/api/users/me/roles";
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    private final Map<String, Object> responses = new ConcurrentHashMap<>();
+    private final Map<String, Integer> statusCodes = new ConcurrentHashMap<>();
+    private final Map<String, Long> delays = new ConcurrentHashMap<>();
+    private final Map<String, String> eTags = new ConcurrentHashMap<>();
+    private final Map<String, AtomicInteger> requestCounts = new ConcurrentHashMap<>();
+
+    public StubSecurityPortal() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", this::handle);
+        server.setExecutor(executor);
+        server.start();
+
+        String baseUrl = getBaseUrl();
+
+        OidcMetadata metadata = new OidcMetadata();
+        metadata.setIssuer(baseUrl + "/tenant/Development");
+        metadata.setTokenEndpoint(baseUrl + TOKEN_PATH);
+        metadata.setUserinfoEndpoint(baseUrl + USERINFO_PATH);
+        responses.put(METADATA_PATH, metadata);
+
+        SecurityPortalTokenResponse tokens = new SecurityPortalTokenResponse();
+        tokens.setAccessToken("abc");
+        tokens.setRefreshToken("refresh_abc");
+        responses.put(TOKEN_PATH, tokens);
+
+        SecurityPortalUser user = new SecurityPortalUser();
+        user.setUserAccount("JSilva");
+        responses.put(USERINFO_PATH, user);
+
+        SecurityPortalRole role = new SecurityPortalRole();
+        role.setName("Administrator");
+        SecurityPortalRolesResponse roles = new SecurityPortalRolesResponse();
+        roles.setRoles(new SecurityPortalRole[] { role });
+        responses.put(ROLES_PATH, roles);
+    }
+
+    public String getBaseUrl() {
+        return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort();
+    }
+
+    public String getMetadataUrl() {
+        return getBaseUrl() + METADATA_PATH;
+    }
+
+    public void setResponse(String path, Object response) {
+        responses.put(path, response);
+    }
+
+    public void setStatusCode(String path, int statusCode) {
+        statusCodes.put(path, statusCode);
+    }
+
+    public void setDelay(String path, long delayMillis) {
+        delays.put(path, delayMillis);
+    }
+
+    public void setETag(String path, String eTag) {
+        eTags.put(path, eTag);
+    }
+
+    public int getRequestCount(String path) {
+        AtomicInteger count = requestCounts.get(path);
+        return count == null ? 0 : count.get();
+    }
+
+    public int getNotModifiedCount(String path) {
+        return getRequestCount(path + "#not-modified");
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+        requestCounts.computeIfAbsent(path, p -> new AtomicInteger()).incrementAndGet();
+
+        try {
+            long delay = delays.getOrDefault(path, 0L);
+            if (delay > 0) {
+                Thread.sleep(delay);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        String eTag = eTags.get(path);
+        if (eTag != null) {
+            exchange.getResponseHeaders().set("ETag", eTag);
+            if (eTag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                requestCounts.computeIfAbsent(path + "#not-modified", p -> new AtomicInteger()).incrementAndGet();
+                // The JDK server drops the connection after a bodiless response, tell the client not to reuse it
+                exchange.getResponseHeaders().set("Connection", "close");
+                exchange.sendResponseHeaders(304, -1);
+                exchange.close();
+                return;
+            }
+        }
+
+        Object response = responses.get(path);
+        int statusCode = response == null ? 404 : statusCodes.getOrDefault(path, 200);
+        byte[] body = mapper.writeValueAsBytes(response == null ? "Not Found" : response);
+
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(statusCode, body.length);
+        try (OutputStream output = exchange.getResponseBody()) {
+            output.write(body);
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,48 @@
+package com.criticalmanufacturing.auth.plugins.nexus3.api;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+
+public class TokenDigestTest {
+
+    @Test
+    public void shouldMatchSha256OfToken() throws Exception {
+        byte[] expected = MessageDigest.getInstance("SHA-256").digest("12312313".getBytes(StandardCharsets.UTF_8));
+
+        TokenDigest digest = TokenDigest.of("12312313");
+
+        Assert.assertArrayEquals(expected, digest.toBytes());
+        Assert.assertEquals(64, digest.toString().length());
+    }
+
+    @Test
+    public void shouldDigestCharactersLikeStrings() throws Exception {
+        String[] tokens = { "", "12312313", "p\u00e1ss-\u20ac-\ud83d\udd11", "unpaired-\ud83d", "\udd11-unpaired", new String(new char[1000]).replace('\0', 'x') };
+        for (String token : tokens) {
+            byte[] expected = MessageDigest.getInstance("SHA-256").digest(token.getBytes(StandardCharsets.UTF_8));
+
+            Assert.assertArrayEquals(expected, TokenDigest.of(token).toBytes());
+            Assert.assertEquals(TokenDigest.of(token), TokenDigest.of(token.toCharArray()));
+        }
+    }
+
+    @Test
+    public void shouldNotKeepScratchSpaceForOversizedTokens() throws Exception {
+        String oversized = new String(new char[1024 * 1024]).replace('\0', '\u20ac');
+        byte[] expected = MessageDigest.getInstance("SHA-256").digest(oversized.getBytes(StandardCharsets.UTF_8));
+
+        Assert.assertArrayEquals(expected, TokenDigest.of(oversized).toBytes());
+        Assert.assertEquals(TokenDigest.of(oversized), TokenDigest.of(oversized.toCharArray()));
+        Assert.assertTrue(TokenDigest.getRetainedBufferSize() <= 32 * 1024);
+    }
+
+    @Test
+    public void shouldCompareByDigest() {
+        Assert.assertEquals(TokenDigest.of("12312313"), TokenDigest.of("12312313"));
+        Assert.assertEquals(TokenDigest.of("12312313").hashCode(), TokenDigest.of("12312313").hashCode());
+        Assert.assertNotEquals(TokenDigest.of("12312313"), TokenDigest.of("12312314"));
+    }
+}
@@ -0,0 +1,85 @@
+package com.criticalmanufacturing.auth.plugins.nexus3.rest;
+
+import com.codahale.metrics.MetricRegistry;
+import com.criticalmanufacturing.auth.plugins.nexus3.api.MockSecurityPortalConfiguration;
+import com.criticalmanufacturing.auth.plugins.nexus3.api.SecurityPortalClient;
+import com.criticalmanufacturing.auth.plugins.nexus3.api.SecurityPortalMetrics;
+import com.criticalmanufacturing.auth.plugins.nexus3.api.StubSecurityPortal;
+import com.criticalmanufacturing.auth.plugins.nexus3.api.TokenDigest;
+import org.junit.Assert;
+import org.junit.Test;
+import org.sonatype.nexus.rest.WebApplicationMessageException;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class SecurityPortalCacheResourceTest {
+
+    private static SecurityPortalClient newClient(StubSecurityPortal portal) {
+        MockSecurityPortalConfiguration stubConfig = new MockSecurityPortalConfiguration();
+        stubConfig.setMetadataUrl(portal.getMetadataUrl());
+        return new SecurityPortalClient(null, stubConfig, new SecurityPortalMetrics(new MetricRegistry()));
+    }
+
+    private static WarmUpXO account(String username, String token) {
+        WarmUpXO account = new WarmUpXO();
+        account.setUsername(username);
+        account.setToken(token);
+        return account;
+    }
+
+    @Test
+    public void shouldWarmUpServiceAccounts() throws Exception {
+        try (StubSecurityPortal portal = new StubSecurityPortal()) {
+            SecurityPortalClient client = newClient(portal);
+            SecurityPortalCacheResource resource = new SecurityPortalCacheResource(client);
+
+            List<WarmUpResultXO> results = resource.warmUp(Arrays.asList(account("JSilva", "first"), account("JSilva", "second")));
+
+            Assert.assertTrue(results.get(0).isAuthenticated());
+            Assert.assertTrue(results.get(1).isAuthenticated());
+            CacheStatisticsXO statistics = resource.getStatistics();
+            Assert.assertEquals(2, statistics.getPrincipalCacheSize());
+            Assert.assertEquals(1, statistics.getCachedUsers());
+
+            portal.setStatusCode(StubSecurityPortal.TOKEN_PATH, 401);
+            WarmUpResultXO rejected = resource.warmUp(Collections.singletonList(account("JSilva", "revoked"))).get(0);
+            Assert.assertFalse(rejected.isAuthenticated());
+            Assert.assertEquals(401, rejected.getStatusCode());
+            Assert.assertEquals(1, resource.getStatistics().getErrorCacheSize());
+        }
+    }
+
+    @Test
+    public void shouldInvalidateByUsernameAndDigest() throws Throwable {
+        try (StubSecurityPortal portal = new StubSecurityPortal()) {
+            SecurityPortalClient client = newClient(portal);
+            SecurityPortalCacheResource resource = new SecurityPortalCacheResource(client);
+            client.authz("JSilva", "first");
+            client.authz("JSilva", "second");
+
+            resource.invalidateUser("JSilva");
+            Assert.assertEquals(0, client.getPrincipalCacheSize());
+            Assert.assertEquals(0, client.getCachedUserCount());
+
+            client.authz("JSilva", "first");
+            resource.invalidateToken(TokenDigest.of("first").toString());
+            Assert.assertEquals(0, client.getPrincipalCacheSize());
+            Assert.assertEquals(3, portal.getRequestCount(StubSecurityPortal.TOKEN_PATH));
+
+            try {
+                resource.invalidateUser("PCosta");
+                Assert.fail("Users without cached tokens should not be found");
+            } catch (WebApplicationMessageException e) {
+                Assert.assertEquals(404, e.getResponse().getStatus());
+            }
+            try {
+                resource.invalidateToken("not-a-digest");
+                Assert.fail("Malformed digests should be rejected");
+            } catch (WebApplicationMessageException e) {
+                Assert.assertEquals(400, e.getResponse().getStatus());
+            }
+        }
+    }
+}